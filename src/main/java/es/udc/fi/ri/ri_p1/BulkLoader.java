@@ -0,0 +1,111 @@
+package es.udc.fi.ri.ri_p1;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.codecs.Codec;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.IOUtils;
+
+/**
+ * Carga masiva para reconstrucciones completas: cada hilo escribe en su propio IndexWriter, sobre un
+ * directorio temporal, con un buffer de RAM grande y sin commits intermedios. Así los hilos no
+ * compiten por el mismo writer y cada flush produce segmentos grandes. Al terminar, {@link
+ * #finish} confirma cada parte y la añade al índice final con {@code addIndexes}, que copia los
+ * segmentos sin volver a analizar los documentos.
+ */
+class BulkLoader implements Closeable {
+
+    /** Buffer de RAM por hilo si no se indica otro. */
+    static final double DEFAULT_RAM_BUFFER_MB = 256;
+
+    private final Path tempRoot;
+    private final Analyzer analyzer;
+    private final Codec codec;
+    private final double ramBufferMB;
+    private final List<IndexWriter> writers = new ArrayList<>();
+    private final ThreadLocal<IndexWriter> threadWriter = new ThreadLocal<>();
+
+    /**
+     * @param tempRoot directorio temporal donde se crean las partes; conviene que esté en el mismo
+     *     disco que el índice final
+     * @param codec el del índice final, para que {@code addIndexes} copie los segmentos ya con su
+     *     formato (por ejemplo, con la compresión de campos almacenados elegida)
+     */
+    BulkLoader(Path tempRoot, Analyzer analyzer, Codec codec, double ramBufferMB) {
+        this.tempRoot = tempRoot;
+        this.analyzer = analyzer;
+        this.codec = codec;
+        this.ramBufferMB = ramBufferMB;
+    }
+
+    /** Devuelve el writer del hilo actual, creándolo la primera vez. */
+    IndexWriter writer() throws IOException {
+        IndexWriter writer = threadWriter.get();
+        if (writer == null) {
+            IndexWriterConfig config = new IndexWriterConfig(analyzer);
+            config.setCodec(codec);
+            config.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+            config.setRAMBufferSizeMB(ramBufferMB);
+            config.setMaxBufferedDocs(IndexWriterConfig.DISABLE_AUTO_FLUSH);
+            synchronized (writers) {
+                Path dir = tempRoot.resolve("part-" + writers.size());
+                writer = new IndexWriter(FSDirectory.open(dir), config);
+                writers.add(writer);
+            }
+            threadWriter.set(writer);
+        }
+        return writer;
+    }
+
+    /**
+     * Confirma todas las partes y las añade a {@code target}, opcionalmente fusionando el
+     * resultado en un único segmento. Debe llamarse cuando ningún hilo siga escribiendo.
+     */
+    void finish(IndexWriter target, boolean forceMerge) throws IOException {
+        List<Directory> dirs = new ArrayList<>();
+        synchronized (writers) {
+            for (IndexWriter writer : writers) {
+                dirs.add(writer.getDirectory());
+                writer.close(); // Único commit de cada parte
+            }
+            writers.clear();
+        }
+        try {
+            target.addIndexes(dirs.toArray(new Directory[0]));
+            if (forceMerge) {
+                target.forceMerge(1);
+            }
+        } finally {
+            IOUtils.close(dirs);
+        }
+    }
+
+    /** Cierra las partes que sigan abiertas y borra el directorio temporal. */
+    @Override
+    public void close() throws IOException {
+        synchronized (writers) {
+            List<Closeable> open = new ArrayList<>(writers);
+            for (IndexWriter writer : writers) {
+                open.add(writer.getDirectory());
+            }
+            writers.clear();
+            IOUtils.close(open);
+        }
+        IOUtils.rm(tempRoot);
+    }
+
+    /** Crea el directorio temporal de las partes junto a {@code indexPath}. */
+    static Path createTempRoot(Path indexPath) throws IOException {
+        Path parent = indexPath.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        return Files.createTempDirectory(parent, "bulk-");
+    }
+}
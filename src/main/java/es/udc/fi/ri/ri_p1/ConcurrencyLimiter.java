@@ -0,0 +1,158 @@
+package es.udc.fi.ri.ri_p1;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Límite adaptativo de páginas en vuelo (AIMD). Sustituye al número fijo de -maxInFlight: cada
+ * respuesta aporta una muestra con lo que tardó el servidor en contestar y si falló, y el límite
+ * sube de uno en uno mientras las respuestas llegan rápidas y se reduce un 10 % cuando hay errores
+ * o la latencia supera el doble de la de referencia. La referencia es la latencia mínima de las
+ * últimas muestras, así que sigue los cambios de la red sin que un servidor lento la desplace.
+ *
+ * <p>{@link #acquire()} bloquea mientras el límite esté alcanzado. Quien lee los ficheros .url o
+ * la frontera espera ahí, de modo que nunca hay más tareas pendientes en el pool que el límite
+ * actual.
+ *
+ * <p>Cada cierto tiempo se guarda el límite en un historial, para ver en qué valor se estabiliza.
+ */
+class ConcurrencyLimiter {
+
+    // Reducción multiplicativa ante sobrecarga
+    private static final double BACKOFF = 0.9;
+    // Latencia, respecto a la de referencia, a partir de la cual se considera que hay cola
+    private static final double LATENCY_TOLERANCE = 2.0;
+    // Muestras tras las que la latencia de referencia se renueva con el mínimo de la ventana
+    private static final int BASELINE_WINDOW = 500;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private double limit;
+    private int inFlight;
+    private long baselineNanos = Long.MAX_VALUE;
+    private long windowMinNanos = Long.MAX_VALUE;
+    private int windowSamples;
+    private int samplesSinceDecrease;
+    private long overloadSamples;
+    private final long startNanos = System.nanoTime();
+    // Muestras del historial: {milisegundos desde el inicio, límite, páginas en vuelo}
+    private final List<long[]> history = new ArrayList<>();
+
+    /**
+     * @param initialLimit límite con el que se empieza
+     * @param minLimit el límite nunca baja de aquí
+     * @param maxLimit ni sube de aquí; si es igual que {@code minLimit} el límite es fijo
+     */
+    ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit) {
+        if (minLimit < 1 || minLimit > maxLimit || initialLimit < minLimit || initialLimit > maxLimit) {
+            throw new IllegalArgumentException("límites de concurrencia no válidos: inicial " + initialLimit
+                    + ", mínimo " + minLimit + ", máximo " + maxLimit);
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = initialLimit;
+    }
+
+    /** Límite fijo, como el antiguo semáforo de -maxInFlight. */
+    static ConcurrencyLimiter fixed(int limit) {
+        return new ConcurrencyLimiter(limit, limit, limit);
+    }
+
+    /** Espera a que haya sitio bajo el límite actual y ocupa una plaza. */
+    synchronized void acquire() throws InterruptedException {
+        while (inFlight >= (int) limit) {
+            wait();
+        }
+        inFlight++;
+    }
+
+    /** Libera la plaza de una página terminada. */
+    synchronized void release() {
+        inFlight--;
+        notifyAll();
+    }
+
+    /** Espera a que terminen todas las páginas en vuelo. */
+    synchronized void awaitIdle() throws InterruptedException {
+        while (inFlight > 0) {
+            wait();
+        }
+    }
+
+    synchronized boolean isIdle() {
+        return inFlight == 0;
+    }
+
+    /**
+     * Ajusta el límite con una respuesta.
+     *
+     * @param latencyNanos tiempo hasta recibir las cabeceras, que no depende del tamaño de la página
+     * @param failed la petición falló o el servidor indicó sobrecarga (429, 5xx)
+     */
+    synchronized void onSample(long latencyNanos, boolean failed) {
+        if (minLimit == maxLimit) {
+            return;
+        }
+        if (!failed) {
+            windowMinNanos = Math.min(windowMinNanos, latencyNanos);
+            baselineNanos = Math.min(baselineNanos, latencyNanos);
+            if (++windowSamples >= BASELINE_WINDOW) {
+                baselineNanos = windowMinNanos;
+                windowMinNanos = Long.MAX_VALUE;
+                windowSamples = 0;
+            }
+        }
+        samplesSinceDecrease++;
+        if (failed || latencyNanos > LATENCY_TOLERANCE * baselineNanos) {
+            overloadSamples++;
+            // Como mucho una reducción por cada "ronda" de peticiones, para que una ráfaga de errores
+            // no hunda el límite de golpe
+            if (samplesSinceDecrease >= limit) {
+                limit = Math.max(minLimit, limit * BACKOFF);
+                samplesSinceDecrease = 0;
+            }
+        } else if (inFlight * 2 >= limit) {
+            // Solo crece si el límite se está aprovechando; +1 por cada ronda completa sin problemas
+            limit = Math.min(maxLimit, limit + 1.0 / limit);
+            notifyAll();
+        }
+    }
+
+    synchronized int limit() {
+        return (int) limit;
+    }
+
+    synchronized int inFlight() {
+        return inFlight;
+    }
+
+    /** Añade al historial el límite y las páginas en vuelo actuales. */
+    synchronized void sample() {
+        history.add(new long[] {TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos), (long) limit,
+                inFlight});
+    }
+
+    /** Resumen del historial, con como mucho {@code maxPoints} puntos de la evolución del límite. */
+    synchronized void print(int maxPoints) {
+        sample();
+        long min = Long.MAX_VALUE;
+        long max = 0;
+        long sum = 0;
+        for (long[] point : history) {
+            min = Math.min(min, point[1]);
+            max = Math.max(max, point[1]);
+            sum += point[1];
+        }
+        System.out.println(String.format("Concurrencia: límite final %d (mín %d, máx %d, media %.1f entre %d y %d), "
+                        + "%d respuestas lentas o con error", (int) limit, min, max, (double) sum / history.size(),
+                minLimit, maxLimit, overloadSamples));
+        int step = Math.max(1, (history.size() + maxPoints - 1) / maxPoints);
+        StringBuilder line = new StringBuilder("  límite en el tiempo:");
+        for (int i = 0; i < history.size(); i += step) {
+            long[] point = history.get(i);
+            line.append(String.format(" %ds=%d", point[0] / 1000, point[1]));
+        }
+        System.out.println(line);
+    }
+}
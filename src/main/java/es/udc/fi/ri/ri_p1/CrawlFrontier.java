@@ -0,0 +1,174 @@
+package es.udc.fi.ri.ri_p1;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Frontera del crawl: URLs descubiertas en las páginas descargadas pendientes de visitar.
+ *
+ * <p>Las URLs ya vistas se descartan con un {@link ConcurrentBloomFilter} y el número de páginas
+ * por host con contadores atómicos, de modo que {@link #offer} no bloquea a los hilos que extraen
+ * enlaces. La cola en memoria está acotada: cuando se llena, las nuevas entradas se vuelcan a un
+ * fichero en disco y se recuperan cuando la cola se vacía.
+ */
+class CrawlFrontier implements Closeable {
+
+    /** URL pendiente de visitar. */
+    static class Entry {
+        final String url;
+        final String key;
+        final int depth;
+        final Path urlFile;
+
+        Entry(String url, String key, int depth, Path urlFile) {
+            this.url = url;
+            this.key = key;
+            this.depth = depth;
+            this.urlFile = urlFile;
+        }
+    }
+
+    private final int maxDepth;
+    private final int maxPagesPerHost;
+    private final int memoryCapacity;
+    private final ConcurrentBloomFilter seen;
+    private final Map<String, AtomicInteger> pagesPerHost = new ConcurrentHashMap<>();
+    private final LinkedBlockingQueue<Entry> memory = new LinkedBlockingQueue<>();
+
+    private final Path spillFile;
+    private final Object spillLock = new Object();
+    private BufferedWriter spillWriter;
+    private BufferedReader spillReader;
+    private final AtomicLong spilled = new AtomicLong();
+
+    CrawlFrontier(int maxDepth, int maxPagesPerHost, int memoryCapacity, long expectedUrls, Path spillFile) {
+        this.maxDepth = maxDepth;
+        this.maxPagesPerHost = maxPagesPerHost;
+        this.memoryCapacity = memoryCapacity;
+        this.seen = new ConcurrentBloomFilter(expectedUrls, 0.01);
+        this.spillFile = spillFile;
+    }
+
+    int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /** Marca como vista una URL de los ficheros .url y la cuenta en el cupo de su host. */
+    void addSeed(String key) {
+        seen.add(key);
+        String host = host(key);
+        if (host != null) {
+            pagesPerHost.computeIfAbsent(host, h -> new AtomicInteger()).incrementAndGet();
+        }
+    }
+
+    /**
+     * Añade una URL descubierta (ya canónica en {@code key}) si no supera la profundidad máxima, no
+     * se ha visto antes y su host no ha agotado su cupo de páginas.
+     */
+    boolean offer(String url, String key, int depth, Path urlFile) throws IOException {
+        if (depth > maxDepth) {
+            return false;
+        }
+        String host = host(key);
+        if (host == null || seen.mightContain(key)) {
+            return false;
+        }
+        AtomicInteger hostPages = pagesPerHost.computeIfAbsent(host, h -> new AtomicInteger());
+        if (hostPages.incrementAndGet() > maxPagesPerHost) {
+            hostPages.decrementAndGet();
+            return false;
+        }
+        if (!seen.add(key)) {
+            hostPages.decrementAndGet(); // Otro hilo la añadió a la vez
+            return false;
+        }
+        Entry entry = new Entry(url, key, depth, urlFile);
+        if (memory.size() < memoryCapacity) {
+            memory.add(entry);
+        } else {
+            spill(entry);
+        }
+        return true;
+    }
+
+    /**
+     * Devuelve la siguiente URL pendiente, esperando como mucho {@code timeout} si no hay ninguna.
+     */
+    Entry poll(long timeout, TimeUnit unit) throws IOException, InterruptedException {
+        Entry entry = memory.poll();
+        if (entry == null && spilled.get() > 0) {
+            refill();
+            entry = memory.poll();
+        }
+        return entry != null ? entry : memory.poll(timeout, unit);
+    }
+
+    boolean isEmpty() {
+        return memory.isEmpty() && spilled.get() == 0;
+    }
+
+    private void spill(Entry entry) throws IOException {
+        synchronized (spillLock) {
+            if (spillWriter == null) {
+                spillWriter = Files.newBufferedWriter(spillFile, StandardCharsets.UTF_8);
+            }
+            spillWriter.write(entry.depth + "\t" + entry.urlFile + "\t" + entry.key + "\t" + entry.url);
+            spillWriter.newLine();
+            spilled.incrementAndGet();
+        }
+    }
+
+    /** Recupera del fichero de desbordamiento hasta la mitad de la capacidad de la cola. */
+    private void refill() throws IOException {
+        synchronized (spillLock) {
+            spillWriter.flush();
+            if (spillReader == null) {
+                spillReader = Files.newBufferedReader(spillFile, StandardCharsets.UTF_8);
+            }
+            int count = 0;
+            String line;
+            while (count < Math.max(1, memoryCapacity / 2) && spilled.get() > 0
+                    && (line = spillReader.readLine()) != null) {
+                String[] cols = line.split("\t", 4);
+                memory.add(new Entry(cols[3], cols[2], Integer.parseInt(cols[0]), Paths.get(cols[1])));
+                spilled.decrementAndGet();
+                count++;
+            }
+        }
+    }
+
+    private static String host(String url) {
+        try {
+            return URI.create(url).getHost();
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (spillLock) {
+            if (spillWriter != null) {
+                spillWriter.close();
+            }
+            if (spillReader != null) {
+                spillReader.close();
+            }
+            Files.deleteIfExists(spillFile);
+        }
+    }
+}
@@ -0,0 +1,341 @@
+package es.udc.fi.ri.ri_p1;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Métricas del crawl por etapa: histogramas de latencia de descarga, parseo, escritura de ficheros
+ * .loc, construcción del documento e indexación, y contadores de códigos de estado, redirecciones,
+ * bytes descargados y documentos indexados. Permiten ver si una ejecución está limitada por la
+ * red, por jsoup o por Lucene.
+ *
+ * <p>Todas las operaciones de registro son sin bloqueos ({@link LongAdder}), así que se pueden
+ * llamar desde cualquier hilo del pipeline.
+ */
+class CrawlMetrics implements CrawlMetricsMXBean {
+
+    /** Etapas del pipeline de una página, más los checkpoints periódicos del índice. */
+    enum Stage {
+        FETCH, PARSE, LOC_WRITE, BUILD, INDEX, COMMIT
+    }
+
+    /**
+     * Histograma de latencias con cubetas de potencias de dos en microsegundos: la cubeta i cuenta
+     * las muestras en [2^(i-1), 2^i) µs. Los percentiles se aproximan por el límite superior.
+     */
+    static class Histogram {
+        private static final int BUCKETS = 40;
+        private final LongAdder[] buckets = new LongAdder[BUCKETS];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        Histogram() {
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long nanos) {
+            long micros = Math.max(0, nanos / 1000);
+            buckets[Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros))].increment();
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+        }
+
+        long count() {
+            return count.sum();
+        }
+
+        double meanMillis() {
+            long n = count.sum();
+            return n == 0 ? 0 : totalNanos.sum() / 1e6 / n;
+        }
+
+        double maxMillis() {
+            return maxNanos.get() / 1e6;
+        }
+
+        double percentileMillis(double q) {
+            long n = count.sum();
+            if (n == 0) {
+                return 0;
+            }
+            long threshold = (long) Math.ceil(q * n);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets[i].sum();
+                if (seen >= threshold) {
+                    return Math.min((1L << i) / 1000.0, maxMillis());
+                }
+            }
+            return maxMillis();
+        }
+    }
+
+    private final Map<Stage, Histogram> stages = new EnumMap<>(Stage.class);
+    private final Map<Integer, LongAdder> statusCodes = new ConcurrentHashMap<>();
+    private final LongAdder redirects = new LongAdder();
+    private final LongAdder bytesFetched = new LongAdder();
+    private final LongAdder documentsIndexed = new LongAdder();
+    private final LongAdder truncatedPages = new LongAdder();
+    private final LongAdder skippedPages = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder failedPages = new LongAdder();
+    private final long startMillis = System.currentTimeMillis();
+    private volatile ConcurrencyLimiter concurrency;
+
+    CrawlMetrics() {
+        for (Stage stage : Stage.values()) {
+            stages.put(stage, new Histogram());
+        }
+    }
+
+    void record(Stage stage, long startNanos) {
+        stages.get(stage).record(System.nanoTime() - startNanos);
+    }
+
+    void status(int code) {
+        statusCodes.computeIfAbsent(code, k -> new LongAdder()).increment();
+    }
+
+    void redirect() {
+        redirects.increment();
+    }
+
+    void bytesFetched(long bytes) {
+        bytesFetched.add(bytes);
+    }
+
+    void documentIndexed() {
+        documentsIndexed.increment();
+    }
+
+    /** Página cortada al superar el tamaño máximo. */
+    void truncated() {
+        truncatedPages.increment();
+    }
+
+    /** Respuesta descartada por no ser HTML. */
+    void skipped() {
+        skippedPages.increment();
+    }
+
+    /** Reintento de una petición tras un fallo transitorio. */
+    void retry() {
+        retries.increment();
+    }
+
+    /** URL que no se pudo descargar o indexar y va al fichero de fallidas. */
+    void deadLettered() {
+        failedPages.increment();
+    }
+
+    /** Incluye en las métricas el límite de concurrencia y las páginas en vuelo. */
+    void trackConcurrency(ConcurrencyLimiter limiter) {
+        concurrency = limiter;
+    }
+
+    long elapsedMillis() {
+        return System.currentTimeMillis() - startMillis;
+    }
+
+    /** Publica las métricas por JMX como es.udc.fi.ri.ri_p1:type=CrawlMetrics. */
+    void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                    new ObjectName("es.udc.fi.ri.ri_p1:type=CrawlMetrics"));
+        } catch (JMException e) {
+            System.out.println("No se pudieron publicar las métricas por JMX: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public long getDocumentsIndexed() {
+        return documentsIndexed.sum();
+    }
+
+    @Override
+    public long getBytesFetched() {
+        return bytesFetched.sum();
+    }
+
+    @Override
+    public long getRedirects() {
+        return redirects.sum();
+    }
+
+    @Override
+    public long getTruncatedPages() {
+        return truncatedPages.sum();
+    }
+
+    @Override
+    public long getSkippedPages() {
+        return skippedPages.sum();
+    }
+
+    @Override
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    @Override
+    public long getFailedPages() {
+        return failedPages.sum();
+    }
+
+    @Override
+    public int getConcurrencyLimit() {
+        ConcurrencyLimiter limiter = concurrency;
+        return limiter == null ? 0 : limiter.limit();
+    }
+
+    @Override
+    public int getInFlight() {
+        ConcurrencyLimiter limiter = concurrency;
+        return limiter == null ? 0 : limiter.inFlight();
+    }
+
+    @Override
+    public Map<String, Long> getStatusCodes() {
+        Map<String, Long> codes = new TreeMap<>();
+        statusCodes.forEach((code, n) -> codes.put(String.valueOf(code), n.sum()));
+        return codes;
+    }
+
+    @Override
+    public Map<String, Double> getStageMeanMillis() {
+        Map<String, Double> means = new LinkedHashMap<>();
+        stages.forEach((stage, h) -> means.put(stage.name(), h.meanMillis()));
+        return means;
+    }
+
+    @Override
+    public Map<String, Double> getStageP99Millis() {
+        Map<String, Double> p99 = new LinkedHashMap<>();
+        stages.forEach((stage, h) -> p99.put(stage.name(), h.percentileMillis(0.99)));
+        return p99;
+    }
+
+    @Override
+    public String getSnapshotJson() {
+        StringBuilder json = new StringBuilder("{");
+        json.append("\"elapsedMillis\":").append(elapsedMillis());
+        json.append(",\"documentsIndexed\":").append(getDocumentsIndexed());
+        json.append(",\"bytesFetched\":").append(getBytesFetched());
+        json.append(",\"redirects\":").append(getRedirects());
+        json.append(",\"truncatedPages\":").append(getTruncatedPages());
+        json.append(",\"skippedPages\":").append(getSkippedPages());
+        json.append(",\"retries\":").append(getRetries());
+        json.append(",\"failedPages\":").append(getFailedPages());
+        json.append(",\"concurrencyLimit\":").append(getConcurrencyLimit());
+        json.append(",\"inFlight\":").append(getInFlight());
+        json.append(",\"statusCodes\":{");
+        String sep = "";
+        for (Map.Entry<String, Long> e : getStatusCodes().entrySet()) {
+            json.append(sep).append('"').append(e.getKey()).append("\":").append(e.getValue());
+            sep = ",";
+        }
+        json.append("},\"stages\":{");
+        sep = "";
+        for (Map.Entry<Stage, Histogram> e : stages.entrySet()) {
+            Histogram h = e.getValue();
+            json.append(sep).append('"').append(e.getKey().name()).append("\":{")
+                    .append(String.format(Locale.ROOT,
+                            "\"count\":%d,\"meanMs\":%.3f,\"p50Ms\":%.3f,\"p90Ms\":%.3f,\"p99Ms\":%.3f,\"maxMs\":%.3f}",
+                            h.count(), h.meanMillis(), h.percentileMillis(0.5), h.percentileMillis(0.9),
+                            h.percentileMillis(0.99), h.maxMillis()));
+            sep = ",";
+        }
+        return json.append("}}").toString();
+    }
+
+    /**
+     * Guarda una instantánea en {@code file}: si termina en .csv se añade una fila a la serie
+     * temporal, con los mismos contadores y percentiles que el JSON salvo los códigos de estado,
+     * que no tienen columnas fijas; en otro caso se sobrescribe con la instantánea en JSON. Un CSV
+     * con otras columnas (de una versión anterior) se aparta a {@code <fichero>.old} y se empieza
+     * uno nuevo, para no mezclar filas que no encajan con la cabecera.
+     */
+    void writeSnapshot(Path file) throws IOException {
+        if (file.toString().endsWith(".csv")) {
+            String header = csvHeader();
+            boolean writeHeader = !Files.exists(file);
+            if (!writeHeader && !header.equals(firstLine(file))) {
+                Files.move(file, file.resolveSibling(file.getFileName() + ".old"), StandardCopyOption.REPLACE_EXISTING);
+                writeHeader = true;
+            }
+            try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                if (writeHeader) {
+                    writer.write(header);
+                    writer.newLine();
+                }
+                writer.write(elapsedMillis() + "," + getDocumentsIndexed() + "," + getBytesFetched() + "," + getRedirects()
+                        + "," + getTruncatedPages() + "," + getSkippedPages() + "," + getRetries() + ","
+                        + getFailedPages() + "," + getConcurrencyLimit() + "," + getInFlight());
+                for (Histogram h : stages.values()) {
+                    writer.write(String.format(Locale.ROOT, ",%d,%.3f,%.3f,%.3f,%.3f,%.3f",
+                            h.count(), h.meanMillis(), h.percentileMillis(0.5), h.percentileMillis(0.9),
+                            h.percentileMillis(0.99), h.maxMillis()));
+                }
+                writer.newLine();
+            }
+        } else {
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            Files.writeString(tmp, getSnapshotJson(), StandardCharsets.UTF_8);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    private static String csvHeader() {
+        StringBuilder header = new StringBuilder("elapsedMillis,documentsIndexed,bytesFetched,redirects,"
+                + "truncatedPages,skippedPages,retries,failedPages,concurrencyLimit,inFlight");
+        for (Stage stage : Stage.values()) {
+            for (String column : new String[] {"count", "meanMs", "p50Ms", "p90Ms", "p99Ms", "maxMs"}) {
+                header.append(',').append(stage).append('_').append(column);
+            }
+        }
+        return header.toString();
+    }
+
+    private static String firstLine(Path file) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            return reader.readLine();
+        }
+    }
+
+    /** Resumen legible para el final de la ejecución. */
+    void print() {
+        System.out.println(getDocumentsIndexed() + " documentos indexados, " + getBytesFetched() / 1024
+                + " KB descargados, " + getRedirects() + " redirecciones, " + getTruncatedPages()
+                + " páginas truncadas, " + getSkippedPages() + " respuestas no HTML descartadas, "
+                + getRetries() + " reintentos, " + getFailedPages() + " URLs fallidas, códigos "
+                + getStatusCodes());
+        for (Map.Entry<Stage, Histogram> e : stages.entrySet()) {
+            Histogram h = e.getValue();
+            System.out.println(String.format("  %-9s n=%d media=%.1f ms p50=%.1f ms p99=%.1f ms máx=%.1f ms",
+                    e.getKey(), h.count(), h.meanMillis(), h.percentileMillis(0.5), h.percentileMillis(0.99),
+                    h.maxMillis()));
+        }
+    }
+}
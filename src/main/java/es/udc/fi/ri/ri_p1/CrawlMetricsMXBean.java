@@ -0,0 +1,35 @@
+package es.udc.fi.ri.ri_p1;
+
+import java.util.Map;
+
+/** Vista JMX de las métricas de {@link CrawlMetrics}. */
+public interface CrawlMetricsMXBean {
+
+    long getDocumentsIndexed();
+
+    long getBytesFetched();
+
+    long getRedirects();
+
+    long getTruncatedPages();
+
+    long getSkippedPages();
+
+    long getRetries();
+
+    long getFailedPages();
+
+    int getConcurrencyLimit();
+
+    int getInFlight();
+
+    Map<String, Long> getStatusCodes();
+
+    /** Latencia media de cada etapa, en milisegundos. */
+    Map<String, Double> getStageMeanMillis();
+
+    /** Percentil 99 aproximado de cada etapa, en milisegundos. */
+    Map<String, Double> getStageP99Millis();
+
+    String getSnapshotJson();
+}
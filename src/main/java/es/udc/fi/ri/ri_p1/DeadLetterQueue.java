@@ -0,0 +1,114 @@
+package es.udc.fi.ri.ri_p1;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Fichero de URLs que no se pudieron descargar o indexar (docs/dead-letter.tsv), con el fichero
+ * .url del que venían y el motivo, para volver a intentarlas más tarde con {@code
+ * -retryDeadLetters}. Cada fallo se añade en cuanto se produce.
+ *
+ * <p>Al reintentar, las entradas se pasan antes a un fichero aparte que se borra al terminar; si la
+ * ejecución se interrumpe, la siguiente lo vuelve a juntar con el principal y no se pierde ninguna.
+ */
+class DeadLetterQueue implements Closeable {
+
+    static final String FILE_NAME = "dead-letter.tsv";
+
+    /** URL fallida. */
+    static class Entry {
+        final String url;
+        final Path urlFile;
+        final String reason;
+
+        Entry(String url, Path urlFile, String reason) {
+            this.url = url;
+            this.urlFile = urlFile;
+            this.reason = reason;
+        }
+    }
+
+    private final Path file;
+    private final Path retrying;
+    private BufferedWriter writer;
+    private int added;
+
+    private DeadLetterQueue(Path file) throws IOException {
+        this.file = file;
+        this.retrying = file.resolveSibling(file.getFileName() + ".retrying");
+        // Entradas de un reintento que no llegó a terminar
+        if (Files.exists(retrying)) {
+            List<String> lines = Files.readAllLines(retrying, StandardCharsets.UTF_8);
+            Files.write(file, lines, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            Files.delete(retrying);
+        }
+        this.writer = openWriter(file);
+    }
+
+    private static BufferedWriter openWriter(Path file) throws IOException {
+        return Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND);
+    }
+
+    static DeadLetterQueue open(Path file) throws IOException {
+        return new DeadLetterQueue(file);
+    }
+
+    /**
+     * Saca todas las entradas para reintentarlas, una por URL (la más reciente). Las que vuelvan a
+     * fallar se añadirán de nuevo con {@link #add}.
+     */
+    synchronized List<Entry> drain() throws IOException {
+        writer.close();
+        Files.move(file, retrying, StandardCopyOption.REPLACE_EXISTING);
+        writer = openWriter(file);
+        Map<String, Entry> entries = new LinkedHashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(retrying, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] cols = line.split("\t", 3);
+                if (cols.length == 3) { // Una última línea a medias no cuenta
+                    entries.put(cols[0], new Entry(cols[0], Path.of(cols[1]), cols[2]));
+                }
+            }
+        }
+        return new ArrayList<>(entries.values());
+    }
+
+    /** Anota una URL fallida y la escribe en disco inmediatamente. */
+    synchronized void add(String url, Path urlFile, String reason) {
+        try {
+            writer.write(url + "\t" + urlFile + "\t" + reason.replaceAll("[\\t\\r\\n]+", " "));
+            writer.newLine();
+            writer.flush();
+            added++;
+        } catch (IOException e) {
+            System.out.println("No se pudo anotar " + url + " en " + file + ": " + e.getMessage());
+        }
+    }
+
+    synchronized int added() {
+        return added;
+    }
+
+    /** Cierra el fichero; las entradas reintentadas ya están de vuelta en él si volvieron a fallar. */
+    @Override
+    public synchronized void close() throws IOException {
+        writer.close();
+        Files.deleteIfExists(retrying);
+        if (Files.exists(file) && Files.size(file) == 0) {
+            Files.delete(file);
+        }
+    }
+}
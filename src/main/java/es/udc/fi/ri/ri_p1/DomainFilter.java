@@ -0,0 +1,140 @@
+package es.udc.fi.ri.ri_p1;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Filtro de dominios de las propiedades {@code onlyDoms} (lista de admitidos) y {@code denyDoms}
+ * (lista de excluidos, que tiene prioridad). Cada entrada puede ser:
+ * <ul>
+ *   <li>{@code udc.es}: el host udc.es y todos sus subdominios.</li>
+ *   <li>{@code *.udc.es} o {@code .udc.es}: solo los subdominios de udc.es (p.ej. {@code .es}
+ *       admite cualquier host bajo el dominio es).</li>
+ * </ul>
+ *
+ * <p>Las entradas se compilan en un trie de etiquetas recorrido desde el dominio de primer nivel,
+ * de modo que comprobar un host cuesta lo mismo con diez dominios que con decenas de miles. Se
+ * compara con el host de la URL, no con la URL entera, así que {@code evil-udc.es.example.com} no
+ * pasa por {@code udc.es}.
+ */
+class DomainFilter {
+
+    /** Nodo del trie: una etiqueta del dominio, recorridas de derecha a izquierda. */
+    private static class Node {
+        final Map<String, Node> children = new HashMap<>();
+        boolean matchesSelf;
+        boolean matchesSubdomains;
+    }
+
+    private final Node allow;
+    private final Node deny;
+
+    private DomainFilter(Node allow, Node deny) {
+        this.allow = allow;
+        this.deny = deny;
+    }
+
+    /** Construye el filtro a partir de las propiedades onlyDoms y denyDoms (ambas opcionales). */
+    static DomainFilter fromProperties(Properties properties) {
+        return new DomainFilter(compile(properties.getProperty("onlyDoms")), compile(properties.getProperty("denyDoms")));
+    }
+
+    static DomainFilter of(String onlyDoms, String denyDoms) {
+        return new DomainFilter(compile(onlyDoms), compile(denyDoms));
+    }
+
+    /** Comprueba si el host de la URL pasa el filtro. Las URLs sin host se rechazan. */
+    boolean accepts(String url) {
+        String host = host(url);
+        if (host == null) {
+            return false;
+        }
+        if (deny != null && matches(deny, host)) {
+            return false;
+        }
+        return allow == null || matches(allow, host);
+    }
+
+    private static Node compile(String domains) {
+        if (domains == null || domains.isBlank()) {
+            return null;
+        }
+        Node root = new Node();
+        for (String entry : domains.trim().split("[\\s,]+")) {
+            String domain = entry.toLowerCase(Locale.ROOT);
+            boolean subdomainsOnly = false;
+            if (domain.startsWith("*.")) {
+                domain = domain.substring(2);
+                subdomainsOnly = true;
+            } else if (domain.startsWith(".")) {
+                domain = domain.substring(1);
+                subdomainsOnly = true;
+            }
+            if (domain.endsWith(".")) {
+                domain = domain.substring(0, domain.length() - 1);
+            }
+            if (domain.isEmpty()) {
+                continue;
+            }
+            Node node = root;
+            String[] labels = domain.split("\\.");
+            for (int i = labels.length - 1; i >= 0; i--) {
+                node = node.children.computeIfAbsent(labels[i], k -> new Node());
+            }
+            node.matchesSubdomains = true;
+            if (!subdomainsOnly) {
+                node.matchesSelf = true;
+            }
+        }
+        return root;
+    }
+
+    private static boolean matches(Node root, String host) {
+        Node node = root;
+        int end = host.length();
+        while (end > 0) {
+            int dot = host.lastIndexOf('.', end - 1);
+            node = node.children.get(host.substring(dot + 1, end));
+            if (node == null) {
+                return false;
+            }
+            if (dot < 0) {
+                return node.matchesSelf; // Se ha consumido el host entero
+            }
+            if (node.matchesSubdomains) {
+                return true;
+            }
+            end = dot;
+        }
+        return false;
+    }
+
+    /** Extrae el host (en minúsculas, sin usuario ni puerto) de una URL absoluta. */
+    static String host(String url) {
+        int start = url.indexOf("://");
+        if (start < 0) {
+            return null;
+        }
+        start += 3;
+        int end = start;
+        while (end < url.length()) {
+            char c = url.charAt(end);
+            if (c == '/' || c == '?' || c == '#') {
+                break;
+            }
+            end++;
+        }
+        String authority = url.substring(start, end);
+        authority = authority.substring(authority.lastIndexOf('@') + 1);
+        int colon = authority.lastIndexOf(':');
+        if (colon >= 0 && authority.indexOf(']') < colon) {
+            authority = authority.substring(0, colon);
+        }
+        if (authority.endsWith(".")) {
+            authority = authority.substring(0, authority.length() - 1);
+        }
+        return authority.isEmpty() ? null : authority.toLowerCase(Locale.ROOT);
+    }
+}
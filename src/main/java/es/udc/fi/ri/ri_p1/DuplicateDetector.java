@@ -0,0 +1,171 @@
+package es.udc.fi.ri.ri_p1;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Detecta páginas duplicadas a partir de la huella de su texto extraído (título + cuerpo): un hash
+ * exacto SHA-256 y una firma SimHash de 64 bits para los casi duplicados.
+ *
+ * <p>Dos firmas se consideran casi duplicadas si difieren en como mucho {@link #MAX_DISTANCE} bits.
+ * Para no compararlas todas entre sí, la firma se parte en {@code MAX_DISTANCE + 1} bandas de 16
+ * bits: dos firmas a esa distancia comparten necesariamente al menos una banda, así que solo se
+ * comparan las que caen en la misma.
+ *
+ * <p>Los textos de menos de {@link #MIN_TOKENS} palabras no tienen firma ({@link #NO_SIMHASH}): con
+ * tan pocos votos las firmas de páginas distintas (o vacías, que dan todas 0) caen a menos de
+ * {@code MAX_DISTANCE} bits, así que de ellos solo se detectan los duplicados exactos.
+ */
+class DuplicateDetector {
+
+    static final int MAX_DISTANCE = 3;
+    static final int MIN_TOKENS = 16;
+    static final long NO_SIMHASH = 0;
+    private static final int BANDS = 4;
+
+    /** Huella de una página registrada. */
+    private static class Signature {
+        final String key;
+        final String contentHash;
+        final long simHash;
+
+        Signature(String key, String contentHash, long simHash) {
+            this.key = key;
+            this.contentHash = contentHash;
+            this.simHash = simHash;
+        }
+    }
+
+    private final Map<String, String> keysByHash = new HashMap<>();
+    private final Map<Integer, List<Signature>> bands = new HashMap<>();
+    private final Map<String, Signature> byKey = new HashMap<>();
+    private long duplicateDocs;
+    private long duplicateBytes;
+
+    /**
+     * Busca una página ya registrada, distinta de {@code key}, que sea duplicada exacta o casi
+     * duplicada. Si la encuentra devuelve su clave y contabiliza {@code bytes} como ahorrados; si
+     * no, registra la página (sustituyendo su huella anterior) y devuelve null.
+     */
+    synchronized String findOrRegister(String key, String contentHash, long simHash, long bytes) {
+        String original = keysByHash.get(contentHash);
+        if (original == null || original.equals(key)) {
+            original = null;
+            for (int band = 0; band < BANDS && original == null && simHash != NO_SIMHASH; band++) {
+                for (Signature candidate : bands.getOrDefault(bandKey(band, simHash), List.of())) {
+                    if (!candidate.key.equals(key)
+                            && Long.bitCount(candidate.simHash ^ simHash) <= MAX_DISTANCE) {
+                        original = candidate.key;
+                        break;
+                    }
+                }
+            }
+        }
+        if (original != null) {
+            duplicateDocs++;
+            duplicateBytes += bytes;
+            return original;
+        }
+        register(key, contentHash, simHash);
+        return null;
+    }
+
+    /** Registra la huella de una página, p.ej. al cargar las del índice existente. */
+    synchronized void register(String key, String contentHash, long simHash) {
+        Signature previous = byKey.remove(key);
+        if (previous != null) {
+            keysByHash.remove(previous.contentHash, key);
+            for (int band = 0; band < BANDS && previous.simHash != NO_SIMHASH; band++) {
+                List<Signature> bucket = bands.get(bandKey(band, previous.simHash));
+                if (bucket != null) {
+                    bucket.remove(previous);
+                }
+            }
+        }
+        Signature signature = new Signature(key, contentHash, simHash);
+        byKey.put(key, signature);
+        keysByHash.putIfAbsent(contentHash, key);
+        for (int band = 0; band < BANDS && simHash != NO_SIMHASH; band++) {
+            bands.computeIfAbsent(bandKey(band, simHash), k -> new ArrayList<>()).add(signature);
+        }
+    }
+
+    synchronized long getDuplicateDocs() {
+        return duplicateDocs;
+    }
+
+    synchronized long getDuplicateBytes() {
+        return duplicateBytes;
+    }
+
+    private static int bandKey(int band, long simHash) {
+        return (band << 16) | (int) ((simHash >>> (band * 16)) & 0xFFFF);
+    }
+
+    /** Hash SHA-256 (en hexadecimal) del texto extraído. */
+    static String contentHash(String title, String body) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(title.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) '\n');
+            digest.update(body.getBytes(StandardCharsets.UTF_8));
+            return LocFileSubscriber.toHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Firma SimHash de 64 bits del texto: cada palabra (en minúsculas) vota con su hash en cada uno
+     * de los 64 bits, y el bit de la firma es el signo de la suma de votos. Con menos de {@link
+     * #MIN_TOKENS} palabras devuelve {@link #NO_SIMHASH}.
+     */
+    static long simHash(String text) {
+        int[] votes = new int[64];
+        int tokens = 0;
+        int length = text.length();
+        int i = 0;
+        while (i < length) {
+            while (i < length && !Character.isLetterOrDigit(text.charAt(i))) {
+                i++;
+            }
+            long hash = 0xcbf29ce484222325L; // FNV-1a
+            boolean word = false;
+            while (i < length && Character.isLetterOrDigit(text.charAt(i))) {
+                hash ^= Character.toLowerCase(text.charAt(i));
+                hash *= 0x100000001b3L;
+                word = true;
+                i++;
+            }
+            if (word) {
+                tokens++;
+                hash = mix(hash);
+                for (int bit = 0; bit < 64; bit++) {
+                    votes[bit] += ((hash >>> bit) & 1) == 1 ? 1 : -1;
+                }
+            }
+        }
+        if (tokens < MIN_TOKENS) {
+            return NO_SIMHASH;
+        }
+        long simHash = 0;
+        for (int bit = 0; bit < 64; bit++) {
+            if (votes[bit] > 0) {
+                simHash |= 1L << bit;
+            }
+        }
+        return simHash;
+    }
+
+    /** Finalizador de SplitMix64, reparte mejor los bits del FNV. */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,141 @@
+package es.udc.fi.ri.ri_p1;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Metadatos de la última descarga de cada URL (ETag, Last-Modified, hash del contenido y fecha de
+ * descarga), persistidos entre ejecuciones en un fichero de texto con una URL por línea. Permiten
+ * hacer peticiones condicionales y no volver a parsear ni indexar las páginas que no han cambiado.
+ */
+class FetchMetadataStore {
+
+    static final String FILE_NAME = "fetch-metadata.tsv";
+
+    /** Metadatos de la última descarga correcta de una URL. */
+    static class Entry {
+        final String etag;
+        final String lastModified;
+        final String contentHash;
+        final long lastFetch;
+
+        Entry(String etag, String lastModified, String contentHash, long lastFetch) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.contentHash = contentHash;
+            this.lastFetch = lastFetch;
+        }
+
+        /** Construye la entrada a partir de las cabeceras de una respuesta 200. */
+        static Entry of(HttpHeaders headers, String contentHash) {
+            return new Entry(headers.firstValue("ETag").orElse(null),
+                    headers.firstValue("Last-Modified").orElse(null),
+                    contentHash, System.currentTimeMillis());
+        }
+
+        /** La misma entrada con la fecha de descarga actualizada. */
+        Entry touch() {
+            return new Entry(etag, lastModified, contentHash, System.currentTimeMillis());
+        }
+    }
+
+    private final Path file;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private FetchMetadataStore(Path file) {
+        this.file = file;
+    }
+
+    /** Carga el almacén desde {@code file}, o lo crea vacío si todavía no existe. */
+    static FetchMetadataStore load(Path file) throws IOException {
+        FetchMetadataStore store = new FetchMetadataStore(file);
+        if (Files.exists(file)) {
+            try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] cols = line.split("\t", -1);
+                    if (cols.length != 5) {
+                        continue; // Línea corrupta (p.ej. escritura interrumpida): se vuelve a descargar
+                    }
+                    store.entries.put(cols[0], new Entry(emptyToNull(cols[1]), emptyToNull(cols[2]),
+                            emptyToNull(cols[3]), Long.parseLong(cols[4])));
+                }
+            }
+        }
+        return store;
+    }
+
+    Entry get(String url) {
+        return entries.get(url);
+    }
+
+    void put(String url, Entry entry) {
+        entries.put(url, entry);
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * Añade If-None-Match / If-Modified-Since a la petición si se conoce una descarga anterior de
+     * la URL.
+     */
+    HttpRequest.Builder addConditionalHeaders(HttpRequest.Builder builder, String url) {
+        Entry entry = entries.get(url);
+        if (entry != null) {
+            if (entry.etag != null) {
+                builder.header("If-None-Match", entry.etag);
+            }
+            if (entry.lastModified != null) {
+                builder.header("If-Modified-Since", entry.lastModified);
+            }
+        }
+        return builder;
+    }
+
+    /** Copia del contenido actual, para guardarla más tarde con {@link #save(Map)}. */
+    Map<String, Entry> snapshot() {
+        return new HashMap<>(entries);
+    }
+
+    /** Escribe el almacén en un fichero temporal y lo mueve sobre el definitivo. */
+    void save() throws IOException {
+        save(entries);
+    }
+
+    /**
+     * Escribe una copia tomada con {@link #snapshot()}. Así se puede guardar justo lo que había
+     * antes de un commit del índice, sin incluir descargas posteriores que el commit no recoge.
+     */
+    void save(Map<String, Entry> snapshot) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Entry> e : snapshot.entrySet()) {
+                Entry entry = e.getValue();
+                writer.write(e.getKey() + "\t" + nullToEmpty(entry.etag) + "\t" + nullToEmpty(entry.lastModified)
+                        + "\t" + nullToEmpty(entry.contentHash) + "\t" + entry.lastFetch);
+                writer.newLine();
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static String emptyToNull(String s) {
+        return s.isEmpty() ? null : s;
+    }
+
+    private static String nullToEmpty(String s) {
+        return s == null ? "" : s.replace('\t', ' ').replace('\n', ' ');
+    }
+}
@@ -0,0 +1,556 @@
+package es.udc.fi.ri.ri_p1;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.ByteVectorValues;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.DocValuesType;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.Fields;
+import org.apache.lucene.index.FloatVectorValues;
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.PointValues;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.SegmentCommitInfo;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.index.SortedNumericDocValues;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.index.StoredFieldVisitor;
+import org.apache.lucene.index.StoredFields;
+import org.apache.lucene.index.TermVectors;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.index.VectorEncoding;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.FilterDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.util.UnicodeUtil;
+
+/**
+ * Informe del espacio que ocupa cada campo del índice, para comparar las opciones -storeBody y
+ * -bestCompression de WebIndexer: cuánto cuesta en disco almacenar el cuerpo frente a lo que tarda
+ * en leerse para mostrar un fragmento.
+ *
+ * <p>Lucene guarda todos los campos en los mismos ficheros, así que el reparto se mide así:
+ *
+ * <ul>
+ *   <li>Índice invertido, normas, doc values, puntos y vectores KNN: bytes leídos de disco al
+ *       recorrer por completo las estructuras de cada campo.
+ *   <li>Campos almacenados y vectores de términos: se comprimen por bloques con varios campos y
+ *       documentos, así que el tamaño real de sus ficheros se reparte en proporción a los bytes sin
+ *       comprimir de cada campo.
+ * </ul>
+ *
+ * Lo que no se puede atribuir a ningún campo (cabeceras, índice de términos en memoria, ficheros
+ * de borrados...) aparece como "sin asignar". Además se lista el tamaño por tipo de fichero y la
+ * latencia de leer el campo almacenado indicado en una muestra de documentos.
+ */
+public class FieldDiskUsage {
+
+    private static final String[] PARTS = {"almacenado", "invertido", "normas", "docValues", "puntos", "knn",
+            "vectores"};
+    private static final int STORED = 0;
+    private static final int POSTINGS = 1;
+    private static final int NORMS = 2;
+    private static final int DOC_VALUES = 3;
+    private static final int POINTS = 4;
+    private static final int KNN = 5;
+    private static final int TERM_VECTORS = 6;
+
+    private static final Set<String> STORED_EXTENSIONS = Set.of("fdt", "fdx", "fdm");
+    private static final Set<String> TERM_VECTOR_EXTENSIONS = Set.of("tvd", "tvx", "tvm");
+
+    public static void main(String[] args) throws IOException {
+        String usage = "Uso: java FieldDiskUsage -index <ruta del índice> [-field <campo almacenado>] [-samples <n>]";
+        String indexPath = null;
+        String field = "body";
+        int samples = 1000;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-index":
+                    indexPath = args[++i];
+                    break;
+                case "-field":
+                    field = args[++i];
+                    break;
+                case "-samples":
+                    samples = Integer.parseInt(args[++i]);
+                    break;
+                default:
+                    System.err.println(usage);
+                    System.exit(1);
+            }
+        }
+        if (indexPath == null) {
+            System.err.println(usage);
+            System.exit(1);
+        }
+
+        // Un índice repartido se mide parte a parte y se suman los resultados
+        List<Path> paths = IndexShards.shardPaths(Paths.get(indexPath));
+        if (paths.isEmpty()) {
+            paths = List.of(Paths.get(indexPath));
+        }
+        Map<String, long[]> byField = new TreeMap<>();
+        Map<String, Long> byExtension = new TreeMap<>();
+        for (Path path : paths) {
+            try (FSDirectory dir = FSDirectory.open(path);
+                 TrackingDirectory tracking = new TrackingDirectory(dir);
+                 DirectoryReader reader = DirectoryReader.open(tracking)) {
+                for (LeafReaderContext leaf : reader.leaves()) {
+                    analyzeSegment((SegmentReader) leaf.reader(), dir, tracking, byField, byExtension);
+                }
+            }
+        }
+        printFields(byField, byExtension);
+        printExtensions(byExtension);
+
+        try (IndexReader reader = IndexShards.openReader(Paths.get(indexPath))) {
+            printStoredLatency(reader, field, samples);
+        }
+    }
+
+    /** Suma al informe el tamaño de cada campo y de cada tipo de fichero de un segmento. */
+    private static void analyzeSegment(SegmentReader reader, Directory dir, TrackingDirectory tracking,
+                                       Map<String, long[]> byField, Map<String, Long> byExtension)
+            throws IOException {
+        Map<String, Long> files = segmentFiles(dir, reader.getSegmentInfo());
+        long storedBytes = 0;
+        long termVectorBytes = 0;
+        for (Map.Entry<String, Long> file : files.entrySet()) {
+            byExtension.merge(file.getKey(), file.getValue(), Long::sum);
+            if (STORED_EXTENSIONS.contains(file.getKey())) {
+                storedBytes += file.getValue();
+            } else if (TERM_VECTOR_EXTENSIONS.contains(file.getKey())) {
+                termVectorBytes += file.getValue();
+            }
+        }
+
+        // Comprimidos por bloques: se reparten en proporción al tamaño sin comprimir
+        apportion(byField, STORED, storedBytes, rawStoredBytes(reader));
+        if (termVectorBytes > 0) {
+            apportion(byField, TERM_VECTORS, termVectorBytes, rawTermVectorBytes(reader));
+        }
+
+        // El resto se mide por los bytes leídos al recorrer cada campo
+        for (FieldInfo info : reader.getFieldInfos()) {
+            long[] usage = byField.computeIfAbsent(info.name, name -> new long[PARTS.length]);
+            if (info.getIndexOptions() != IndexOptions.NONE) {
+                tracking.reset();
+                readPostings(reader.terms(info.name), info.getIndexOptions());
+                usage[POSTINGS] += tracking.bytesRead;
+            }
+            if (info.hasNorms()) {
+                tracking.reset();
+                readAll(reader.getNormValues(info.name));
+                usage[NORMS] += tracking.bytesRead;
+            }
+            if (info.getDocValuesType() != DocValuesType.NONE) {
+                tracking.reset();
+                readDocValues(reader, info);
+                usage[DOC_VALUES] += tracking.bytesRead;
+            }
+            if (info.getPointDimensionCount() > 0) {
+                tracking.reset();
+                readPoints(reader.getPointValues(info.name));
+                usage[POINTS] += tracking.bytesRead;
+            }
+            if (info.getVectorDimension() > 0) {
+                tracking.reset();
+                readVectors(reader, info);
+                usage[KNN] += tracking.bytesRead;
+            }
+        }
+    }
+
+    /** Tamaño de los ficheros del segmento por extensión, abriendo el fichero compuesto si lo hay. */
+    private static Map<String, Long> segmentFiles(Directory dir, SegmentCommitInfo segment) throws IOException {
+        Map<String, Long> sizes = new TreeMap<>();
+        for (String file : segment.files()) {
+            String extension = IndexFileNames.getExtension(file);
+            if (!"cfs".equals(extension) && !"cfe".equals(extension)) {
+                sizes.merge(extension, dir.fileLength(file), Long::sum);
+            }
+        }
+        if (segment.info.getUseCompoundFile()) {
+            try (Directory cfs = segment.info.getCodec().compoundFormat()
+                    .getCompoundReader(dir, segment.info, IOContext.READONCE)) {
+                for (String file : cfs.listAll()) {
+                    sizes.merge(IndexFileNames.getExtension(file), cfs.fileLength(file), Long::sum);
+                }
+            }
+        }
+        return sizes;
+    }
+
+    private static void apportion(Map<String, long[]> byField, int part, long total, Map<String, Long> raw) {
+        long rawTotal = raw.values().stream().mapToLong(Long::longValue).sum();
+        if (rawTotal == 0) {
+            return;
+        }
+        for (Map.Entry<String, Long> entry : raw.entrySet()) {
+            long[] usage = byField.computeIfAbsent(entry.getKey(), name -> new long[PARTS.length]);
+            usage[part] += Math.round((double) total * entry.getValue() / rawTotal);
+        }
+    }
+
+    /** Bytes sin comprimir de cada campo almacenado en el segmento. */
+    private static Map<String, Long> rawStoredBytes(SegmentReader reader) throws IOException {
+        Map<String, Long> raw = new TreeMap<>();
+        StoredFieldVisitor visitor = new StoredFieldVisitor() {
+            @Override
+            public Status needsField(FieldInfo fieldInfo) {
+                return Status.YES;
+            }
+
+            @Override
+            public void binaryField(FieldInfo fieldInfo, byte[] value) {
+                raw.merge(fieldInfo.name, (long) value.length, Long::sum);
+            }
+
+            @Override
+            public void stringField(FieldInfo fieldInfo, String value) {
+                raw.merge(fieldInfo.name, (long) UnicodeUtil.calcUTF16toUTF8Length(value, 0, value.length()),
+                        Long::sum);
+            }
+
+            @Override
+            public void intField(FieldInfo fieldInfo, int value) {
+                raw.merge(fieldInfo.name, (long) Integer.BYTES, Long::sum);
+            }
+
+            @Override
+            public void longField(FieldInfo fieldInfo, long value) {
+                raw.merge(fieldInfo.name, (long) Long.BYTES, Long::sum);
+            }
+
+            @Override
+            public void floatField(FieldInfo fieldInfo, float value) {
+                raw.merge(fieldInfo.name, (long) Float.BYTES, Long::sum);
+            }
+
+            @Override
+            public void doubleField(FieldInfo fieldInfo, double value) {
+                raw.merge(fieldInfo.name, (long) Double.BYTES, Long::sum);
+            }
+        };
+        StoredFields storedFields = reader.storedFields();
+        for (int doc = 0; doc < reader.maxDoc(); doc++) {
+            storedFields.document(doc, visitor);
+        }
+        return raw;
+    }
+
+    /** Peso sin comprimir de los vectores de términos de cada campo: bytes de los términos más apariciones. */
+    private static Map<String, Long> rawTermVectorBytes(SegmentReader reader) throws IOException {
+        Map<String, Long> raw = new TreeMap<>();
+        TermVectors termVectors = reader.termVectors();
+        for (int doc = 0; doc < reader.maxDoc(); doc++) {
+            Fields fields = termVectors.get(doc);
+            if (fields == null) {
+                continue;
+            }
+            for (String name : fields) {
+                TermsEnum terms = fields.terms(name).iterator();
+                long bytes = 0;
+                while (terms.next() != null) {
+                    bytes += terms.term().length + terms.totalTermFreq();
+                }
+                raw.merge(name, bytes, Long::sum);
+            }
+        }
+        return raw;
+    }
+
+    private static void readPostings(Terms terms, IndexOptions options) throws IOException {
+        if (terms == null) {
+            return;
+        }
+        int flags;
+        if (options.compareTo(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS_AND_OFFSETS) >= 0) {
+            flags = PostingsEnum.ALL;
+        } else if (options.compareTo(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS) >= 0) {
+            flags = PostingsEnum.POSITIONS;
+        } else if (options.compareTo(IndexOptions.DOCS_AND_FREQS) >= 0) {
+            flags = PostingsEnum.FREQS;
+        } else {
+            flags = PostingsEnum.NONE;
+        }
+        boolean positions = flags >= PostingsEnum.POSITIONS;
+        TermsEnum termsEnum = terms.iterator();
+        PostingsEnum postings = null;
+        while (termsEnum.next() != null) {
+            postings = termsEnum.postings(postings, flags);
+            while (postings.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+                if (positions) {
+                    for (int i = postings.freq(); i > 0; i--) {
+                        postings.nextPosition();
+                    }
+                }
+            }
+        }
+    }
+
+    private static void readAll(NumericDocValues values) throws IOException {
+        if (values == null) {
+            return;
+        }
+        while (values.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+            values.longValue();
+        }
+    }
+
+    private static void readDocValues(SegmentReader reader, FieldInfo info) throws IOException {
+        switch (info.getDocValuesType()) {
+            case NUMERIC:
+                readAll(reader.getNumericDocValues(info.name));
+                break;
+            case BINARY:
+                BinaryDocValues binary = reader.getBinaryDocValues(info.name);
+                while (binary.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+                    binary.binaryValue();
+                }
+                break;
+            case SORTED:
+                SortedDocValues sorted = reader.getSortedDocValues(info.name);
+                while (sorted.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+                    sorted.ordValue();
+                }
+                readTerms(sorted.termsEnum());
+                break;
+            case SORTED_NUMERIC:
+                SortedNumericDocValues sortedNumeric = reader.getSortedNumericDocValues(info.name);
+                while (sortedNumeric.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+                    for (int i = sortedNumeric.docValueCount(); i > 0; i--) {
+                        sortedNumeric.nextValue();
+                    }
+                }
+                break;
+            case SORTED_SET:
+                SortedSetDocValues sortedSet = reader.getSortedSetDocValues(info.name);
+                while (sortedSet.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+                    for (int i = sortedSet.docValueCount(); i > 0; i--) {
+                        sortedSet.nextOrd();
+                    }
+                }
+                readTerms(sortedSet.termsEnum());
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static void readTerms(TermsEnum terms) throws IOException {
+        while (terms.next() != null) {
+            // Solo se recorre el diccionario
+        }
+    }
+
+    private static void readPoints(PointValues points) throws IOException {
+        if (points == null) {
+            return;
+        }
+        points.intersect(new PointValues.IntersectVisitor() {
+            @Override
+            public void visit(int docID) {
+            }
+
+            @Override
+            public void visit(int docID, byte[] packedValue) {
+            }
+
+            @Override
+            public PointValues.Relation compare(byte[] minPackedValue, byte[] maxPackedValue) {
+                return PointValues.Relation.CELL_CROSSES_QUERY; // Visita todas las hojas
+            }
+        });
+    }
+
+    /** Lee los vectores KNN; el grafo HNSW solo se lee al buscar, así que queda sin asignar. */
+    private static void readVectors(SegmentReader reader, FieldInfo info) throws IOException {
+        if (info.getVectorEncoding() == VectorEncoding.BYTE) {
+            ByteVectorValues values = reader.getByteVectorValues(info.name);
+            while (values.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+                values.vectorValue();
+            }
+        } else {
+            FloatVectorValues values = reader.getFloatVectorValues(info.name);
+            while (values.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+                values.vectorValue();
+            }
+        }
+    }
+
+    private static void printFields(Map<String, long[]> byField, Map<String, Long> byExtension) {
+        List<Map.Entry<String, long[]>> fields = new ArrayList<>(byField.entrySet());
+        fields.sort((a, b) -> Long.compare(Arrays.stream(b.getValue()).sum(), Arrays.stream(a.getValue()).sum()));
+
+        long indexBytes = byExtension.values().stream().mapToLong(Long::longValue).sum();
+        long[] totals = new long[PARTS.length];
+        StringBuilder header = new StringBuilder(String.format("%-24s", "campo (KB)"));
+        for (String part : PARTS) {
+            header.append(String.format(" %11s", part));
+        }
+        System.out.println(header.append(String.format(" %11s %6s", "total", "%")));
+        for (Map.Entry<String, long[]> field : fields) {
+            long[] usage = field.getValue();
+            for (int i = 0; i < PARTS.length; i++) {
+                totals[i] += usage[i];
+            }
+            System.out.println(row(field.getKey(), usage, indexBytes));
+        }
+        long assigned = Arrays.stream(totals).sum();
+        System.out.println(row("(sin asignar)", new long[0], indexBytes, indexBytes - assigned));
+        System.out.println(String.format("Tamaño total del índice: %,.1f KB", indexBytes / 1024.0));
+    }
+
+    private static String row(String name, long[] usage, long indexBytes) {
+        return row(name, usage, indexBytes, Arrays.stream(usage).sum());
+    }
+
+    private static String row(String name, long[] usage, long indexBytes, long total) {
+        StringBuilder line = new StringBuilder(String.format("%-24s", name));
+        for (int i = 0; i < PARTS.length; i++) {
+            line.append(i < usage.length ? String.format(" %,11.1f", usage[i] / 1024.0) : String.format(" %11s", ""));
+        }
+        double percent = indexBytes == 0 ? 0 : 100.0 * total / indexBytes;
+        return line.append(String.format(" %,11.1f %5.1f%%", total / 1024.0, percent)).toString();
+    }
+
+    private static void printExtensions(Map<String, Long> byExtension) {
+        System.out.println();
+        System.out.println("Por tipo de fichero:");
+        for (Map.Entry<String, Long> extension : byExtension.entrySet()) {
+            System.out.println(String.format("  .%-6s %,12.1f KB", extension.getKey(), extension.getValue() / 1024.0));
+        }
+    }
+
+    /**
+     * Latencia de leer un campo almacenado, que es lo que cuesta cada fragmento de resultado. Se lee
+     * una muestra repartida por todo el índice dos veces y se mide la segunda, con la caché ya
+     * caliente.
+     */
+    private static void printStoredLatency(IndexReader reader, String field, int samples) throws IOException {
+        int n = Math.min(samples, reader.numDocs());
+        if (n == 0) {
+            return;
+        }
+        int[] docs = new int[n];
+        for (int i = 0; i < n; i++) {
+            docs[i] = (int) ((long) i * reader.maxDoc() / n);
+        }
+        Set<String> fields = Set.of(field);
+        StoredFields storedFields = reader.storedFields();
+        long[] nanos = new long[n];
+        long chars = 0;
+        int found = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            chars = 0;
+            found = 0;
+            for (int i = 0; i < n; i++) {
+                long start = System.nanoTime();
+                String value = storedFields.document(docs[i], fields).get(field);
+                nanos[i] = System.nanoTime() - start;
+                if (value != null) {
+                    chars += value.length();
+                    found++;
+                }
+            }
+        }
+        Arrays.sort(nanos);
+        double mean = Arrays.stream(nanos).average().orElse(0) / 1000.0;
+        System.out.println();
+        System.out.println(String.format("Lectura del campo almacenado %s en %d documentos: media %.1f µs, "
+                        + "p50 %.1f µs, p99 %.1f µs; almacenado en %d, %.0f caracteres de media",
+                field, n, mean, nanos[n / 2] / 1000.0, nanos[Math.min(n - 1, (int) (n * 0.99))] / 1000.0,
+                found, found == 0 ? 0.0 : (double) chars / found));
+    }
+
+    /** Directorio que cuenta los bytes leídos de todos sus ficheros, incluidas copias y porciones. */
+    private static class TrackingDirectory extends FilterDirectory {
+        long bytesRead;
+
+        TrackingDirectory(Directory in) {
+            super(in);
+        }
+
+        void reset() {
+            bytesRead = 0;
+        }
+
+        @Override
+        public IndexInput openInput(String name, IOContext context) throws IOException {
+            return new TrackingInput(name, in.openInput(name, context), this);
+        }
+    }
+
+    private static class TrackingInput extends IndexInput {
+        private final IndexInput in;
+        private final TrackingDirectory tracking;
+
+        TrackingInput(String description, IndexInput in, TrackingDirectory tracking) {
+            super(description);
+            this.in = in;
+            this.tracking = tracking;
+        }
+
+        @Override
+        public byte readByte() throws IOException {
+            tracking.bytesRead++;
+            return in.readByte();
+        }
+
+        @Override
+        public void readBytes(byte[] b, int offset, int len) throws IOException {
+            tracking.bytesRead += len;
+            in.readBytes(b, offset, len);
+        }
+
+        @Override
+        public long getFilePointer() {
+            return in.getFilePointer();
+        }
+
+        @Override
+        public void seek(long pos) throws IOException {
+            in.seek(pos);
+        }
+
+        @Override
+        public long length() {
+            return in.length();
+        }
+
+        @Override
+        public IndexInput slice(String sliceDescription, long offset, long length) throws IOException {
+            return new TrackingInput(sliceDescription, in.slice(sliceDescription, offset, length), tracking);
+        }
+
+        @Override
+        public IndexInput clone() {
+            return new TrackingInput(toString(), in.clone(), tracking);
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
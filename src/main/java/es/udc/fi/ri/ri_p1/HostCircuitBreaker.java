@@ -0,0 +1,105 @@
+package es.udc.fi.ri.ri_p1;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cortacircuitos por host. Tras {@code failureThreshold} fallos seguidos (errores de conexión,
+ * timeouts, 429 o 5xx) el circuito del host se abre y sus peticiones fallan al instante en lugar
+ * de esperar cada una su timeout. Pasado el tiempo de espera se deja pasar una única petición de
+ * prueba: si va bien el circuito se cierra y si falla se vuelve a abrir con el doble de espera,
+ * hasta {@link #MAX_COOLDOWN_MILLIS}.
+ */
+class HostCircuitBreaker {
+
+    static final long MAX_COOLDOWN_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    /** Estado del circuito de un host. */
+    private static class Circuit {
+        int consecutiveFailures;
+        long openUntil;       // 0 = cerrado
+        long cooldownMillis;
+        boolean probing;      // Hay una petición de prueba en curso
+    }
+
+    private final int failureThreshold;
+    private final long cooldownMillis;
+    private final Map<String, Circuit> circuits = new ConcurrentHashMap<>();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder opened = new LongAdder();
+
+    /**
+     * @param failureThreshold fallos seguidos que abren el circuito
+     * @param cooldownMillis espera inicial antes de la petición de prueba
+     */
+    HostCircuitBreaker(int failureThreshold, long cooldownMillis) {
+        if (failureThreshold < 1 || cooldownMillis < 0) {
+            throw new IllegalArgumentException("parámetros del cortacircuitos no válidos");
+        }
+        this.failureThreshold = failureThreshold;
+        this.cooldownMillis = cooldownMillis;
+    }
+
+    /** Indica si se puede hacer una petición al host ahora mismo. */
+    boolean allow(String host) {
+        Circuit circuit = circuits.get(host);
+        if (circuit == null) {
+            return true;
+        }
+        synchronized (circuit) {
+            if (circuit.openUntil == 0) {
+                return true;
+            }
+            if (!circuit.probing && System.currentTimeMillis() >= circuit.openUntil) {
+                circuit.probing = true; // Semiabierto: solo pasa esta
+                return true;
+            }
+        }
+        rejected.increment();
+        return false;
+    }
+
+    void onSuccess(String host) {
+        Circuit circuit = circuits.get(host);
+        if (circuit == null) {
+            return;
+        }
+        synchronized (circuit) {
+            circuit.consecutiveFailures = 0;
+            circuit.openUntil = 0;
+            circuit.cooldownMillis = 0;
+            circuit.probing = false;
+        }
+    }
+
+    void onFailure(String host) {
+        Circuit circuit = circuits.computeIfAbsent(host, h -> new Circuit());
+        synchronized (circuit) {
+            circuit.consecutiveFailures++;
+            if (circuit.probing) {
+                // Falló la petición de prueba: se vuelve a abrir con más espera
+                circuit.probing = false;
+                circuit.cooldownMillis = Math.min(MAX_COOLDOWN_MILLIS, circuit.cooldownMillis * 2);
+                circuit.openUntil = System.currentTimeMillis() + circuit.cooldownMillis;
+            } else if (circuit.openUntil == 0 && circuit.consecutiveFailures >= failureThreshold) {
+                circuit.cooldownMillis = cooldownMillis;
+                circuit.openUntil = System.currentTimeMillis() + cooldownMillis;
+                opened.increment();
+                System.out.println("Circuito abierto para " + host + " tras " + circuit.consecutiveFailures
+                        + " fallos seguidos");
+            }
+        }
+    }
+
+    /** Peticiones rechazadas al instante por tener el circuito abierto. */
+    long getRejected() {
+        return rejected.sum();
+    }
+
+    /** Veces que se ha abierto algún circuito. */
+    long getOpened() {
+        return opened.sum();
+    }
+}
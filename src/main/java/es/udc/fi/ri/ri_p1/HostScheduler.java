@@ -0,0 +1,284 @@
+package es.udc.fi.ri.ri_p1;
+
+import java.io.Closeable;
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reparte las descargas entre hosts con cortesía. Cada host tiene su cola y un cubo de tokens
+ * ({@code ratePerSecond} peticiones por segundo, con ráfagas de hasta {@code burst}) además de un
+ * máximo de páginas en curso a la vez. Un único hilo despachador recorre los hosts por turnos y
+ * envía al pool la siguiente URL del primero que tenga token y conexión libres, de forma que las
+ * URLs de hosts distintos se intercalan aunque los ficheros .url las agrupen por host.
+ *
+ * <p>Antes de enviar cada tarea, el despachador ocupa una plaza del {@link ConcurrencyLimiter}
+ * global. Las colas de todos los hosts juntas admiten como mucho {@code capacity} URLs: al
+ * llenarse, {@link #submit} bloquea a quien lee los ficheros .url o la frontera.
+ *
+ * <p>Un host sin URLs en cola ni páginas en curso se olvida en cuanto su cubo se habría vuelto a
+ * llenar, porque entonces empezaría igual que uno nuevo; así un rastreo con {@code -maxDepth} no
+ * guarda el estado de todos los hosts que ha visto.
+ */
+class HostScheduler implements Closeable {
+
+    /** Cola y estado de cortesía de un host. */
+    private static class Host {
+        final String name;
+        final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+        final ArrayDeque<Long> enqueuedAt = new ArrayDeque<>();
+        double tokens;
+        long refilledAt;
+        int active;
+        long idleSince;
+        boolean inIdle;
+
+        Host(String name, double tokens, long now) {
+            this.name = name;
+            this.tokens = tokens;
+            this.refilledAt = now;
+        }
+    }
+
+    private final double ratePerSecond;
+    private final double burst;
+    private final int maxActivePerHost;
+    private final int capacity;
+    private final ConcurrencyLimiter limiter;
+    private final Executor executor;
+
+    private final Map<String, Host> hosts = new HashMap<>();
+    // Hosts con URLs en cola, en el orden en que les toca
+    private final ArrayDeque<Host> turns = new ArrayDeque<>();
+    // Hosts que se han quedado sin trabajo, en el orden en que se quedaron así
+    private final ArrayDeque<Host> idle = new ArrayDeque<>();
+    // Lo que tarda en llenarse un cubo vacío
+    private final long refillNanos;
+    // URLs en cola más la que el despachador tiene entre manos
+    private int pending;
+    private boolean closed;
+    private final Thread dispatcher;
+
+    private long dispatched;
+    private long waitNanos;
+    private long seenHosts;
+
+    /**
+     * @param ratePerSecond peticiones por segundo a cada host (0 = sin límite)
+     * @param burst peticiones seguidas que se permiten a un host tras un rato sin pedirle nada
+     * @param maxActivePerHost páginas de un mismo host en curso a la vez
+     * @param capacity URLs en cola entre todos los hosts
+     */
+    HostScheduler(double ratePerSecond, int burst, int maxActivePerHost, int capacity, ConcurrencyLimiter limiter,
+                  Executor executor) {
+        if (ratePerSecond < 0 || burst < 1 || maxActivePerHost < 1 || capacity < 1) {
+            throw new IllegalArgumentException("parámetros de cortesía no válidos");
+        }
+        this.ratePerSecond = ratePerSecond;
+        this.burst = burst;
+        this.maxActivePerHost = maxActivePerHost;
+        this.capacity = capacity;
+        this.limiter = limiter;
+        this.executor = executor;
+        refillNanos = ratePerSecond == 0 ? 0 : (long) (burst / ratePerSecond * 1e9);
+        dispatcher = new Thread(this::dispatchLoop, "host-scheduler");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    /** Host de una URL en minúsculas, o "" si no tiene. */
+    static String hostOf(String url) {
+        try {
+            String host = URI.create(url).getHost();
+            return host == null ? "" : host.toLowerCase(Locale.ROOT);
+        } catch (IllegalArgumentException e) {
+            return "";
+        }
+    }
+
+    /**
+     * Pone en cola la descarga de una URL. Bloquea mientras las colas estén llenas. La tarea debe
+     * llamar a {@link #done(String)} y liberar su plaza del limitador al terminar.
+     */
+    synchronized void submit(String url, Runnable task) throws InterruptedException {
+        while (pending >= capacity && !closed) {
+            wait();
+        }
+        if (closed) {
+            throw new IllegalStateException("planificador cerrado");
+        }
+        long now = System.nanoTime();
+        Host host = hosts.computeIfAbsent(hostOf(url), name -> {
+            seenHosts++;
+            return new Host(name, burst, now);
+        });
+        if (host.tasks.isEmpty()) {
+            turns.addLast(host);
+        }
+        host.tasks.addLast(task);
+        host.enqueuedAt.addLast(now);
+        pending++;
+        notifyAll();
+    }
+
+    /** La página de {@code url} ha terminado: su host tiene una conexión libre más. */
+    synchronized void done(String url) {
+        Host host = hosts.get(hostOf(url));
+        long now = System.nanoTime();
+        if (host != null) {
+            host.active--;
+            if (host.active == 0 && host.tasks.isEmpty()) {
+                host.idleSince = now;
+                if (!host.inIdle) {
+                    host.inIdle = true;
+                    idle.addLast(host);
+                }
+            }
+            notifyAll();
+        }
+        forgetIdleHosts(now);
+    }
+
+    /** Olvida los hosts que siguen sin trabajo y cuyo cubo ya estaría lleno. */
+    private void forgetIdleHosts(long now) {
+        while (!idle.isEmpty()) {
+            Host host = idle.peekFirst();
+            if (host.active == 0 && host.tasks.isEmpty()) {
+                if (now - host.idleSince < refillNanos) {
+                    return;
+                }
+                hosts.remove(host.name, host);
+            }
+            // Olvidado, o con trabajo otra vez: si vuelve a quedarse sin él, se anota de nuevo
+            idle.removeFirst().inIdle = false;
+        }
+    }
+
+    /** Hosts de los que se guarda estado ahora mismo. */
+    synchronized int trackedHosts() {
+        return hosts.size();
+    }
+
+    /** No queda ninguna URL en cola ni a punto de enviarse al pool. */
+    synchronized boolean isEmpty() {
+        return pending == 0;
+    }
+
+    /** Espera a que todas las URLs en cola se hayan enviado al pool. */
+    synchronized void awaitEmpty() throws InterruptedException {
+        while (pending > 0) {
+            wait();
+        }
+    }
+
+    private void dispatchLoop() {
+        try {
+            while (true) {
+                synchronized (this) {
+                    while (pending == 0 && !closed) {
+                        wait();
+                    }
+                    if (closed) {
+                        return;
+                    }
+                }
+                // Primero una plaza global, luego el turno del host: así el token no se gasta esperando
+                limiter.acquire();
+                Runnable task;
+                try {
+                    task = nextTask();
+                } catch (InterruptedException e) {
+                    limiter.release();
+                    throw e;
+                }
+                if (task == null) {
+                    limiter.release();
+                    return; // Cerrado
+                }
+                try {
+                    executor.execute(task);
+                } finally {
+                    synchronized (this) {
+                        pending--;
+                        notifyAll();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            // Cierre
+        }
+    }
+
+    /**
+     * Espera a que algún host tenga token y conexión libres y saca su siguiente tarea, pasando el
+     * turno al siguiente host. Devuelve null si se cierra el planificador.
+     */
+    private synchronized Runnable nextTask() throws InterruptedException {
+        while (!closed) {
+            long now = System.nanoTime();
+            long earliestToken = Long.MAX_VALUE;
+            for (Iterator<Host> it = turns.iterator(); it.hasNext(); ) {
+                Host host = it.next();
+                if (host.active >= maxActivePerHost) {
+                    continue; // Se avisará con done()
+                }
+                refill(host, now);
+                if (host.tokens >= 1) {
+                    it.remove();
+                    host.tokens -= 1;
+                    host.active++;
+                    Runnable task = host.tasks.removeFirst();
+                    waitNanos += now - host.enqueuedAt.removeFirst();
+                    dispatched++;
+                    if (!host.tasks.isEmpty()) {
+                        turns.addLast(host);
+                    }
+                    return task;
+                }
+                earliestToken = Math.min(earliestToken, (long) ((1 - host.tokens) / ratePerSecond * 1e9));
+            }
+            if (earliestToken == Long.MAX_VALUE) {
+                wait(); // Todos los hosts con cola tienen el máximo de conexiones
+            } else {
+                TimeUnit.NANOSECONDS.timedWait(this, Math.max(1, earliestToken));
+            }
+        }
+        return null;
+    }
+
+    private void refill(Host host, long now) {
+        if (ratePerSecond == 0) {
+            host.tokens = burst;
+            return;
+        }
+        host.tokens = Math.min(burst, host.tokens + (now - host.refilledAt) / 1e9 * ratePerSecond);
+        host.refilledAt = now;
+    }
+
+    /** Resumen para el final de la ejecución. */
+    synchronized void print() {
+        System.out.println(String.format("Cortesía por host: %d hosts, como mucho %s peticiones/s y %d páginas "
+                        + "en curso por host; %d URLs esperaron de media %.1f ms su turno",
+                seenHosts, ratePerSecond == 0 ? "sin límite de" : String.format("%.1f", ratePerSecond),
+                maxActivePerHost, dispatched, dispatched == 0 ? 0.0 : waitNanos / 1e6 / dispatched));
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        dispatcher.interrupt();
+        try {
+            dispatcher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -20,33 +20,64 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.CharBuffer;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.demo.knn.DemoEmbeddings;
 import org.apache.lucene.demo.knn.KnnVectorDict;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
-import org.apache.lucene.document.KnnVectorField;
+import org.apache.lucene.document.KnnFloatVectorField;
 import org.apache.lucene.document.LongPoint;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.SortedDocValuesField;
+import org.apache.lucene.document.StoredField;
 import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
-import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.DocValues;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.SortedDocValues;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.index.VectorSimilarityFunction;
 import org.apache.lucene.store.Directory;
+import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.IOUtils;
 
 /**
@@ -57,12 +88,34 @@ import org.apache.lucene.util.IOUtils;
  */
 public class IndexFiles implements AutoCloseable {
   static final String KNN_DICT = "knn-dict";
+  // Doc values that let -update load every indexed file in one pass. They have their own field
+  // names because Lucene refuses to add doc values to the "path" and "modified" fields of an index
+  // built before they existed
+  static final String PATH_DV = "path_dv";
+  static final String MODIFIED_DV = "modified_dv";
+  static final String SIZE_DV = "size_dv";
 
   // Calculates embedding vectors for KnnVector search
   private final DemoEmbeddings demoEmbeddings;
   private final KnnVectorDict vectorDict;
+  // Per-thread buffers that read each file once when it also feeds the embedding
+  private final ThreadLocal<PooledFileReader> fileReaders =
+      ThreadLocal.withInitial(PooledFileReader::new);
 
-  private IndexFiles(KnnVectorDict vectorDict) throws IOException {
+  // Documents and bytes indexed so far, for the throughput report
+  private final LongAdder indexedDocs = new LongAdder();
+  private final LongAdder indexedBytes = new LongAdder();
+
+  // On -update, the modification time and size of each file already in the index, keyed by path.
+  // Entries are removed as the files are visited, so whatever is left at the end has disappeared
+  private Map<String, long[]> indexedFiles;
+  private final LongAdder unchangedFiles = new LongAdder();
+
+  // With -watch a file can be indexed again while the writer is still in CREATE mode, so every
+  // document replaces any older copy of its path
+  private volatile boolean replaceExisting;
+
+  IndexFiles(KnnVectorDict vectorDict) throws IOException {
     if (vectorDict != null) {
       this.vectorDict = vectorDict;
       demoEmbeddings = new DemoEmbeddings(vectorDict);
@@ -76,14 +129,42 @@ public class IndexFiles implements AutoCloseable {
   public static void main(String[] args) throws Exception {
     String usage =
         "java org.apache.lucene.demo.IndexFiles"
-            + " [-index INDEX_PATH] [-docs DOCS_PATH] [-update] [-knn_dict DICT_PATH]\n\n"
+            + " [-index INDEX_PATH] [-docs DOCS_PATH | -lineDocs FILE] [-update]"
+            + " [-knn_dict DICT_PATH] [-bulk] [-threads N] [-ramBufferMB MB] [-forceMerge] [-shards N]"
+            + " [-watch [-debounceMs MS] [-refreshMs MS] [-commitSec S]]\n\n"
             + "This indexes the documents in DOCS_PATH, creating a Lucene index"
             + "in INDEX_PATH that can be searched with SearchFiles\n"
-            + "IF DICT_PATH contains a KnnVector dictionary, the index will also support KnnVector search";
+            + "IF DICT_PATH contains a KnnVector dictionary, the index will also support KnnVector search\n"
+            + "-bulk rebuilds the index with N threads, each writing its own temporary index that is"
+            + " added to INDEX_PATH at the end\n"
+            + "-threads without -bulk walks and indexes the tree with N threads sharing the index"
+            + " writers (the default, or -threads 1, indexes on a single thread)\n"
+            + "-update only re-indexes new or changed files, and deletes the ones that"
+            + " disappeared\n"
+            + "-lineDocs indexes one document per line of FILE instead of one per file: a"
+            + " Lucene line-doc file, or JSONL if it ends in .jsonl (either may be .gz). It is"
+            + " split by byte range across N threads unless compressed\n"
+            + "-shards splits the index into N sub-indexes under INDEX_PATH, routed by a hash of the"
+            + " file path\n"
+            + "-watch keeps running after indexing DOCS_PATH and applies every file created,"
+            + " changed or deleted under it once it has been quiet for -debounceMs (default 500)."
+            + " Changes become searchable in this process every -refreshMs (default 1000) and are"
+            + " committed for other readers every -commitSec (default 60) and on exit";
     String indexPath = "index";
     String docsPath = null;
+    String lineDocsPath = null;
     String vectorDictSource = null;
     boolean create = true;
+    boolean bulk = false;
+    int threads = Runtime.getRuntime().availableProcessors();
+    boolean parallel = false;
+    double ramBufferMB = 0;
+    boolean forceMerge = false;
+    int numShards = 1;
+    boolean watch = false;
+    long debounceMillis = 500;
+    long refreshMillis = 1000;
+    long commitSeconds = 60;
     for (int i = 0; i < args.length; i++) {
       switch (args[i]) {
         case "-index":
@@ -92,6 +173,9 @@ public class IndexFiles implements AutoCloseable {
         case "-docs":
           docsPath = args[++i];
           break;
+        case "-lineDocs":
+          lineDocsPath = args[++i];
+          break;
         case "-knn_dict":
           vectorDictSource = args[++i];
           break;
@@ -101,17 +185,47 @@ public class IndexFiles implements AutoCloseable {
         case "-create":
           create = true;
           break;
+        case "-bulk":
+          bulk = true;
+          break;
+        case "-threads":
+          threads = Integer.parseInt(args[++i]);
+          parallel = threads > 1;
+          break;
+        case "-ramBufferMB":
+          ramBufferMB = Double.parseDouble(args[++i]);
+          break;
+        case "-forceMerge":
+          forceMerge = true;
+          break;
+        case "-shards":
+          numShards = Integer.parseInt(args[++i]);
+          break;
+        case "-watch":
+          watch = true;
+          break;
+        case "-debounceMs":
+          debounceMillis = Long.parseLong(args[++i]);
+          break;
+        case "-refreshMs":
+          refreshMillis = Long.parseLong(args[++i]);
+          break;
+        case "-commitSec":
+          commitSeconds = Long.parseLong(args[++i]);
+          break;
         default:
           throw new IllegalArgumentException("unknown parameter " + args[i]);
       }
     }
 
-    if (docsPath == null) {
+    if ((docsPath == null) == (lineDocsPath == null)
+        || (bulk && !create)
+        || (watch && (docsPath == null || bulk))) {
       System.err.println("Usage: " + usage);
       System.exit(1);
     }
 
-    final Path docDir = Paths.get(docsPath);
+    final Path docDir = Paths.get(docsPath != null ? docsPath : lineDocsPath);
     if (!Files.isReadable(docDir)) {
       System.out.println(
           "Document directory '"
@@ -126,23 +240,31 @@ public class IndexFiles implements AutoCloseable {
 
       Directory dir = FSDirectory.open(Paths.get(indexPath));
       Analyzer analyzer = new StandardAnalyzer();
-      IndexWriterConfig iwc = new IndexWriterConfig(analyzer);
+      final boolean createIndex = create;
+      final double writerRamBufferMB = bulk ? 0 : ramBufferMB;
+      // Each shard needs its own config instance
+      Supplier<IndexWriterConfig> configs =
+          () -> {
+            IndexWriterConfig iwc = new IndexWriterConfig(analyzer);
 
-      if (create) {
-        // Create a new index in the directory, removing any
-        // previously indexed documents:
-        iwc.setOpenMode(OpenMode.CREATE);
-      } else {
-        // Add new documents to an existing index:
-        iwc.setOpenMode(OpenMode.CREATE_OR_APPEND);
-      }
+            if (createIndex) {
+              // Create a new index in the directory, removing any
+              // previously indexed documents:
+              iwc.setOpenMode(OpenMode.CREATE);
+            } else {
+              // Add new documents to an existing index:
+              iwc.setOpenMode(OpenMode.CREATE_OR_APPEND);
+            }
 
-      // Optional: for better indexing performance, if you
-      // are indexing many documents, increase the RAM
-      // buffer.  But if you do this, increase the max heap
-      // size to the JVM (eg add -Xmxm or -Xmx1g):
-      //
-      // iwc.setRAMBufferSizeMB(.0);
+            // Optional: for better indexing performance, if you
+            // are indexing many documents, increase the RAM
+            // buffer.  But if you do this, increase the max heap
+            // size to the JVM (eg add -Xmxm or -Xmx1g):
+            if (writerRamBufferMB > 0) {
+              iwc.setRAMBufferSizeMB(writerRamBufferMB);
+            }
+            return iwc;
+          };
 
       KnnVectorDict vectorDictInstance = null;
       long vectorDictSize = 0;
@@ -152,23 +274,72 @@ public class IndexFiles implements AutoCloseable {
         vectorDictSize = vectorDictInstance.ramBytesUsed();
       }
 
-      try (IndexWriter writer = new IndexWriter(dir, iwc);
+      try (IndexShards shards = IndexShards.open(Paths.get(indexPath), numShards, configs);
           IndexFiles indexFiles = new IndexFiles(vectorDictInstance)) {
-        indexFiles.indexDocs(writer, docDir);
-
-        // NOTE: if you want to maximize search performance,
-        // you can optionally call forceMerge here.  This can be
-        // a terribly costly operation, so generally it's only
-        // worth it when your index is relatively static (ie
-        // you're done adding documents to it):
-        //
-        // writer.forceMerge(1);
+        WatchIndexer watcher = null;
+        if (watch) {
+          // Registered before the first pass so that no change made meanwhile is missed
+          indexFiles.replaceExisting = true;
+          watcher =
+              new WatchIndexer(
+                  indexFiles,
+                  shards,
+                  docDir,
+                  debounceMillis,
+                  refreshMillis,
+                  TimeUnit.SECONDS.toMillis(commitSeconds));
+        }
+        if (bulk) {
+          shards.startBulk(
+              Paths.get(indexPath),
+              ramBufferMB > 0 ? ramBufferMB : BulkLoader.DEFAULT_RAM_BUFFER_MB);
+          if (lineDocsPath != null) {
+            indexFiles.indexLineDocs(shards, docDir, threads);
+          } else {
+            indexFiles.bulkIndexDocs(shards, docDir, threads);
+          }
+          // Copies the per-thread segments into the index, no re-analysis needed
+          shards.finishBulk(forceMerge);
+        } else {
+          if (lineDocsPath != null) {
+            indexFiles.indexLineDocs(shards, docDir, threads);
+          } else {
+            if (!create) {
+              indexFiles.loadIndexedFiles(shards, docDir);
+            }
+            if (parallel) {
+              indexFiles.parallelIndexDocs(shards, docDir, threads);
+            } else {
+              indexFiles.indexDocs(shards, docDir);
+            }
+            if (!create) {
+              indexFiles.deleteVanishedFiles(shards);
+            }
+          }
+
+          // NOTE: if you want to maximize search performance,
+          // you can optionally call forceMerge here.  This can be
+          // a terribly costly operation, so generally it's only
+          // worth it when your index is relatively static (ie
+          // you're done adding documents to it):
+          if (forceMerge) {
+            shards.forceMerge(1);
+          }
+        }
+        indexFiles.printThroughput(new Date().getTime() - start.getTime());
+        if (watcher != null) {
+          try {
+            watcher.run();
+          } finally {
+            watcher.close();
+          }
+        }
       } finally {
         IOUtils.close(vectorDictInstance);
       }
 
       Date end = new Date();
-      try (IndexReader reader = DirectoryReader.open(dir)) {
+      try (IndexReader reader = IndexShards.openReader(Paths.get(indexPath))) {
         System.out.println(
             "Indexed "
                 + reader.numDocs()
@@ -197,19 +368,26 @@ public class IndexFiles implements AutoCloseable {
    * href="../../../../../contrib-benchmark/org/apache/lucene/benchmark/byTask/tasks/WriteLineDocTask.html"
    * >WriteLineDocTask</a>.
    *
-   * @param writer Writer to the index where the given file/dir info will be stored
+   * @param shards Writers to the index shards where the given file/dir info will be stored
    * @param path The file to index, or the directory to recurse into to find files to index
    * @throws IOException If there is a low-level I/O error
    */
-  void indexDocs(final IndexWriter writer, Path path) throws IOException {
+  void indexDocs(final IndexShards shards, Path path) throws IOException {
     if (Files.isDirectory(path)) {
       Files.walkFileTree(
           path,
           new SimpleFileVisitor<Path>() {
             @Override
             public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+              if (isUnchanged(file, attrs)) {
+                return FileVisitResult.CONTINUE;
+              }
               try {
-                indexDoc(writer, file, attrs.lastModifiedTime().toMillis());
+                indexDoc(
+                    shards.writerFor(file.toString()),
+                    file,
+                    attrs.lastModifiedTime().toMillis(),
+                    attrs.size());
               } catch (
                   @SuppressWarnings("unused")
                   IOException ignore) {
@@ -220,13 +398,373 @@ public class IndexFiles implements AutoCloseable {
             }
           });
     } else {
-      indexDoc(writer, path, Files.getLastModifiedTime(path).toMillis());
+      BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+      if (!isUnchanged(path, attrs)) {
+        indexDoc(
+            shards.writerFor(path.toString()),
+            path,
+            attrs.lastModifiedTime().toMillis(),
+            attrs.size());
+      }
+    }
+  }
+
+  /**
+   * Indexes every file under the given path with a pool of threads, each one adding to its own
+   * {@link BulkLoader} writer. The caller combines the per-thread indexes afterwards. The walk
+   * only queues a few files per thread ahead; past that it indexes the file itself, with a writer
+   * of its own.
+   *
+   * @param shards Index shards already switched to bulk mode, source of the per-thread writers
+   * @param path The file to index, or the directory to recurse into to find files to index
+   * @param threads Number of indexing threads
+   * @throws IOException If there is a low-level I/O error walking the directory
+   */
+  void bulkIndexDocs(final IndexShards shards, Path path, int threads) throws IOException {
+    ExecutorService executor = newBoundedExecutor(threads);
+    try {
+      Files.walkFileTree(
+          path,
+          new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+              long lastModified = attrs.lastModifiedTime().toMillis();
+              long size = attrs.size();
+              executor.execute(
+                  () -> {
+                    try {
+                      indexDoc(shards.writerFor(file.toString()), file, lastModified, size);
+                    } catch (IOException e) {
+                      e.printStackTrace(System.err);
+                      // don't index files that can't be read.
+                    }
+                  });
+              return FileVisitResult.CONTINUE;
+            }
+          });
+    } finally {
+      awaitTermination(executor);
+    }
+  }
+
+  /**
+   * A pool whose queue holds a few tasks per thread. When it is full the submitting thread runs
+   * the task itself, so a producer (a file walk, a gzip reader) never gets far ahead of the
+   * indexing threads and the pending tasks stay bounded.
+   */
+  private static ExecutorService newBoundedExecutor(int threads) {
+    return new ThreadPoolExecutor(
+        threads,
+        threads,
+        0,
+        TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(threads * 64),
+        new ThreadPoolExecutor.CallerRunsPolicy());
+  }
+
+  /** Shuts the pool down and waits for the indexing threads to finish their tasks. */
+  private static void awaitTermination(ExecutorService executor) throws IOException {
+    executor.shutdown();
+    try {
+      while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+        System.out.println("Waiting for the indexing threads to finish...");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("interrupted while indexing", e);
+    }
+  }
+
+  /**
+   * Indexes one document per record of a line-doc or JSONL file (see {@link LineDocReader}). An
+   * uncompressed file is split into one byte range per thread and each thread reads and indexes
+   * its own range. A compressed file can only be read from the start, so this thread parses it
+   * and hands the records to the pool; when the pool falls behind, this thread indexes too. Either
+   * way the first indexing error stops every thread at its next record, and is rethrown once the
+   * pool has finished.
+   *
+   * @param shards Writers to the index shards, possibly in bulk mode
+   * @param file The line-doc or JSONL file, optionally gzipped
+   * @param threads Number of indexing threads
+   * @throws IOException If there is a low-level I/O error reading the file or indexing
+   */
+  void indexLineDocs(final IndexShards shards, Path file, int threads) throws IOException {
+    LineDocReader reader = new LineDocReader(file);
+    if (reader.isCompressed()) {
+      ExecutorService executor = newBoundedExecutor(threads);
+      AtomicReference<IOException> failure = new AtomicReference<>();
+      try {
+        reader.readAll(
+            record -> {
+              if (failure.get() != null) {
+                throw failure.get(); // Stop reading, the records left would fail as well
+              }
+              executor.execute(
+                  () -> {
+                    try {
+                      indexRecord(shards, file, record);
+                    } catch (IOException e) {
+                      failure.compareAndSet(null, e);
+                    }
+                  });
+            });
+      } catch (IOException e) {
+        failure.compareAndSet(null, e);
+      } finally {
+        awaitTermination(executor);
+      }
+      if (failure.get() != null) {
+        throw new IOException("error indexing " + file, failure.get());
+      }
+      return;
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    AtomicReference<IOException> failure = new AtomicReference<>();
+    try {
+      List<Future<?>> ranges = new ArrayList<>();
+      for (long[] range : reader.split(threads)) {
+        ranges.add(
+            executor.submit(
+                () -> {
+                  try {
+                    reader.read(
+                        range[0],
+                        range[1],
+                        record -> {
+                          if (failure.get() != null) {
+                            throw failure.get(); // Another range failed, stop this one too
+                          }
+                          indexRecord(shards, file, record);
+                        });
+                  } catch (IOException e) {
+                    failure.compareAndSet(null, e);
+                  }
+                  return null;
+                }));
+      }
+      for (Future<?> range : ranges) {
+        range.get();
+      }
+    } catch (ExecutionException e) {
+      throw new IOException("error indexing " + file, e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("interrupted while indexing", e);
+    } finally {
+      awaitTermination(executor);
+    }
+    if (failure.get() != null) {
+      throw new IOException("error indexing " + file, failure.get());
+    }
+  }
+
+  /** Indexes a single record of a line-doc or JSONL file */
+  void indexRecord(IndexShards shards, Path file, LineDocReader.Record record) throws IOException {
+    // Records without a path of their own are named after their position in the file, which is
+    // stable as long as the file does not change
+    String path = record.path != null ? record.path : file + "#" + record.offset;
+    String body = record.body != null ? record.body : "";
+    Document doc = new Document();
+    doc.add(new StringField("path", path, Field.Store.YES));
+    // The same doc values as indexDoc, so both kinds of documents can share an index
+    doc.add(new SortedDocValuesField(PATH_DV, new BytesRef(path)));
+    if (record.title != null) {
+      doc.add(new TextField("title", record.title, Field.Store.YES));
+    }
+    if (record.date != null) {
+      doc.add(new StoredField("date", record.date));
+    }
+    doc.add(new TextField("contents", body, Field.Store.NO));
+    if (demoEmbeddings != null) {
+      float[] vector;
+      synchronized (demoEmbeddings) {
+        vector = demoEmbeddings.computeEmbedding(body);
+      }
+      doc.add(
+          new KnnFloatVectorField("contents-vector", vector, VectorSimilarityFunction.DOT_PRODUCT));
+    }
+
+    // One line per record would flood the console, so unlike indexDoc nothing is printed
+    IndexWriter writer = shards.writerFor(path);
+    if (writer.getConfig().getOpenMode() == OpenMode.CREATE) {
+      writer.addDocument(doc);
+    } else {
+      writer.updateDocument(new Term("path", path), doc);
+    }
+    indexedDocs.increment();
+    indexedBytes.add(record.bytes);
+  }
+
+  /**
+   * Indexes every file under the given path with a fork-join pool. Each directory is a task that
+   * lists its entries and forks one subtask per file and subdirectory, so the traversal is spread
+   * across the threads as well as the analysis. All threads add to the shared writers, which are
+   * thread safe, so the index holds the same documents as with {@link #indexDocs}; only the order
+   * in which they are added changes. Errors are handled the same way too: a file that cannot be
+   * read is skipped, but a directory that cannot be listed stops the whole run.
+   *
+   * @param shards Writers to the index shards where the given file/dir info will be stored
+   * @param path The file to index, or the directory to recurse into to find files to index
+   * @param threads Number of threads walking and indexing
+   * @throws IOException If there is a low-level I/O error walking the directory
+   */
+  void parallelIndexDocs(final IndexShards shards, Path path, int threads) throws IOException {
+    // Like walkFileTree, symbolic links are not followed into directories
+    BasicFileAttributes attrs =
+        Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+    ForkJoinPool pool = new ForkJoinPool(threads);
+    try {
+      pool.invoke(new IndexTreeTask(shards, path, attrs));
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  /** Indexes a file, or lists a directory and forks a task per entry. */
+  private class IndexTreeTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final IndexShards shards;
+    private final Path path;
+    private final BasicFileAttributes attrs;
+
+    IndexTreeTask(IndexShards shards, Path path, BasicFileAttributes attrs) {
+      this.shards = shards;
+      this.path = path;
+      this.attrs = attrs;
+    }
+
+    @Override
+    protected void compute() {
+      if (!attrs.isDirectory()) {
+        if (isUnchanged(path, attrs)) {
+          return;
+        }
+        try {
+          indexDoc(
+              shards.writerFor(path.toString()),
+              path,
+              attrs.lastModifiedTime().toMillis(),
+              attrs.size());
+        } catch (IOException e) {
+          e.printStackTrace(System.err);
+          // don't index files that can't be read.
+        }
+        return;
+      }
+      List<IndexTreeTask> children = new ArrayList<>();
+      try (DirectoryStream<Path> entries = Files.newDirectoryStream(path)) {
+        for (Path child : entries) {
+          children.add(
+              new IndexTreeTask(
+                  shards,
+                  child,
+                  Files.readAttributes(
+                      child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS)));
+        }
+      } catch (IOException e) {
+        // Like the default visitFileFailed of walkFileTree; invokeAll cancels the other tasks
+        throw new UncheckedIOException(e);
+      }
+      invokeAll(children);
+    }
+  }
+
+  /**
+   * Loads the path, modification time and size of every file under {@code docDir} that is already
+   * in the index, in a single pass over the doc values. Documents indexed before these doc values
+   * existed are not loaded, so they are simply re-indexed once (or, if their file is gone, kept
+   * until the index is rebuilt).
+   */
+  void loadIndexedFiles(IndexShards shards, Path docDir) throws IOException {
+    indexedFiles = new ConcurrentHashMap<>();
+    try (IndexReader reader = shards.openNrtReader()) {
+      for (LeafReaderContext leaf : reader.leaves()) {
+        LeafReader leafReader = leaf.reader();
+        Bits liveDocs = leafReader.getLiveDocs();
+        SortedDocValues paths = DocValues.getSorted(leafReader, PATH_DV);
+        NumericDocValues modified = DocValues.getNumeric(leafReader, MODIFIED_DV);
+        NumericDocValues sizes = DocValues.getNumeric(leafReader, SIZE_DV);
+        for (int doc = paths.nextDoc();
+            doc != DocIdSetIterator.NO_MORE_DOCS;
+            doc = paths.nextDoc()) {
+          if (liveDocs != null && !liveDocs.get(doc)) {
+            continue;
+          }
+          // Line-doc records have a path but no modification time, and are not files to check
+          if (!modified.advanceExact(doc)) {
+            continue;
+          }
+          String path = paths.lookupOrd(paths.ordValue()).utf8ToString();
+          // Files indexed from another directory are not ours to delete
+          if (!Paths.get(path).startsWith(docDir)) {
+            continue;
+          }
+          long lastModified = modified.longValue();
+          long size = sizes.advanceExact(doc) ? sizes.longValue() : -1;
+          indexedFiles.put(path, new long[] {lastModified, size});
+        }
+      }
     }
+    System.out.println(indexedFiles.size() + " files already in the index");
+  }
+
+  /**
+   * Whether the file is in the index with the same modification time and size, in which case it
+   * is not read again. Either way the file is no longer a candidate for deletion.
+   */
+  private boolean isUnchanged(Path file, BasicFileAttributes attrs) {
+    if (indexedFiles == null) {
+      return false;
+    }
+    long[] indexed = indexedFiles.remove(file.toString());
+    if (indexed != null
+        && indexed[0] == attrs.lastModifiedTime().toMillis()
+        && indexed[1] == attrs.size()) {
+      unchangedFiles.increment();
+      return true;
+    }
+    return false;
+  }
+
+  /** Deletes the documents of the indexed files that were not found on this run. */
+  void deleteVanishedFiles(IndexShards shards) throws IOException {
+    for (String path : indexedFiles.keySet()) {
+      System.out.println("deleting " + path);
+    }
+    if (!indexedFiles.isEmpty()) {
+      shards.deleteDocuments("path", indexedFiles.keySet(), false);
+    }
+    System.out.println(
+        unchangedFiles.sum()
+            + " unchanged files skipped, "
+            + indexedFiles.size()
+            + " vanished files deleted");
+  }
+
+  /** Prints how many documents and megabytes were indexed per second. */
+  void printThroughput(long millis) {
+    double seconds = Math.max(1, millis) / 1000.0;
+    double megabytes = indexedBytes.sum() / (1024.0 * 1024.0);
+    System.out.println(
+        String.format(
+            "Throughput: %d documents, %.1f MB: %.1f docs/sec, %.2f MB/sec",
+            indexedDocs.sum(),
+            megabytes,
+            indexedDocs.sum() / seconds,
+            megabytes / seconds));
   }
 
   /** Indexes a single document */
-  void indexDoc(IndexWriter writer, Path file, long lastModified) throws IOException {
-    try (InputStream stream = Files.newInputStream(file)) {
+  void indexDoc(IndexWriter writer, Path file, long lastModified, long size) throws IOException {
+    // With embeddings the file is read and decoded once into this thread's buffers, and both the
+    // contents field and the embedding read that text. Otherwise (or for files too large to
+    // buffer) contents streams the file as before
+    CharBuffer text = demoEmbeddings != null ? fileReaders.get().read(file) : null;
+    try (InputStream stream = text == null ? Files.newInputStream(file) : null) {
       // make a new, empty document
       Document doc = new Document();
 
@@ -236,6 +774,8 @@ public class IndexFiles implements AutoCloseable {
       // or positional information:
       Field pathField = new StringField("path", file.toString(), Field.Store.YES);
       doc.add(pathField);
+      // Also as doc values, so that -update can load every indexed path in one pass
+      doc.add(new SortedDocValuesField(PATH_DV, new BytesRef(file.toString())));
 
       // Add the last modified date of the file a field named "modified".
       // Use a LongPoint that is indexed (i.e. efficiently filterable with
@@ -245,27 +785,27 @@ public class IndexFiles implements AutoCloseable {
       // For example the long value 4 would mean
       // February 17, 1, 2-3 PM.
       doc.add(new LongPoint("modified", lastModified));
+      // The modification time and size tell -update whether the file changed since it was indexed
+      doc.add(new NumericDocValuesField(MODIFIED_DV, lastModified));
+      doc.add(new NumericDocValuesField(SIZE_DV, size));
 
       // Add the contents of the file to a field named "contents".  Specify a Reader,
       // so that the text of the file is tokenized and indexed, but not stored.
       // Note that FileReader expects the file to be in UTF-8 encoding.
       // If that's not the case searching for special characters will fail.
-      doc.add(
-          new TextField(
-              "contents",
-              new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8))));
+      Reader contents =
+          text != null
+              ? PooledFileReader.reader(text)
+              : new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8));
+      doc.add(new TextField("contents", contents));
 
       if (demoEmbeddings != null) {
-        try (InputStream in = Files.newInputStream(file)) {
-          float[] vector =
-              demoEmbeddings.computeEmbedding(
-                  new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)));
-          doc.add(
-              new KnnVectorField("contents-vector", vector, VectorSimilarityFunction.DOT_PRODUCT));
-        }
+        float[] vector = computeEmbedding(file, text);
+        doc.add(
+            new KnnFloatVectorField("contents-vector", vector, VectorSimilarityFunction.DOT_PRODUCT));
       }
 
-      if (writer.getConfig().getOpenMode() == OpenMode.CREATE) {
+      if (writer.getConfig().getOpenMode() == OpenMode.CREATE && !replaceExisting) {
         // New index, so we just add the document (no old document can be there):
         System.out.println("adding " + file);
         writer.addDocument(doc);
@@ -276,6 +816,25 @@ public class IndexFiles implements AutoCloseable {
         System.out.println("updating " + file);
         writer.updateDocument(new Term("path", file.toString()), doc);
       }
+      indexedDocs.increment();
+      indexedBytes.add(size);
+    }
+  }
+
+  /** Embedding of the buffered text, or of the file read again if it was too large to buffer. */
+  private float[] computeEmbedding(Path file, CharBuffer text) throws IOException {
+    // The vector dictionary reads through a single IndexInput, so it can't be shared
+    // between the bulk indexing threads
+    if (text != null) {
+      synchronized (demoEmbeddings) {
+        return demoEmbeddings.computeEmbedding(PooledFileReader.reader(text));
+      }
+    }
+    try (InputStream in = Files.newInputStream(file)) {
+      synchronized (demoEmbeddings) {
+        return demoEmbeddings.computeEmbedding(
+            new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)));
+      }
     }
   }
 
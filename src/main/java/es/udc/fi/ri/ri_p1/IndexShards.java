@@ -0,0 +1,337 @@
+package es.udc.fi.ri.ri_p1;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.IndexReaderContext;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.LiveIndexWriterConfig;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.StringHelper;
+
+/**
+ * Índice repartido en N partes (shards). Cada documento va a la parte que indica el hash de su
+ * clave (la URL canónica en WebIndexer, la ruta en IndexFiles), así que una misma clave siempre
+ * cae en la misma parte y {@code updateDocument} sigue funcionando. Con una sola parte el índice
+ * está directamente en el directorio indicado, como antes; con varias, en sus subdirectorios
+ * {@code shard-0 ... shard-(N-1)}, que se pueden reconstruir por separado.
+ *
+ * <p>Para leer, {@link #openReader(Path)} detecta la disposición y junta las partes en un {@link
+ * MultiReader}.
+ *
+ * <p>Al recrear el índice con otro número de partes, el nuevo se construye aparte, en {@value
+ * #STAGING_DIR}, y sustituye al anterior al cerrarse: hasta entonces el anterior se sigue pudiendo
+ * leer entero, igual que cuando se recrea con el mismo número de partes, donde el commit de Lucene
+ * ya lo garantiza.
+ */
+class IndexShards implements Closeable {
+
+    static final String SHARD_PREFIX = "shard-";
+    // Directorio donde se construye el índice cuando cambia la disposición
+    static final String STAGING_DIR = ".staging";
+
+    private final IndexWriter[] writers;
+    private BulkLoader[] bulkLoaders;
+    private final Path indexPath;
+    // Directorio de construcción que pasa a ser el índice al cerrar (null si se escribe en el sitio)
+    private final Path staging;
+
+    private IndexShards(IndexWriter[] writers, Path indexPath, Path staging) {
+        this.writers = writers;
+        this.indexPath = indexPath;
+        this.staging = staging;
+    }
+
+    /**
+     * Abre un IndexWriter por parte. Al añadir a un índice existente, el número de partes tiene que
+     * coincidir con el que tiene, o las claves se enrutarían a otra parte. Al crearlo con otro
+     * número de partes, se construye en {@value #STAGING_DIR} y la disposición anterior no se toca
+     * hasta {@link #close()}.
+     *
+     * @param configs crea una configuración nueva para cada parte
+     */
+    static IndexShards open(Path indexPath, int shards, Supplier<IndexWriterConfig> configs) throws IOException {
+        if (shards < 1) {
+            throw new IllegalArgumentException("el número de partes debe ser al menos 1: " + shards);
+        }
+        List<Path> existing = shardPaths(indexPath);
+        int current = !existing.isEmpty() ? existing.size() : hasIndex(indexPath) ? 1 : 0;
+        IndexWriterConfig first = configs.get();
+        Path staging = null;
+        if (first.getOpenMode() == IndexWriterConfig.OpenMode.CREATE) {
+            Path stagingDir = indexPath.resolve(STAGING_DIR);
+            if (Files.exists(stagingDir)) {
+                IOUtils.rm(stagingDir); // Restos de una reconstrucción interrumpida
+            }
+            if (current != 0 && current != shards) {
+                staging = stagingDir;
+            }
+        } else if (current != 0 && current != shards) {
+            throw new IOException("el índice " + indexPath + " tiene " + current + " partes y se pidieron "
+                    + shards + "; use el mismo número o recréelo con -create");
+        }
+
+        Path root = staging != null ? staging : indexPath;
+        IndexWriter[] writers = new IndexWriter[shards];
+        try {
+            for (int i = 0; i < shards; i++) {
+                Path path = shards == 1 ? root : root.resolve(SHARD_PREFIX + i);
+                writers[i] = new IndexWriter(FSDirectory.open(path), i == 0 ? first : configs.get());
+            }
+        } catch (IOException | RuntimeException e) {
+            IOUtils.closeWhileHandlingException(writers);
+            throw e;
+        }
+        return new IndexShards(writers, indexPath, staging);
+    }
+
+    /** Parte a la que va una clave. Es estable entre ejecuciones y máquinas. */
+    static int shardOf(String key, int shards) {
+        if (shards == 1) {
+            return 0;
+        }
+        return Math.floorMod(StringHelper.murmurhash3_x86_32(new BytesRef(key), 0), shards);
+    }
+
+    int count() {
+        return writers.length;
+    }
+
+    IndexWriter writer(int shard) {
+        return writers[shard];
+    }
+
+    /**
+     * Writer donde se indexa el documento con esa clave: el de su parte o, en carga masiva, el del
+     * hilo actual para esa parte.
+     */
+    IndexWriter writerFor(String key) throws IOException {
+        int shard = shardOf(key, writers.length);
+        return bulkLoaders != null ? bulkLoaders[shard].writer() : writers[shard];
+    }
+
+    /**
+     * Pasa a carga masiva: cada parte tiene su {@link BulkLoader} y el buffer de RAM se reparte
+     * entre ellas.
+     */
+    void startBulk(Path indexPath, double ramBufferMB) throws IOException {
+        bulkLoaders = new BulkLoader[writers.length];
+        for (int i = 0; i < writers.length; i++) {
+            LiveIndexWriterConfig config = writers[i].getConfig();
+            bulkLoaders[i] = new BulkLoader(BulkLoader.createTempRoot(indexPath), config.getAnalyzer(),
+                    config.getCodec(), ramBufferMB / writers.length);
+        }
+    }
+
+    /** Añade a cada parte lo escrito en carga masiva y borra los temporales. */
+    void finishBulk(boolean forceMerge) throws IOException {
+        try {
+            for (int i = 0; i < writers.length; i++) {
+                bulkLoaders[i].finish(writers[i], forceMerge);
+            }
+        } finally {
+            IOUtils.close(bulkLoaders);
+            bulkLoaders = null;
+        }
+    }
+
+    /**
+     * Borra los documentos con esas claves, cada uno en su parte. Normalmente el espacio de los
+     * borrados lo recupera la política de fusión cuando le toca; con {@code reclaimDeletes} se
+     * fuerza ya la fusión de los segmentos afectados con muchos borrados, que puede reescribir
+     * buena parte de la parte, así que solo compensa tras una poda grande al final de una ejecución.
+     */
+    void deleteDocuments(String field, Collection<String> keys, boolean reclaimDeletes) throws IOException {
+        List<List<Term>> byShard = new ArrayList<>();
+        for (int i = 0; i < writers.length; i++) {
+            byShard.add(new ArrayList<>());
+        }
+        for (String key : keys) {
+            byShard.get(shardOf(key, writers.length)).add(new Term(field, key));
+        }
+        for (int i = 0; i < writers.length; i++) {
+            if (!byShard.get(i).isEmpty()) {
+                writers[i].deleteDocuments(byShard.get(i).toArray(new Term[0]));
+                if (reclaimDeletes) {
+                    writers[i].forceMergeDeletes();
+                }
+            }
+        }
+    }
+
+    void commit() throws IOException {
+        for (IndexWriter writer : writers) {
+            writer.commit();
+        }
+    }
+
+    void forceMerge(int maxNumSegments) throws IOException {
+        for (IndexWriter writer : writers) {
+            writer.forceMerge(maxNumSegments);
+        }
+    }
+
+    /** Lector casi en tiempo real de todas las partes, incluidos los cambios sin confirmar. */
+    IndexReader openNrtReader() throws IOException {
+        if (writers.length == 1) {
+            return DirectoryReader.open(writers[0]);
+        }
+        DirectoryReader[] readers = new DirectoryReader[writers.length];
+        try {
+            for (int i = 0; i < writers.length; i++) {
+                readers[i] = DirectoryReader.open(writers[i]);
+            }
+        } catch (IOException | RuntimeException e) {
+            IOUtils.closeWhileHandlingException(readers);
+            throw e;
+        }
+        return new MultiReader(readers);
+    }
+
+    @Override
+    public void close() throws IOException {
+        List<Closeable> open = new ArrayList<>();
+        if (bulkLoaders != null) {
+            open.addAll(List.of(bulkLoaders));
+        }
+        for (IndexWriter writer : writers) {
+            open.add(writer);
+            open.add(writer.getDirectory());
+        }
+        IOUtils.close(open);
+        if (staging != null) {
+            publishStaging();
+        }
+    }
+
+    /**
+     * Sustituye la disposición anterior por el índice recién construido: borra las partes antiguas
+     * y los ficheros de índice del directorio raíz (los de un índice sin repartir) y mueve a su
+     * sitio lo construido. Otros ficheros de la raíz, como el diccionario KNN de IndexFiles, se
+     * conservan.
+     */
+    private void publishStaging() throws IOException {
+        for (Path old : shardPaths(indexPath)) {
+            IOUtils.rm(old);
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(indexPath, Files::isRegularFile)) {
+            for (Path file : files) {
+                if (isIndexFile(file.getFileName().toString())) {
+                    Files.delete(file);
+                }
+            }
+        }
+        if (writers.length == 1) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(staging)) {
+                for (Path file : files) {
+                    Files.move(file, indexPath.resolve(file.getFileName()));
+                }
+            }
+        } else {
+            for (Path shard : shardPaths(staging)) {
+                Files.move(shard, indexPath.resolve(shard.getFileName()));
+            }
+        }
+        IOUtils.rm(staging);
+    }
+
+    /** Ficheros que escribe un IndexWriter: segmentos, commits y el cerrojo. */
+    private static boolean isIndexFile(String name) {
+        return name.startsWith(IndexFileNames.SEGMENTS) || name.startsWith(IndexFileNames.PENDING_SEGMENTS)
+                || name.equals(IndexWriter.WRITE_LOCK_NAME)
+                || IndexFileNames.CODEC_FILE_PATTERN.matcher(name).matches();
+    }
+
+    private static boolean hasIndex(Path path) throws IOException {
+        if (!Files.isDirectory(path)) {
+            return false;
+        }
+        try (FSDirectory dir = FSDirectory.open(path)) {
+            return DirectoryReader.indexExists(dir);
+        }
+    }
+
+    /** Subdirectorios shard-N de un índice repartido, en orden; vacío si no está repartido. */
+    static List<Path> shardPaths(Path indexPath) throws IOException {
+        List<Path> shards = new ArrayList<>();
+        if (!Files.isDirectory(indexPath)) {
+            return shards;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(indexPath, SHARD_PREFIX + "*")) {
+            for (Path path : stream) {
+                if (Files.isDirectory(path)) {
+                    shards.add(path);
+                }
+            }
+        }
+        shards.sort(Comparator.comparingInt(
+                path -> Integer.parseInt(path.getFileName().toString().substring(SHARD_PREFIX.length()))));
+        return shards;
+    }
+
+    /** Abre el índice para búsqueda, juntando sus partes en un MultiReader si está repartido. */
+    static IndexReader openReader(Path indexPath) throws IOException {
+        List<Path> shards = shardPaths(indexPath);
+        if (shards.isEmpty()) {
+            return DirectoryReader.open(FSDirectory.open(indexPath));
+        }
+        DirectoryReader[] readers = new DirectoryReader[shards.size()];
+        try {
+            for (int i = 0; i < readers.length; i++) {
+                readers[i] = DirectoryReader.open(FSDirectory.open(shards.get(i)));
+            }
+        } catch (IOException | RuntimeException e) {
+            IOUtils.closeWhileHandlingException(readers);
+            throw e;
+        }
+        return new MultiReader(readers);
+    }
+
+    /**
+     * Buscador que reparte cada consulta entre las partes: con un executor, cada parte es una
+     * porción que se busca en paralelo, y los resultados de cada porción se juntan con {@code
+     * TopDocs.merge}.
+     */
+    static IndexSearcher newSearcher(IndexReader reader, Executor executor) {
+        return new IndexSearcher(reader, executor) {
+            @Override
+            protected LeafSlice[] slices(List<LeafReaderContext> leaves) {
+                // Una porción por parte: los segmentos de cada DirectoryReader cuelgan del mismo padre
+                Map<IndexReaderContext, List<LeafReaderContext>> byShard = new IdentityHashMap<>();
+                List<List<LeafReaderContext>> slices = new ArrayList<>();
+                for (LeafReaderContext leaf : leaves) {
+                    byShard.computeIfAbsent(leaf.parent, parent -> {
+                        List<LeafReaderContext> slice = new ArrayList<>();
+                        slices.add(slice);
+                        return slice;
+                    }).add(leaf);
+                }
+                LeafSlice[] result = new LeafSlice[slices.size()];
+                for (int i = 0; i < result.length; i++) {
+                    result[i] = new LeafSlice(slices.get(i));
+                }
+                return result;
+            }
+        };
+    }
+}
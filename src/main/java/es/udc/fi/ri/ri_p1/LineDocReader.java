@@ -0,0 +1,394 @@
+package es.udc.fi.ri.ri_p1;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Lee ficheros con un documento por línea, para indexar corpus ya extraídos sin millones de
+ * ficheros pequeños. Admite dos formatos, según la extensión:
+ * <ul>
+ *   <li>JSONL ({@code .jsonl}, {@code .json}): un objeto por línea. El título sale de "title", el
+ *       cuerpo de "body", "contents" o "text" y la ruta de "path", "url" o "docname", así que los
+ *       campos de WebIndexer (url, title, body) valen tal cual.</li>
+ *   <li>line-doc de Lucene (cualquier otra): título, fecha y cuerpo separados por tabuladores, o
+ *       los campos que indique una cabecera {@value #HEADER_PREFIX} en la primera línea.</li>
+ * </ul>
+ * Con {@code .gz} al final se descomprime al vuelo. Sin comprimir, el fichero se puede repartir en
+ * rangos de bytes que se leen por separado: cada registro pertenece al rango en el que empieza su
+ * línea, así que entre todos los rangos se lee cada registro exactamente una vez.
+ */
+class LineDocReader {
+
+    /** Cabecera de line-doc con los nombres de los campos, como la escribe WriteLineDocTask. */
+    static final String HEADER_PREFIX = "FIELDS_HEADER_INDICATOR###";
+    private static final List<String> DEFAULT_FIELDS = List.of("title", "date", "body");
+
+    /** Un documento del fichero. La ruta es nula si el registro no trae ninguna. */
+    static class Record {
+        final String path;
+        final String title;
+        final String body;
+        final String date;
+        // Posición de la línea en el fichero (sin comprimir) o número de línea (comprimido)
+        final long offset;
+        final int bytes;
+
+        Record(String path, String title, String body, String date, long offset, int bytes) {
+            this.path = path;
+            this.title = title;
+            this.body = body;
+            this.date = date;
+            this.offset = offset;
+            this.bytes = bytes;
+        }
+    }
+
+    interface RecordHandler {
+        void accept(Record record) throws IOException;
+    }
+
+    private final Path file;
+    private final boolean jsonl;
+    private final boolean compressed;
+    // Campos de cada línea en line-doc
+    private final List<String> fields;
+
+    LineDocReader(Path file) throws IOException {
+        this.file = file;
+        String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+        compressed = name.endsWith(".gz");
+        if (compressed) {
+            name = name.substring(0, name.length() - 3);
+        }
+        jsonl = name.endsWith(".jsonl") || name.endsWith(".json");
+        fields = jsonl ? null : readFields();
+    }
+
+    boolean isCompressed() {
+        return compressed;
+    }
+
+    /**
+     * Divide el fichero en como mucho {@code parts} rangos {inicio, fin} de tamaño parecido. Un
+     * fichero comprimido no se puede leer desde la mitad, así que es un único rango.
+     */
+    List<long[]> split(int parts) throws IOException {
+        long size = Files.size(file);
+        List<long[]> ranges = new ArrayList<>();
+        if (compressed || parts <= 1 || size == 0) {
+            ranges.add(new long[] {0, Long.MAX_VALUE});
+            return ranges;
+        }
+        long step = Math.max(1, (size + parts - 1) / parts);
+        for (long start = 0; start < size; start += step) {
+            ranges.add(new long[] {start, Math.min(size, start + step)});
+        }
+        return ranges;
+    }
+
+    /** Lee los registros cuya línea empieza en [start, end). */
+    void read(long start, long end, RecordHandler handler) throws IOException {
+        if (compressed) {
+            try (InputStream in = new GZIPInputStream(Files.newInputStream(file), 1 << 16)) {
+                readLines(new LineBuffer(in), 0, Long.MAX_VALUE, true, handler);
+            }
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            // Se empieza un byte antes para saber si start cae justo al principio de una línea
+            long position = Math.max(0, start - 1);
+            channel.position(position);
+            LineBuffer line = new LineBuffer(Channels.newInputStream(channel));
+            if (start > 0) {
+                position += line.read(); // Final de la línea del rango anterior
+            }
+            readLines(line, position, end, false, handler);
+        }
+    }
+
+    /** Lee el fichero entero. */
+    void readAll(RecordHandler handler) throws IOException {
+        read(0, Long.MAX_VALUE, handler);
+    }
+
+    private void readLines(LineBuffer line, long position, long end, boolean countLines, RecordHandler handler)
+            throws IOException {
+        long lineNumber = 0;
+        while (position < end) {
+            long lineStart = position;
+            int length = line.read();
+            if (length < 0) {
+                return;
+            }
+            position += length;
+            String text = line.toString();
+            lineNumber++;
+            if (text.isBlank() || lineStart == 0 && text.startsWith(HEADER_PREFIX)) {
+                continue;
+            }
+            Record record = jsonl ? parseJson(text, countLines ? lineNumber : lineStart, length)
+                    : parseLineDoc(text, countLines ? lineNumber : lineStart, length);
+            if (record != null) {
+                handler.accept(record);
+            }
+        }
+    }
+
+    private List<String> readFields() throws IOException {
+        try (InputStream raw = Files.newInputStream(file);
+             InputStream in = compressed ? new GZIPInputStream(raw) : raw) {
+            LineBuffer line = new LineBuffer(in);
+            if (line.read() > 0) {
+                String first = line.toString();
+                if (first.startsWith(HEADER_PREFIX)) {
+                    String[] names = first.split("\t");
+                    return Arrays.asList(names).subList(1, names.length);
+                }
+            }
+        }
+        return DEFAULT_FIELDS;
+    }
+
+    private Record parseLineDoc(String line, long offset, int bytes) {
+        String[] values = line.split("\t", -1);
+        Map<String, String> record = new HashMap<>();
+        for (int i = 0; i < values.length && i < fields.size(); i++) {
+            record.put(fields.get(i), values[i]);
+        }
+        return toRecord(record, offset, bytes);
+    }
+
+    private static Record parseJson(String line, long offset, int bytes) {
+        Map<String, String> record = new HashMap<>();
+        try {
+            new JsonObjectParser(line).parseInto(record);
+        } catch (IllegalArgumentException e) {
+            System.out.println("El registro en " + offset + " no es un objeto JSON válido: " + e.getMessage());
+            return null;
+        }
+        return toRecord(record, offset, bytes);
+    }
+
+    private static Record toRecord(Map<String, String> values, long offset, int bytes) {
+        return new Record(first(values, "path", "url", "docname"), first(values, "title"),
+                first(values, "body", "contents", "text"), first(values, "date"), offset, bytes);
+    }
+
+    private static String first(Map<String, String> values, String... keys) {
+        for (String key : keys) {
+            String value = values.get(key);
+            if (value != null) {
+                return value;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Lee líneas de un flujo por bloques, sin el salto de línea, en un buffer que se reutiliza. No
+     * usa BufferedInputStream porque su read() de un byte está sincronizado.
+     */
+    private static class LineBuffer {
+        private final InputStream in;
+        private final byte[] input = new byte[1 << 16];
+        private int inputPos;
+        private int inputLimit;
+        private byte[] bytes = new byte[8192];
+        private int length;
+
+        LineBuffer(InputStream in) {
+            this.in = in;
+        }
+
+        /** Lee la siguiente línea y devuelve los bytes consumidos, o -1 al final del fichero. */
+        int read() throws IOException {
+            length = 0;
+            int consumed = 0;
+            while (true) {
+                if (inputPos == inputLimit) {
+                    inputLimit = in.read(input);
+                    inputPos = 0;
+                    if (inputLimit <= 0) {
+                        inputLimit = 0;
+                        break;
+                    }
+                }
+                int newline = inputPos;
+                while (newline < inputLimit && input[newline] != '\n') {
+                    newline++;
+                }
+                append(inputPos, newline - inputPos);
+                consumed += newline - inputPos;
+                if (newline < inputLimit) {
+                    inputPos = newline + 1;
+                    consumed++;
+                    break;
+                }
+                inputPos = inputLimit;
+            }
+            if (consumed == 0) {
+                return -1;
+            }
+            if (length > 0 && bytes[length - 1] == '\r') {
+                length--;
+            }
+            return consumed;
+        }
+
+        private void append(int from, int count) {
+            if (length + count > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + count));
+            }
+            System.arraycopy(input, from, bytes, length, count);
+            length += count;
+        }
+
+        @Override
+        public String toString() {
+            return new String(bytes, 0, length, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Lo justo de JSON para un objeto por línea: se guardan los valores de tipo cadena del primer
+     * nivel y el resto (números, objetos anidados, listas...) se salta.
+     */
+    private static class JsonObjectParser {
+        private final String text;
+        private int pos;
+
+        JsonObjectParser(String text) {
+            this.text = text;
+        }
+
+        void parseInto(Map<String, String> values) {
+            expect('{');
+            skipWhitespace();
+            if (peek() == '}') {
+                pos++;
+                return;
+            }
+            while (true) {
+                skipWhitespace();
+                String key = parseString();
+                skipWhitespace();
+                expect(':');
+                skipWhitespace();
+                if (peek() == '"') {
+                    values.put(key, parseString());
+                } else {
+                    skipValue();
+                }
+                skipWhitespace();
+                char c = next();
+                if (c == '}') {
+                    return;
+                }
+                if (c != ',') {
+                    throw new IllegalArgumentException("se esperaba ',' o '}' en la posición " + (pos - 1));
+                }
+            }
+        }
+
+        private String parseString() {
+            expect('"');
+            StringBuilder value = new StringBuilder();
+            while (true) {
+                char c = next();
+                if (c == '"') {
+                    return value.toString();
+                }
+                if (c != '\\') {
+                    value.append(c);
+                    continue;
+                }
+                char escaped = next();
+                switch (escaped) {
+                    case 'b':
+                        value.append('\b');
+                        break;
+                    case 'f':
+                        value.append('\f');
+                        break;
+                    case 'n':
+                        value.append('\n');
+                        break;
+                    case 'r':
+                        value.append('\r');
+                        break;
+                    case 't':
+                        value.append('\t');
+                        break;
+                    case 'u':
+                        if (pos + 4 > text.length()) {
+                            throw new IllegalArgumentException("secuencia \\u incompleta");
+                        }
+                        value.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+                        pos += 4;
+                        break;
+                    default: // \" \\ \/
+                        value.append(escaped);
+                }
+            }
+        }
+
+        /** Salta un valor que no es una cadena, con lo que tenga anidado. */
+        private void skipValue() {
+            int depth = 0;
+            while (true) {
+                char c = peek();
+                if (c == '"') {
+                    parseString();
+                    continue;
+                }
+                if (depth == 0 && (c == ',' || c == '}')) {
+                    return;
+                }
+                if (c == '{' || c == '[') {
+                    depth++;
+                } else if (c == '}' || c == ']') {
+                    depth--;
+                }
+                pos++;
+            }
+        }
+
+        private void skipWhitespace() {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+                pos++;
+            }
+        }
+
+        private char peek() {
+            if (pos >= text.length()) {
+                throw new IllegalArgumentException("fin de línea inesperado");
+            }
+            return text.charAt(pos);
+        }
+
+        private char next() {
+            char c = peek();
+            pos++;
+            return c;
+        }
+
+        private void expect(char c) {
+            if (next() != c) {
+                throw new IllegalArgumentException("se esperaba '" + c + "' en la posición " + (pos - 1));
+            }
+        }
+    }
+}
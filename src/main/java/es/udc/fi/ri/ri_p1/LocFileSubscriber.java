@@ -0,0 +1,299 @@
+package es.udc.fi.ri.ri_p1;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+
+/**
+ * Vuelca el cuerpo de una respuesta HTTP directamente a su fichero .loc a medida que llega, sin
+ * acumularlo en memoria. El resultado indica los bytes escritos y su hash SHA-256, de modo que el
+ * tamaño y la huella del fichero se conocen sin volver a leerlo.
+ *
+ * <p>Sin fichero (al usar el archivo de páginas) el cuerpo se acumula en memoria, calculando el
+ * hash igualmente, y se devuelve en {@link LocFile#bytes}.
+ *
+ * <p>El cuerpo se corta al llegar a {@code maxBytes}: se guarda lo recibido hasta ese punto, se
+ * cancela la descarga y el resultado queda marcado como truncado. Así una página enorme o un
+ * servidor que no termina de enviar no agotan la memoria ni el disco. Las respuestas que no son
+ * HTML se descartan sin descargarlas: por su Content-Type o, si este falta o es genérico, por los
+ * primeros bytes del cuerpo.
+ */
+class LocFileSubscriber implements HttpResponse.BodySubscriber<LocFileSubscriber.LocFile> {
+
+    /**
+     * Resultado de la descarga: tamaño en bytes y hash del contenido del fichero .loc, y el
+     * contenido en sí si no se escribió en un fichero.
+     */
+    static class LocFile {
+        final long size;
+        final String contentHash;
+        final byte[] bytes;
+        // El cuerpo superaba maxBytes y se guardó solo su comienzo
+        final boolean truncated;
+        // Tipo de contenido por el que se descartó la respuesta sin guardarla (null si se guardó)
+        final String skippedType;
+
+        LocFile(long size, String contentHash, byte[] bytes, boolean truncated) {
+            this(size, contentHash, bytes, truncated, null);
+        }
+
+        private LocFile(long size, String contentHash, byte[] bytes, boolean truncated, String skippedType) {
+            this.size = size;
+            this.contentHash = contentHash;
+            this.bytes = bytes;
+            this.truncated = truncated;
+            this.skippedType = skippedType;
+        }
+
+        static LocFile skipped(String type) {
+            return new LocFile(0, null, null, false, type);
+        }
+
+        boolean isSkipped() {
+            return skippedType != null;
+        }
+    }
+
+    /** Sin límite de tamaño. */
+    static final long UNLIMITED = Long.MAX_VALUE;
+
+    // Bytes del comienzo del cuerpo que se examinan para decidir si es HTML
+    private static final int SNIFF_BYTES = 512;
+    // Firmas de formatos binarios habituales: PDF, PNG, GIF, JPEG, ZIP, gzip y RIFF (WebP, AVI, WAV)
+    private static final byte[][] BINARY_SIGNATURES = {
+            {'%', 'P', 'D', 'F', '-'},
+            {(byte) 0x89, 'P', 'N', 'G'},
+            {'G', 'I', 'F', '8'},
+            {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF},
+            {'P', 'K', 0x03, 0x04},
+            {0x1F, (byte) 0x8B},
+            {'R', 'I', 'F', 'F'},
+    };
+
+    private final Path file;
+    private final long maxBytes;
+    private final String contentType;
+    // El Content-Type no basta para decidir: se miran los primeros bytes
+    private boolean sniff;
+    private ByteArrayOutputStream memory;
+    private final CompletableFuture<LocFile> result = new CompletableFuture<>();
+    private final MessageDigest digest;
+    private FileChannel channel;
+    private Flow.Subscription subscription;
+    private long written;
+
+    LocFileSubscriber(Path file, long maxBytes, String contentType) {
+        this.file = file;
+        this.maxBytes = maxBytes;
+        this.contentType = contentType;
+        try {
+            this.digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // Toda JVM está obligada a soportar SHA-256
+        }
+    }
+
+    /**
+     * Manejador que escribe en {@code file} (o en memoria si es null) solo las respuestas 200, y
+     * como mucho {@code maxBytes} de cada una. El resto (redirecciones, 304, errores) se descartan
+     * y devuelven null.
+     */
+    static HttpResponse.BodyHandler<LocFile> handler(Path file, long maxBytes) {
+        return responseInfo -> responseInfo.statusCode() == 200
+                ? new LocFileSubscriber(file, maxBytes, responseInfo.headers().firstValue("Content-Type").orElse(null))
+                : HttpResponse.BodySubscribers.replacing(null);
+    }
+
+    /** Como {@link #handler(Path, long)}, sin límite de tamaño. */
+    static HttpResponse.BodyHandler<LocFile> handler(Path file) {
+        return handler(file, UNLIMITED);
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        this.subscription = subscription;
+        String mimeType = mimeType(contentType);
+        if (isHtml(mimeType)) {
+            sniff = false;
+        } else if (mimeType.isEmpty() || "text/plain".equals(mimeType) || "application/octet-stream".equals(mimeType)) {
+            sniff = true; // Tipo ausente o genérico: se decide por el contenido
+        } else {
+            // Imágenes, PDF, vídeo...: se cancela antes de recibir el cuerpo
+            subscription.cancel();
+            result.complete(LocFile.skipped(mimeType));
+            return;
+        }
+        subscription.request(1);
+    }
+
+    @Override
+    public void onNext(List<ByteBuffer> buffers) {
+        if (result.isDone()) {
+            return; // Ya cancelada; pueden llegar datos que estaban en camino
+        }
+        if (sniff) {
+            sniff = false;
+            if (looksBinary(buffers)) {
+                subscription.cancel();
+                result.complete(LocFile.skipped(contentType == null ? "binario" : mimeType(contentType)));
+                return;
+            }
+        }
+        try {
+            openOutput();
+            for (ByteBuffer buffer : buffers) {
+                if (written + buffer.remaining() > maxBytes) {
+                    // Se guarda hasta el límite y se abandona el resto de la respuesta
+                    buffer.limit(buffer.position() + (int) (maxBytes - written));
+                    write(buffer);
+                    subscription.cancel();
+                    finish(true);
+                    return;
+                }
+                write(buffer);
+            }
+        } catch (IOException e) {
+            subscription.cancel();
+            closeChannel();
+            result.completeExceptionally(e);
+            return;
+        }
+        subscription.request(1);
+    }
+
+    private void openOutput() throws IOException {
+        if (memory != null || channel != null) {
+            return;
+        }
+        if (file == null) {
+            memory = new ByteArrayOutputStream();
+        } else {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        }
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        digest.update(buffer.duplicate());
+        if (memory != null) {
+            byte[] chunk = new byte[buffer.remaining()];
+            buffer.get(chunk);
+            memory.write(chunk, 0, chunk.length);
+            written += chunk.length;
+            return;
+        }
+        while (buffer.hasRemaining()) {
+            written += channel.write(buffer);
+        }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        closeChannel();
+        result.completeExceptionally(throwable);
+    }
+
+    @Override
+    public void onComplete() {
+        if (result.isDone()) {
+            return;
+        }
+        try {
+            openOutput(); // Cuerpo vacío: el .loc se crea igualmente
+            finish(false);
+        } catch (IOException e) {
+            closeChannel();
+            result.completeExceptionally(e);
+        }
+    }
+
+    private void finish(boolean truncated) throws IOException {
+        if (memory != null) {
+            result.complete(new LocFile(written, toHex(digest.digest()), memory.toByteArray(), truncated));
+            return;
+        }
+        channel.close();
+        result.complete(new LocFile(written, toHex(digest.digest()), null, truncated));
+    }
+
+    @Override
+    public CompletionStage<LocFile> getBody() {
+        return result;
+    }
+
+    /** Tipo MIME de una cabecera Content-Type, en minúsculas y sin parámetros ("" si no hay). */
+    static String mimeType(String contentType) {
+        if (contentType == null) {
+            return "";
+        }
+        int semicolon = contentType.indexOf(';');
+        return (semicolon >= 0 ? contentType.substring(0, semicolon) : contentType).trim().toLowerCase(Locale.ROOT);
+    }
+
+    private static boolean isHtml(String mimeType) {
+        return "text/html".equals(mimeType) || "application/xhtml+xml".equals(mimeType);
+    }
+
+    /**
+     * Decide por los primeros bytes si el cuerpo es binario: firmas de formatos habituales o bytes
+     * de control que no aparecen en texto.
+     */
+    static boolean looksBinary(List<ByteBuffer> buffers) {
+        byte[] head = new byte[SNIFF_BYTES];
+        int n = 0;
+        for (ByteBuffer buffer : buffers) {
+            ByteBuffer view = buffer.duplicate();
+            while (view.hasRemaining() && n < head.length) {
+                head[n++] = view.get();
+            }
+        }
+        // Texto en UTF-16 con BOM: tiene bytes nulos, pero no es binario
+        if (n >= 2 && (head[0] == (byte) 0xFE && head[1] == (byte) 0xFF
+                || head[0] == (byte) 0xFF && head[1] == (byte) 0xFE)) {
+            return false;
+        }
+        for (byte[] magic : BINARY_SIGNATURES) {
+            if (n >= magic.length && Arrays.equals(head, 0, magic.length, magic, 0, magic.length)) {
+                return true;
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            int b = head[i] & 0xFF;
+            // Bytes de control salvo tabulador, saltos de línea, avance de página, retorno y ESC
+            if (b < 0x20 && b != '\t' && b != '\n' && b != 0x0C && b != '\r' && b != 0x1B) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    private void closeChannel() {
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            // El error original es el que se propaga
+        }
+    }
+}
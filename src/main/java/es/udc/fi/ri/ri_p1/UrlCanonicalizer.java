@@ -0,0 +1,42 @@
+package es.udc.fi.ri.ri_p1;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Locale;
+
+/**
+ * Forma canónica de una URL, usada como clave del documento en el índice: esquema y host en
+ * minúsculas, sin puerto por defecto, ruta normalizada y sin fragmento.
+ */
+final class UrlCanonicalizer {
+
+    private UrlCanonicalizer() {}
+
+    static String canonicalize(String url) {
+        String trimmed = url.trim();
+        try {
+            URI uri = new URI(trimmed).normalize();
+            if (uri.getScheme() == null || uri.getHost() == null) {
+                return trimmed;
+            }
+            String scheme = uri.getScheme().toLowerCase(Locale.ROOT);
+            String host = uri.getHost().toLowerCase(Locale.ROOT);
+            int port = uri.getPort();
+            if (("http".equals(scheme) && port == 80) || ("https".equals(scheme) && port == 443)) {
+                port = -1;
+            }
+            String path = uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" : uri.getRawPath();
+            StringBuilder canonical = new StringBuilder(scheme).append("://").append(host);
+            if (port != -1) {
+                canonical.append(':').append(port);
+            }
+            canonical.append(path);
+            if (uri.getRawQuery() != null) {
+                canonical.append('?').append(uri.getRawQuery());
+            }
+            return canonical.toString();
+        } catch (URISyntaxException e) {
+            return trimmed;
+        }
+    }
+}
@@ -0,0 +1,451 @@
+package es.udc.fi.ri.ri_p1;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.index.ReaderManager;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.PrefixQuery;
+import org.apache.lucene.util.IOUtils;
+
+/**
+ * Modo demonio de IndexFiles ({@code -watch}): vigila con un {@link WatchService} el árbol de
+ * {@code -docs} y aplica al índice las altas, cambios y borrados de ficheros según se producen,
+ * sobre los mismos IndexWriter de siempre, que quedan abiertos.
+ *
+ * <p>Los eventos de una misma ruta se agrupan: el fichero se indexa cuando lleva {@code
+ * debounceMillis} sin eventos, así que una copia o una escritura en varios trozos se indexa una
+ * sola vez ya terminada. Los cambios se hacen visibles en este proceso refrescando cada {@code
+ * refreshMillis} un lector casi en tiempo real (NRT) por parte del índice, sobre el que se busca con
+ * {@link #acquireReader()}; para otros procesos, como SearchFiles, solo lo son cuando se confirman
+ * en disco, cada {@code commitMillis} y al terminar. De cada cambio se mide la latencia desde la
+ * escritura del fichero hasta ambos momentos.
+ *
+ * <p>WatchService no avisa de lo que ocurre dentro de los directorios nuevos antes de que se
+ * registren, así que cada directorio nuevo se recorre entero; y si se pierden eventos (OVERFLOW)
+ * se vuelve a recorrer todo el árbol de forma incremental.
+ */
+class WatchIndexer implements Closeable {
+
+    // Margen para la resolución de la fecha de modificación de algunos sistemas de ficheros
+    private static final long MTIME_SLACK_MILLIS = 2000;
+
+    /** Eventos pendientes de una ruta. */
+    private static class Pending {
+        final long firstEventMillis;
+        long lastEventNanos;
+
+        Pending(long firstEventMillis, long lastEventNanos) {
+            this.firstEventMillis = firstEventMillis;
+            this.lastEventNanos = lastEventNanos;
+        }
+    }
+
+    private final IndexFiles indexFiles;
+    private final IndexShards shards;
+    private final Path docDir;
+    private final long debounceNanos;
+    private final long refreshMillis;
+    private final long commitMillis;
+
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> watchedDirs = new HashMap<>();
+    private final Map<Path, Pending> pending = new HashMap<>();
+    private boolean rescan;
+    private volatile boolean stopped;
+
+    private final ReaderManager[] readers;
+    private final ScheduledExecutorService scheduler;
+    // Momento de la escritura (epoch ms) de los cambios aplicados que aún no son visibles en los
+    // lectores NRT, y de los que aún no se han confirmado en disco
+    private final ConcurrentLinkedQueue<Long> unpublished = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Long> unsynced = new ConcurrentLinkedQueue<>();
+    private volatile boolean uncommitted;
+    private final CrawlMetrics.Histogram nrtLatency = new CrawlMetrics.Histogram();
+    private final CrawlMetrics.Histogram commitLatency = new CrawlMetrics.Histogram();
+    private long indexedFiles;
+    private long deletedPaths;
+
+    /**
+     * Registra la vigilancia de todo el árbol. Conviene crearlo antes de la indexación inicial,
+     * para no perder los cambios que se hagan mientras tanto.
+     */
+    WatchIndexer(IndexFiles indexFiles, IndexShards shards, Path docDir, long debounceMillis, long refreshMillis,
+                 long commitMillis) throws IOException {
+        if (debounceMillis < 0 || refreshMillis < 1 || commitMillis < 1) {
+            throw new IllegalArgumentException("intervalos de vigilancia no válidos");
+        }
+        this.indexFiles = indexFiles;
+        this.shards = shards;
+        this.docDir = docDir;
+        this.debounceNanos = TimeUnit.MILLISECONDS.toNanos(debounceMillis);
+        this.refreshMillis = refreshMillis;
+        this.commitMillis = commitMillis;
+        watchService = FileSystems.getDefault().newWatchService();
+        registerTree(docDir, false);
+        readers = new ReaderManager[shards.count()];
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = new ReaderManager(shards.writer(i));
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "nrt-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Atiende los eventos hasta que se llama a {@link #stop()}, por ejemplo desde el gancho de
+     * cierre que se instala al empezar (Ctrl-C).
+     */
+    void run() throws IOException {
+        Thread mainThread = Thread.currentThread();
+        Thread hook = new Thread(() -> {
+            stop();
+            try {
+                mainThread.join(); // Que dé tiempo a confirmar y cerrar el índice
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "watch-shutdown");
+        Runtime.getRuntime().addShutdownHook(hook);
+
+        // Lo indexado en la pasada inicial también tiene que hacerse visible
+        uncommitted = true;
+        scheduler.scheduleWithFixedDelay(this::refresh, 0, refreshMillis, TimeUnit.MILLISECONDS);
+        scheduler.scheduleWithFixedDelay(this::commit, commitMillis, commitMillis, TimeUnit.MILLISECONDS);
+        System.out.println("Vigilando " + docDir + " (" + watchedDirs.size() + " directorios); Ctrl-C para terminar");
+        try {
+            while (!stopped) {
+                WatchKey key;
+                try {
+                    key = watchService.poll(pollTimeoutNanos(), TimeUnit.NANOSECONDS);
+                } catch (InterruptedException | ClosedWatchServiceException e) {
+                    break;
+                }
+                while (key != null) {
+                    handle(key);
+                    key = watchService.poll();
+                }
+                if (rescan) {
+                    rescan();
+                }
+                applyDue();
+            }
+        } finally {
+            try {
+                Runtime.getRuntime().removeShutdownHook(hook);
+            } catch (IllegalStateException e) {
+                // La JVM ya se está cerrando y el gancho está en marcha
+            }
+            scheduler.shutdown();
+            try {
+                scheduler.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            commit();
+            refresh();
+            printSummary();
+        }
+    }
+
+    /** Deja de vigilar; {@link #run()} termina tras confirmar lo aplicado. */
+    void stop() {
+        stopped = true;
+        try {
+            watchService.close(); // Despierta al hilo que espera eventos
+        } catch (IOException e) {
+            // Se está cerrando de todas formas
+        }
+    }
+
+    /**
+     * Lector NRT de todo el índice con lo aplicado hasta el último refresco. Hay que cerrarlo al
+     * terminar de buscar, lo que devuelve los lectores de cada parte a sus ReaderManager.
+     */
+    IndexReader acquireReader() throws IOException {
+        DirectoryReader[] acquired = new DirectoryReader[readers.length];
+        try {
+            for (int i = 0; i < readers.length; i++) {
+                acquired[i] = readers[i].acquire();
+            }
+            return new MultiReader(acquired, false) {
+                @Override
+                protected synchronized void doClose() throws IOException {
+                    try {
+                        super.doClose();
+                    } finally {
+                        release(acquired);
+                    }
+                }
+            };
+        } catch (IOException | RuntimeException e) {
+            release(acquired);
+            throw e;
+        }
+    }
+
+    private void release(DirectoryReader[] acquired) throws IOException {
+        for (int i = 0; i < acquired.length; i++) {
+            if (acquired[i] != null) {
+                readers[i].release(acquired[i]);
+            }
+        }
+    }
+
+    /** Espera hasta que venza el primer cambio pendiente, o un rato si no hay ninguno. */
+    private long pollTimeoutNanos() {
+        long now = System.nanoTime();
+        long timeout = TimeUnit.SECONDS.toNanos(1);
+        for (Pending change : pending.values()) {
+            timeout = Math.min(timeout, change.lastEventNanos + debounceNanos - now);
+        }
+        return Math.max(TimeUnit.MILLISECONDS.toNanos(1), timeout);
+    }
+
+    private void handle(WatchKey key) {
+        Path dir = watchedDirs.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                rescan = true;
+                continue;
+            }
+            if (dir != null) {
+                touch(dir.resolve((Path) event.context()));
+            }
+        }
+        if (!key.reset()) {
+            watchedDirs.remove(key); // Directorio borrado
+        }
+    }
+
+    /** Anota un evento de la ruta; se aplicará cuando lleve el tiempo de espera sin más eventos. */
+    private void touch(Path path) {
+        long now = System.nanoTime();
+        Pending change = pending.get(path);
+        if (change == null) {
+            pending.put(path, new Pending(System.currentTimeMillis(), now));
+        } else {
+            change.lastEventNanos = now;
+        }
+    }
+
+    /** Aplica los cambios de las rutas que llevan el tiempo de espera sin eventos. */
+    private void applyDue() {
+        long now = System.nanoTime();
+        List<Map.Entry<Path, Pending>> due = new ArrayList<>();
+        for (Iterator<Map.Entry<Path, Pending>> it = pending.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Path, Pending> entry = it.next();
+            if (now - entry.getValue().lastEventNanos >= debounceNanos) {
+                due.add(entry);
+                it.remove();
+            }
+        }
+        for (Map.Entry<Path, Pending> entry : due) {
+            try {
+                apply(entry.getKey(), entry.getValue());
+            } catch (IOException e) {
+                e.printStackTrace(System.err);
+                // don't index files that can't be read.
+            }
+        }
+    }
+
+    private void apply(Path path, Pending change) throws IOException {
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (IOException e) {
+            attrs = null; // Ya no existe
+        }
+        if (attrs == null) {
+            delete(path);
+            written(change.firstEventMillis);
+        } else if (attrs.isDirectory()) {
+            // Directorio nuevo (o movido aquí): se vigila y sus ficheros pasan a estar pendientes
+            registerTree(path, true);
+        } else {
+            long lastModified = attrs.lastModifiedTime().toMillis();
+            indexFiles.indexDoc(shards.writerFor(path.toString()), path, lastModified, attrs.size());
+            indexedFiles++;
+            // Un fichero movido conserva su fecha de modificación: entonces cuenta desde el primer evento
+            written(lastModified >= change.firstEventMillis - MTIME_SLACK_MILLIS
+                    ? lastModified : change.firstEventMillis);
+        }
+    }
+
+    /** Anota un cambio ya aplicado al índice, escrito en el fichero en ese momento (epoch ms). */
+    private void written(long writeMillis) {
+        unpublished.add(writeMillis);
+        unsynced.add(writeMillis);
+        uncommitted = true;
+    }
+
+    /** Borra el documento de la ruta y, si era un directorio, los de todo lo que contenía. */
+    private void delete(Path path) throws IOException {
+        System.out.println("deleting " + path);
+        String key = path.toString();
+        shards.writerFor(key).deleteDocuments(new Term("path", key));
+        PrefixQuery contents = new PrefixQuery(new Term("path", key + path.getFileSystem().getSeparator()));
+        for (int i = 0; i < shards.count(); i++) {
+            shards.writer(i).deleteDocuments(contents);
+        }
+        deletedPaths++;
+    }
+
+    /** Vigila el directorio y sus subdirectorios; si se pide, deja pendientes sus ficheros. */
+    private void registerTree(Path root, boolean addFiles) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                WatchKey key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+                watchedDirs.put(key, dir);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (addFiles) {
+                    touch(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                return FileVisitResult.CONTINUE; // Borrado mientras se recorría
+            }
+        });
+    }
+
+    /** Se han perdido eventos: se vuelve a comparar todo el árbol con el índice. */
+    private void rescan() {
+        rescan = false;
+        System.out.println("Se han perdido eventos de " + docDir + "; recorriendo el árbol de nuevo");
+        try {
+            registerTree(docDir, false);
+            long now = System.currentTimeMillis();
+            indexFiles.loadIndexedFiles(shards, docDir);
+            indexFiles.indexDocs(shards, docDir);
+            indexFiles.deleteVanishedFiles(shards);
+            written(now);
+        } catch (IOException e) {
+            e.printStackTrace(System.err);
+        }
+    }
+
+    /**
+     * Refresca los lectores NRT. Todo lo aplicado antes de empezar el refresco es buscable en
+     * {@link #acquireReader()} al terminar, así que ahí se mide su latencia.
+     */
+    private void refresh() {
+        List<Long> writes = drain(unpublished);
+        long start = System.nanoTime();
+        try {
+            for (ReaderManager reader : readers) {
+                reader.maybeRefreshBlocking();
+            }
+        } catch (IOException e) {
+            e.printStackTrace(System.err);
+            unpublished.addAll(writes); // Se intentará en el siguiente refresco
+            return;
+        }
+        if (!writes.isEmpty()) {
+            System.out.println(String.format("%d cambios buscables en el lector NRT de este proceso: %s "
+                    + "(refresco %.1f ms)", writes.size(), record(writes, nrtLatency),
+                    (System.nanoTime() - start) / 1e6));
+        }
+    }
+
+    /**
+     * Confirma en disco lo aplicado, para que lo vean otros procesos; para ellos la latencia de un
+     * cambio es la que hay hasta aquí.
+     */
+    private void commit() {
+        if (!uncommitted) {
+            return;
+        }
+        uncommitted = false;
+        List<Long> writes = drain(unsynced);
+        long start = System.nanoTime();
+        try {
+            shards.commit();
+        } catch (IOException e) {
+            uncommitted = true;
+            unsynced.addAll(writes);
+            e.printStackTrace(System.err);
+            return;
+        }
+        if (!writes.isEmpty()) {
+            System.out.println(String.format("%d cambios confirmados en disco, visibles para SearchFiles: %s "
+                    + "(commit %.1f ms)", writes.size(), record(writes, commitLatency),
+                    (System.nanoTime() - start) / 1e6));
+        }
+    }
+
+    private static List<Long> drain(ConcurrentLinkedQueue<Long> queue) {
+        List<Long> writes = new ArrayList<>();
+        for (Long write = queue.poll(); write != null; write = queue.poll()) {
+            writes.add(write);
+        }
+        return writes;
+    }
+
+    /** Registra la latencia de cada escritura hasta ahora y la resume. */
+    private static String record(List<Long> writes, CrawlMetrics.Histogram latency) {
+        long now = System.currentTimeMillis();
+        long max = 0;
+        long sum = 0;
+        for (long write : writes) {
+            long millis = Math.max(0, now - write);
+            latency.record(TimeUnit.MILLISECONDS.toNanos(millis));
+            max = Math.max(max, millis);
+            sum += millis;
+        }
+        return String.format("latencia desde la escritura media %d ms, máx %d ms", sum / writes.size(), max);
+    }
+
+    private void printSummary() {
+        System.out.println(String.format("Vigilancia terminada: %d ficheros indexados y %d rutas borradas en %d "
+                        + "cambios; latencia desde la escritura hasta el lector NRT de este proceso %s, hasta el disco "
+                        + "(SearchFiles) %s", indexedFiles, deletedPaths, nrtLatency.count(), summary(nrtLatency),
+                summary(commitLatency)));
+    }
+
+    private static String summary(CrawlMetrics.Histogram latency) {
+        return String.format("p50 %.0f ms, p99 %.0f ms, máx %.0f ms", latency.percentileMillis(0.5),
+                latency.percentileMillis(0.99), latency.maxMillis());
+    }
+
+    @Override
+    public void close() throws IOException {
+        stop();
+        scheduler.shutdownNow();
+        IOUtils.close(readers);
+    }
+}
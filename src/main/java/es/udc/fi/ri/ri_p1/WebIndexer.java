@@ -2,11 +2,13 @@ package es.udc.fi.ri.ri_p1;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.codecs.Codec;
+import org.apache.lucene.codecs.lucene95.Lucene95Codec;
 import org.apache.lucene.document.*;
 import org.apache.lucene.index.*;
-import org.apache.lucene.store.Directory;
-import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
 import org.jsoup.Jsoup;
 
 
@@ -16,17 +18,33 @@ import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.StandardOpenOption;
 import java.time.Duration;
-import java.util.Date;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 public class WebIndexer {
 
@@ -36,30 +54,142 @@ public class WebIndexer {
     private static boolean bodyTermVectors;
     private static Analyzer analyzer;
     private static boolean printThreadInfo ;
-    private static String[] onlyDoms;
+    private static DomainFilter domainFilter;
 
+    // Cliente HTTP compartido por todo el crawl (reutiliza conexiones, sesiones TLS y HTTP/2)
+    private static HttpClient httpClient;
+    // Limita el número de páginas en vuelo (descargando o pendientes de indexar), adaptándolo a la
+    // latencia y los errores de las respuestas
+    private static ConcurrencyLimiter inFlight;
+    // Colas por host con su límite de peticiones por segundo y de páginas en curso (null con -reindex)
+    private static HostScheduler hostScheduler;
+    // Pool work-stealing que ejecuta las tareas por URL y la fase de parseo con jsoup e indexación
+    private static ExecutorService indexExecutor;
+    // Metadatos de la última descarga de cada URL, para las peticiones condicionales
+    private static FetchMetadataStore fetchMetadata;
+    // Solo se omiten las páginas sin cambios si el índice conserva los documentos anteriores
+    private static boolean conditionalFetch;
+    // Huellas del texto de las páginas indexadas, para descartar duplicados (null si no se usa -dedup)
+    private static DuplicateDetector duplicateDetector;
+    // URLs canónicas que aparecen en algún fichero .url (o descubiertas por el crawl) en esta ejecución
+    private static final Set<String> listedUrls = new HashSet<>();
+    // URLs descubiertas siguiendo enlaces pendientes de visitar (null si no se usa -maxDepth)
+    private static CrawlFrontier frontier;
+    // Tipos de los campos title y body, congelados y compartidos por todos los hilos
+    private static FieldType titleFieldType;
+    private static FieldType bodyFieldType;
+    // Caracteres del cuerpo que se almacenan en el índice (STORE_FULL_BODY, 0 o el truncado)
+    private static int storedBodyChars;
+    // Nombre de este equipo, resuelto una sola vez
+    private static String hostname;
+    // Plantilla de documento reutilizable de cada hilo del pool
+    private static final ThreadLocal<PageDocumentBuilder> documentBuilders = ThreadLocal.withInitial(
+            () -> new PageDocumentBuilder(titleFieldType, bodyFieldType, storedBodyChars, hostname,
+                    Thread.currentThread().getName()));
+    // Fechas de cada fichero .url, leídas al empezar a procesarlo
+    private static final Map<Path, PageDocumentBuilder.UrlFileTimes> urlFileTimes = new ConcurrentHashMap<>();
+    // Latencias por etapa y contadores del crawl
+    private static final CrawlMetrics metrics = new CrawlMetrics();
+    // Carga de trabajo de cada hilo del pool, para el informe de balanceo final
+    private static final Map<String, WorkerLoad> workerLoads = new ConcurrentHashMap<>();
+    // URLs terminadas y confirmadas en el índice, para poder reanudar tras una caída
+    private static ProgressJournal journal;
+    // Hilo de fondo para los checkpoints y las instantáneas de métricas
+    private static ScheduledExecutorService scheduler;
+    // Partes del índice, con su IndexWriter; las URLs se reparten por el hash de su forma canónica
+    private static IndexShards indexShards;
+    // Archivo de páginas en segmentos en lugar de ficheros .loc/.loc.notags (null si no se usa -archive)
+    private static PageArchive archive;
+    // Tamaño máximo del cuerpo de una página; lo que pase de ahí no se descarga
+    private static long maxBodyBytes;
+    // Páginas que no se pudieron reindexar con -reindex
+    private static final LongAdder reindexFailures = new LongAdder();
+    // Cortacircuitos de los hosts que no responden
+    private static HostCircuitBreaker circuitBreaker;
+    // URLs que no se pudieron descargar o indexar, para reintentarlas con -retryDeadLetters
+    private static DeadLetterQueue deadLetters;
+    // Reintentos de los fallos transitorios y saltos máximos de una cadena de redirecciones
+    private static int maxRetries;
+    private static int maxRedirects;
+    // Espera base y máxima entre reintentos
+    private static final long RETRY_BASE_MILLIS = 500;
+    private static final long RETRY_MAX_MILLIS = 30_000;
+    // URLs en cola entre todos los hosts antes de que la lectura de los ficheros .url espere
+    private static final int HOST_QUEUE_CAPACITY = 10_000;
+
+    /**
+     * Unidad de trabajo del pool: una única URL junto con el fichero .url del que procede, de modo
+     * que un fichero grande se reparte entre todos los hilos en lugar de recaer en uno solo. Las
+     * URLs de los ficheros .url tienen profundidad 0 y las descubiertas por el crawl, la de la
+     * página que las enlaza más uno.
+     */
     public static class WorkerThread implements Runnable {
-        private final Path folder;
-        private final IndexWriter writer;
-        public WorkerThread(final Path folder, IndexWriter writer) {
-            this.folder = folder;
-            this.writer = writer;
+        private final String url;
+        private final String key;
+        private final Path urlFile;
+        private final int depth;
+        public WorkerThread(final String url, final String key, final Path urlFile, int depth) {
+            this.url = url;
+            this.key = key;
+            this.urlFile = urlFile;
+            this.depth = depth;
         }
         /**
          * This is the work that the current thread will do when processed by the pool.
-         * In this case, it will only print some information.
+         * It launches the download of its URL; the page is indexed later by whichever worker
+         * picks up the parse task.
          */
         @Override
         public void run() {
-            System.out.println(String.format("I am the thread '%s' and I am responsible for folder '%s'",
-                    Thread.currentThread().getName(), folder));
+            CompletableFuture<Void> pipeline;
+            try {
+                pipeline = fetchUrl(this, url);
+            } catch (IllegalArgumentException e) { // URL mal formada
+                hostScheduler.done(url);
+                inFlight.release();
+                e.printStackTrace();
+                return;
+            }
+            pipeline.whenComplete((ignored, e) -> {
+                if (e != null) {
+                    // No se anota en el diario: se reintenta al reanudar o con -retryDeadLetters
+                    Throwable cause = unwrap(e);
+                    System.out.println("Fallo en la URL " + url + ": " + cause);
+                    deadLetters.add(url, urlFile, String.valueOf(cause));
+                    metrics.deadLettered();
+                } else if (journal.markDone(urlFile, key)) {
+                    scheduler.execute(WebIndexer::checkpoint);
+                }
+                hostScheduler.done(url);
+                inFlight.release();
+            });
+        }
 
-            processUrlFile(folder, writer);
+    }
+
+    /** Página ya descargada según el índice anterior, para reindexarla sin red con -reindex. */
+    private static class StoredPage {
+        final String key;
+        final String path;
+        final Path urlFile;
+        final boolean truncated;
+
+        StoredPage(String key, String path, Path urlFile, boolean truncated) {
+            this.key = key;
+            this.path = path;
+            this.urlFile = urlFile;
+            this.truncated = truncated;
         }
+    }
 
+    /** Páginas indexadas y tiempo ocupado de un hilo del pool. */
+    private static class WorkerLoad {
+        final LongAdder pages = new LongAdder();
+        final LongAdder busyNanos = new LongAdder();
     }
     public static void main(String[] args) throws IOException, InterruptedException {
 
+        long startTime = System.currentTimeMillis();
         String indexPath = "src/main/resources/index";    // Carpeta donde se almacenará el índice
         docsPath = "src/main/resources/docs";             // Carpeta donde se almacenan los archivos .loc y .loc.notags
         urlPath = "src/test/resources/urls";              // Carpeta donde se almacenan los archivos .url
@@ -69,6 +199,35 @@ public class WebIndexer {
         boolean printAppInfo = false;  // Flag para la opción appInfo
         titleTermVectors = false;      // Flag para la opción titleTermVectors
         bodyTermVectors = false;       // Flag para la opción bodyTermVectors
+        int maxInFlight = 64;          // Número máximo de peticiones HTTP simultáneas
+        int minInFlight = 4;           // Número mínimo al que puede bajar el límite adaptativo
+        boolean fixedInFlight = false; // Usar siempre maxInFlight en lugar del límite adaptativo
+        double hostRate = 2;           // Peticiones por segundo a un mismo host (0 = sin límite)
+        int hostBurst = 2;             // Peticiones seguidas a un host tras un rato sin pedirle nada
+        int hostConnections = 2;       // Páginas de un mismo host en curso a la vez
+        maxRetries = 3;                // Reintentos de los fallos transitorios
+        maxRedirects = 5;              // Saltos máximos de una cadena de redirecciones
+        int breakerFailures = 5;       // Fallos seguidos que abren el circuito de un host
+        int breakerCooldown = 30;      // Segundos con el circuito abierto antes de probar de nuevo
+        boolean retryDeadLetters = false; // Reintentar solo las URLs del fichero de fallidas
+        boolean dedup = false;         // Flag para la opción dedup
+        int maxDepth = 0;              // Profundidad máxima siguiendo enlaces (0 = solo los ficheros .url)
+        int maxPagesPerHost = Integer.MAX_VALUE; // Número máximo de páginas por host
+        String metricsPath = null;     // Fichero (.json o .csv) donde se guardan las métricas periódicamente
+        int metricsInterval = 10;      // Segundos entre instantáneas de las métricas
+        boolean resume = false;        // Flag para la opción resume
+        int commitEvery = 0;           // Páginas terminadas entre checkpoints (0 = solo por tiempo)
+        int commitInterval = 60;       // Segundos entre checkpoints (0 = solo por número de páginas)
+        boolean bulk = false;          // Flag para la opción bulk
+        double ramBufferMB = 0;        // Buffer de RAM de cada IndexWriter (0 = el de Lucene o el de -bulk)
+        boolean forceMerge = false;    // Fusionar el índice en un único segmento al terminar
+        int shards = 1;                // Número de partes del índice
+        boolean useArchive = false;    // Flag para la opción archive
+        long archiveSegmentMB = PageArchive.DEFAULT_SEGMENT_BYTES >> 20; // Tamaño máximo de cada segmento del archivo
+        boolean reindex = false;       // Flag para la opción reindex
+        storedBodyChars = PageDocumentBuilder.STORE_FULL_BODY; // Opción storeBody: full, none o nº de caracteres
+        boolean bestCompression = false; // Comprimir los campos almacenados al máximo (BEST_COMPRESSION)
+        maxBodyBytes = 10L << 20;      // Tamaño máximo del cuerpo de cada página (opción maxBodyMB)
 
         for (int i = 0; i < args.length; i++) {
             switch (args[i]) {
@@ -96,6 +255,93 @@ public class WebIndexer {
                 case "-bodyTermVectors":
                     bodyTermVectors = true;
                     break;
+                case "-maxDepth":
+                    maxDepth = Integer.parseInt(args[++i]);
+                    break;
+                case "-maxPagesPerHost":
+                    maxPagesPerHost = Integer.parseInt(args[++i]);
+                    break;
+                case "-metrics":
+                    metricsPath = args[++i];
+                    break;
+                case "-metricsInterval":
+                    metricsInterval = Integer.parseInt(args[++i]);
+                    break;
+                case "-dedup":
+                    dedup = true;
+                    break;
+                case "-resume":
+                    resume = true;
+                    break;
+                case "-commitEvery":
+                    commitEvery = Integer.parseInt(args[++i]);
+                    break;
+                case "-commitInterval":
+                    commitInterval = Integer.parseInt(args[++i]);
+                    break;
+                case "-bulk":
+                    bulk = true;
+                    break;
+                case "-ramBufferMB":
+                    ramBufferMB = Double.parseDouble(args[++i]);
+                    break;
+                case "-forceMerge":
+                    forceMerge = true;
+                    break;
+                case "-shards":
+                    shards = Integer.parseInt(args[++i]);
+                    break;
+                case "-archive":
+                    useArchive = true;
+                    break;
+                case "-archiveSegmentMB":
+                    archiveSegmentMB = Long.parseLong(args[++i]);
+                    break;
+                case "-reindex":
+                    reindex = true;
+                    break;
+                case "-storeBody":
+                    storedBodyChars = parseStoreBody(args[++i]);
+                    break;
+                case "-bestCompression":
+                    bestCompression = true;
+                    break;
+                case "-maxBodyMB":
+                    maxBodyBytes = (long) (Double.parseDouble(args[++i]) * (1 << 20));
+                    break;
+                case "-maxInFlight":
+                    maxInFlight = Integer.parseInt(args[++i]);
+                    break;
+                case "-minInFlight":
+                    minInFlight = Integer.parseInt(args[++i]);
+                    break;
+                case "-fixedInFlight":
+                    fixedInFlight = true;
+                    break;
+                case "-hostRate":
+                    hostRate = Double.parseDouble(args[++i]);
+                    break;
+                case "-hostBurst":
+                    hostBurst = Integer.parseInt(args[++i]);
+                    break;
+                case "-hostConnections":
+                    hostConnections = Integer.parseInt(args[++i]);
+                    break;
+                case "-maxRetries":
+                    maxRetries = Integer.parseInt(args[++i]);
+                    break;
+                case "-maxRedirects":
+                    maxRedirects = Integer.parseInt(args[++i]);
+                    break;
+                case "-breakerFailures":
+                    breakerFailures = Integer.parseInt(args[++i]);
+                    break;
+                case "-breakerCooldown":
+                    breakerCooldown = Integer.parseInt(args[++i]);
+                    break;
+                case "-retryDeadLetters":
+                    retryDeadLetters = true;
+                    break;
                 case "-analyzer":
                     String analyzerName = args[++i];
                     analyzer = getAnalyzer(analyzerName);
@@ -104,6 +350,45 @@ public class WebIndexer {
             }
         }
 
+        // Reindexar sin red a partir de las páginas ya descargadas que lista el índice actual. El
+        // índice se recrea, pero sin commits intermedios, así que el anterior sigue intacto hasta
+        // que termina la reindexación
+        List<StoredPage> storedPages = null;
+        if (reindex) {
+            if (resume) {
+                System.out.println("-reindex no se puede usar con -resume");
+                System.exit(-1);
+            }
+            storedPages = loadStoredPages(Path.of(indexPath));
+            create = true;
+            commitEvery = 0;
+            commitInterval = 0;
+            System.out.println("Reindexando " + storedPages.size() + " páginas ya descargadas");
+        }
+
+        // Reintentar las URLs fallidas solo tiene sentido sobre el índice que ya las lista
+        if (retryDeadLetters && (create || reindex)) {
+            System.out.println("-retryDeadLetters no se puede usar con -create ni con -reindex");
+            System.exit(-1);
+        }
+
+        // Al reanudar se conserva lo ya confirmado en el índice aunque la ejecución original usase -create
+        if (resume && create) {
+            System.out.println("-resume: se ignora -create para conservar el índice ya confirmado");
+            create = false;
+        }
+
+        // La carga masiva solo reconstruye índices completos y no hace commits intermedios, así que
+        // no hay checkpoints desde los que reanudar
+        if (bulk && !create) {
+            System.out.println("-bulk solo se puede usar con -create (y sin -resume)");
+            System.exit(-1);
+        }
+        if (bulk) {
+            commitEvery = 0;
+            commitInterval = 0;
+        }
+
         // Configurar el analizador predeterminado (StandardAnalyzer si no se proporciona uno)
         if (analyzer == null) {
             analyzer = new StandardAnalyzer();
@@ -114,68 +399,333 @@ public class WebIndexer {
         properties.load(new FileInputStream("src/main/resources/config.properties"));
 
         //Obtenemos los valores de las propiedades
-        String propOnlyDoms = properties.getProperty("onlyDoms");
-        if (propOnlyDoms != null) {
-            onlyDoms = propOnlyDoms.split("\\s+");
-        }
+        domainFilter = DomainFilter.fromProperties(properties);
 
-        // Inicializar el directorio del índice
-        Directory indexDirectory = FSDirectory.open(Path.of(indexPath));
+        // Opciones -titleTermVectors y -bodyTermVectors
+        titleFieldType = PageDocumentBuilder.textFieldType(titleTermVectors);
+        bodyFieldType = PageDocumentBuilder.textFieldType(bodyTermVectors,
+                storedBodyChars == PageDocumentBuilder.STORE_FULL_BODY);
+        hostname = InetAddress.getLocalHost().getHostName();
 
         // Configurar el analizador
         Analyzer analyzer = new StandardAnalyzer();
 
-        // Configurar el indexWriter
-        IndexWriterConfig indexWriterConfig = new IndexWriterConfig(analyzer);
-        if (create) {
-            indexWriterConfig.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
-        } else {
-            indexWriterConfig.setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND);
+        // Inicializar un IndexWriter por cada parte del índice, con la misma configuración
+        final boolean createIndex = create;
+        final double writerRamBufferMB = bulk ? 0 : ramBufferMB;
+        final Codec codec = bestCompression ? new Lucene95Codec(Lucene95Codec.Mode.BEST_COMPRESSION) : Codec.getDefault();
+        indexShards = IndexShards.open(Path.of(indexPath), shards, () -> {
+            IndexWriterConfig indexWriterConfig = new IndexWriterConfig(analyzer);
+            if (createIndex) {
+                indexWriterConfig.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+            } else {
+                indexWriterConfig.setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND);
+            }
+            if (writerRamBufferMB > 0) {
+                indexWriterConfig.setRAMBufferSizeMB(writerRamBufferMB);
+            }
+            indexWriterConfig.setCodec(codec);
+            return indexWriterConfig;
+        });
+        if (bulk) {
+            indexShards.startBulk(Path.of(indexPath), ramBufferMB > 0 ? ramBufferMB : BulkLoader.DEFAULT_RAM_BUFFER_MB);
         }
 
-        // Inicializar el IndexWriter
-        IndexWriter indexWriter = new IndexWriter(indexDirectory, indexWriterConfig);
+        // Cargar los metadatos de descargas anteriores. Con -create el índice se vacía, así que se
+        // descarga todo de nuevo aunque se siguen guardando los metadatos para la próxima ejecución
+        Files.createDirectories(Paths.get(docsPath));
+        fetchMetadata = FetchMetadataStore.load(Paths.get(docsPath, FetchMetadataStore.FILE_NAME));
 
-        // Configurar ThreadPool con el número de hilos especificado
-        ExecutorService executorService = Executors.newFixedThreadPool(numThreads);
+        // Al reindexar, el archivo de páginas se abre si existe aunque no se indique -archive
+        if (useArchive || reindex && Files.isDirectory(Paths.get(docsPath, PageArchive.DIR_NAME))) {
+            archive = PageArchive.open(Paths.get(docsPath, PageArchive.DIR_NAME), archiveSegmentMB << 20);
+        }
 
-        try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(Paths.get(urlPath))) {
+        // Las URLs que fallen se anotan para reintentarlas después con -retryDeadLetters
+        deadLetters = DeadLetterQueue.open(Paths.get(docsPath, DeadLetterQueue.FILE_NAME));
 
-            /* We process each subfolder in a new thread. */
-            for (final Path path : directoryStream) {
-                if (Files.isRegularFile(path)) {
-                    final Runnable worker = new WorkerThread(path, indexWriter);
-                    /*
-                     * Send the thread to the ThreadPool. It will be processed eventually.
-                     */
-                    executorService.execute(worker);
-                }
+        // Abrir el diario de progreso. Sin -resume se empieza uno nuevo
+        journal = ProgressJournal.open(Paths.get(docsPath, ProgressJournal.FILE_NAME), resume, commitEvery, create);
+        if (resume) {
+            System.out.println("Reanudando: " + journal.committedCount() + " URLs ya confirmadas en el índice");
+        }
+        // Las páginas sin cambios solo se omiten si el índice conserva los documentos anteriores: ni
+        // con -create ni al reanudar una ejecución que empezó con -create, cuyo índice recreado no
+        // tiene las páginas que describen los metadatos anteriores (un 304 las dejaría fuera)
+        conditionalFetch = !create && !journal.isCreateRun();
+
+        // Cargar las huellas de las páginas ya indexadas para detectar duplicados entre ejecuciones
+        if (dedup) {
+            duplicateDetector = new DuplicateDetector();
+            if (!create) {
+                loadFingerprints();
             }
+        }
 
-        } catch (final IOException e) {
-            e.printStackTrace();
-            System.exit(-1);
+        // Configurar el cliente HTTP compartido y el límite de peticiones en vuelo
+        httpClient = HttpClient.newBuilder()
+                .connectTimeout(Duration.ofSeconds(10))
+                .followRedirects(HttpClient.Redirect.NEVER) // Las redirecciones se siguen a mano en fetchUrl
+                .build();
+        // Sin red (-reindex) no hay latencias de las que aprender y el límite es fijo
+        minInFlight = Math.min(minInFlight, maxInFlight);
+        inFlight = fixedInFlight || reindex
+                ? ConcurrencyLimiter.fixed(maxInFlight)
+                : new ConcurrencyLimiter(Math.max(minInFlight, maxInFlight / 4), minInFlight, maxInFlight);
+        metrics.trackConcurrency(inFlight);
+        circuitBreaker = new HostCircuitBreaker(breakerFailures, TimeUnit.SECONDS.toMillis(breakerCooldown));
+
+        // Configurar un pool work-stealing con el número de hilos especificado. Cada URL es una tarea
+        // independiente, así que un fichero .url muy largo no deja al resto de hilos ociosos.
+        indexExecutor = Executors.newWorkStealingPool(numThreads);
+
+        // Las URLs pasan por una cola por host antes de llegar al pool, para no saturar ningún servidor
+        if (!reindex) {
+            hostScheduler = new HostScheduler(hostRate, hostBurst, hostConnections, HOST_QUEUE_CAPACITY, inFlight,
+                    indexExecutor);
         }
 
-        // Apagar el ThreadPool después de terminar todas las tareas
-        executorService.shutdown();
+        // Hilo de fondo único: los checkpoints nunca se solapan entre sí
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "checkpoint");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (commitInterval > 0) {
+            scheduler.scheduleAtFixedRate(WebIndexer::checkpoint,
+                    commitInterval, commitInterval, TimeUnit.SECONDS);
+        }
+
+        // Publicar las métricas por JMX y, si se pide, guardarlas periódicamente en un fichero. El
+        // límite de concurrencia se anota siempre, para el informe final
+        metrics.registerMBean();
+        scheduler.scheduleAtFixedRate(inFlight::sample, metricsInterval, metricsInterval, TimeUnit.SECONDS);
+        if (metricsPath != null) {
+            Path metricsFile = Paths.get(metricsPath);
+            scheduler.scheduleAtFixedRate(() -> {
+                try {
+                    metrics.writeSnapshot(metricsFile);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }, metricsInterval, metricsInterval, TimeUnit.SECONDS);
+        }
+
+        if (maxDepth > 0) {
+            frontier = new CrawlFrontier(maxDepth, maxPagesPerHost, 10_000, 1_000_000,
+                    Paths.get(docsPath, "frontier.spill"));
+        }
+
+        long reindexStart = System.currentTimeMillis();
+        if (storedPages != null) {
+            reindexStoredPages(storedPages);
+        } else if (retryDeadLetters) {
+            retryDeadLetters();
+        } else {
+            try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(Paths.get(urlPath))) {
+
+                /* We split each .url file into one task per URL. */
+                for (final Path path : directoryStream) {
+                    if (Files.isRegularFile(path)) {
+                        processUrlFile(path);
+                    }
+                }
+
+                // Visitar las URLs descubiertas hasta que la frontera se vacíe y no quede ninguna página
+                // en vuelo (las páginas añaden sus enlaces antes de liberar su permiso)
+                if (frontier != null) {
+                    crawlFrontier();
+                }
+
+            } catch (final IOException e) {
+                e.printStackTrace();
+                System.exit(-1);
+            }
+        }
 
-        /* Wait up to 1 hour to finish all the previously submitted jobs */
         try {
-            executorService.awaitTermination(1, TimeUnit.HOURS);
+            // Esperar a que salgan las URLs en cola y terminen las descargas e indexaciones pendientes
+            if (hostScheduler != null) {
+                hostScheduler.awaitEmpty();
+                hostScheduler.close();
+            }
+            inFlight.awaitIdle();
+            indexExecutor.shutdown();
+            while (!indexExecutor.awaitTermination(1, TimeUnit.MINUTES)) {
+                System.out.println("Esperando a que terminen las tareas del pool...");
+            }
+            // Dejar terminar un checkpoint en curso; los periódicos se cancelan con shutdown
+            scheduler.shutdown();
+            while (!scheduler.awaitTermination(1, TimeUnit.MINUTES)) {
+                System.out.println("Esperando a que termine el checkpoint en curso...");
+            }
         } catch (final InterruptedException e) {
             e.printStackTrace();
             System.exit(-2);
         }
+        if (reindex) {
+            long millis = Math.max(1, System.currentTimeMillis() - reindexStart);
+            System.out.println(String.format("Reindexadas %d páginas sin red en %d msecs (%.1f páginas/s), %d errores",
+                    metrics.getDocumentsIndexed(), millis, metrics.getDocumentsIndexed() * 1000.0 / millis,
+                    reindexFailures.sum()));
+        }
+
+        // Borrar los documentos de URLs que ya no aparecen en ningún fichero .url. Al reintentar las
+        // fallidas no se leen los ficheros .url, así que no se sabe cuáles siguen listadas. Tampoco
+        // al reanudar un crawl con -maxDepth: las páginas ya confirmadas no se vuelven a descargar, y
+        // las que se descubrieron a través de ellas antes de la caída no se conocen
+        boolean resumedCrawl = resume && frontier != null;
+        if (resumedCrawl) {
+            System.out.println("-resume con -maxDepth: no se borran las URLs que ya no aparecen (se hará en la "
+                    + "próxima ejecución completa)");
+        }
+        if (!create && !retryDeadLetters && !resumedCrawl) {
+            deleteDroppedUrls();
+        }
+
+        // Juntar en el índice las partes de la carga masiva
+        if (bulk) {
+            long mergeStart = System.currentTimeMillis();
+            indexShards.finishBulk(forceMerge);
+            if (printAppInfo) {
+                System.out.println("Partes de la carga masiva añadidas al índice en "
+                        + (System.currentTimeMillis() - mergeStart) + " msecs");
+            }
+        } else if (forceMerge) {
+            indexShards.forceMerge(1);
+        }
 
-        // Cerrar el IndexWriter
-        indexWriter.close();
+        // Cerrar el IndexWriter, que confirma el índice, y solo entonces guardar los metadatos de
+        // descarga. La ejecución ha terminado entera, así que el diario ya no hace falta
+        if (archive != null) {
+            archive.close();
+        }
+        indexShards.close();
+        fetchMetadata.save();
+        journal.delete();
+        deadLetters.close();
+        if (frontier != null) {
+            frontier.close();
+        }
+        if (metricsPath != null) {
+            metrics.writeSnapshot(Paths.get(metricsPath));
+        }
 
         if (printAppInfo) {
-            System.out.println("Creado índice " + indexPath + " en " + System.currentTimeMillis() + " msecs");
+            System.out.println("Creado índice " + indexPath + " en " + (System.currentTimeMillis() - startTime) + " msecs");
+            metrics.print();
+            inFlight.print(20);
+            if (hostScheduler != null) {
+                hostScheduler.print();
+            }
+            System.out.println("Cortacircuitos: " + circuitBreaker.getOpened() + " aperturas, "
+                    + circuitBreaker.getRejected() + " peticiones rechazadas con el circuito abierto");
+            if (deadLetters.added() > 0) {
+                System.out.println(deadLetters.added() + " URLs fallidas anotadas en "
+                        + Paths.get(docsPath, DeadLetterQueue.FILE_NAME) + " (reintentar con -retryDeadLetters)");
+            }
+            printWorkerLoads();
+            if (duplicateDetector != null) {
+                System.out.println("Duplicados omitidos: " + duplicateDetector.getDuplicateDocs() + " documentos, "
+                        + duplicateDetector.getDuplicateBytes() / 1024 + " KB");
+            }
+        }
+    }
+
+    /**
+     * Confirma en disco el trabajo hecho hasta ahora: toma una copia de los metadatos de descarga,
+     * hace commit del índice y solo entonces guarda esa copia y anota en el diario las URLs
+     * terminadas antes de empezar. Los metadatos de una página se anotan después de indexarla, así
+     * que la copia solo describe páginas que el commit recoge, y al guardarse después del commit
+     * nunca van por delante del índice confirmado: una caída entre ambos solo hace que se vuelvan a
+     * descargar enteras. Tras un kill -9 se pierde como mucho el trabajo de un intervalo.
+     */
+    private static void checkpoint() {
+        long start = System.nanoTime();
+        try {
+            List<String> batch = journal.drainPending();
+            Map<String, FetchMetadataStore.Entry> fetched = fetchMetadata.snapshot();
+            if (archive != null) {
+                archive.sync(); // Los documentos confirmados apuntan a registros del archivo
+            }
+            indexShards.commit();
+            fetchMetadata.save(fetched);
+            journal.append(batch);
+            metrics.record(CrawlMetrics.Stage.COMMIT, start);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /** Registra en el detector de duplicados la huella de cada documento vivo del índice. */
+    private static void loadFingerprints() throws IOException {
+        Set<String> fields = Set.of("url", "contentHash", "simhash");
+        try (IndexReader reader = indexShards.openNrtReader()) {
+            for (LeafReaderContext leaf : reader.leaves()) {
+                Bits liveDocs = leaf.reader().getLiveDocs();
+                StoredFields storedFields = leaf.reader().storedFields();
+                for (int i = 0; i < leaf.reader().maxDoc(); i++) {
+                    if (liveDocs != null && !liveDocs.get(i)) {
+                        continue;
+                    }
+                    Document doc = storedFields.document(i, fields);
+                    IndexableField simHash = doc.getField("simhash");
+                    if (doc.get("url") != null && doc.get("contentHash") != null && simHash != null) {
+                        duplicateDetector.register(doc.get("url"), doc.get("contentHash"),
+                                simHash.numericValue().longValue());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Borra de una sola vez los documentos cuya URL no aparece en ningún fichero .url de esta
+     * ejecución y fuerza la fusión de los segmentos con muchos borrados.
+     */
+    private static void deleteDroppedUrls() throws IOException {
+        List<String> dropped = new ArrayList<>();
+        try (IndexReader reader = indexShards.openNrtReader()) {
+            Terms terms = MultiTerms.getTerms(reader, "url");
+            if (terms != null) {
+                TermsEnum termsEnum = terms.iterator();
+                BytesRef term;
+                while ((term = termsEnum.next()) != null) {
+                    if (!listedUrls.contains(term.utf8ToString())) {
+                        dropped.add(term.utf8ToString());
+                    }
+                }
+            }
+        }
+        if (!dropped.isEmpty()) {
+            System.out.println("deleting " + dropped.size() + " dropped urls");
+            indexShards.deleteDocuments("url", dropped, true);
         }
     }
 
+    /** Muestra cuántas páginas indexó cada hilo y el desequilibrio entre el más cargado y la media. */
+    private static void printWorkerLoads() {
+        Map<String, WorkerLoad> loads = new TreeMap<>(workerLoads);
+        if (loads.isEmpty()) {
+            return;
+        }
+        long totalPages = 0;
+        long maxBusy = 0;
+        long totalBusy = 0;
+        for (Map.Entry<String, WorkerLoad> entry : loads.entrySet()) {
+            long pages = entry.getValue().pages.sum();
+            long busy = entry.getValue().busyNanos.sum();
+            totalPages += pages;
+            totalBusy += busy;
+            maxBusy = Math.max(maxBusy, busy);
+            System.out.println("Hilo " + entry.getKey() + ": " + pages + " páginas, "
+                    + TimeUnit.NANOSECONDS.toMillis(busy) + " msecs ocupado");
+        }
+        double meanBusy = (double) totalBusy / loads.size();
+        System.out.println(String.format("%d páginas en %d hilos, desequilibrio máx/media = %.2f",
+                totalPages, loads.size(), meanBusy == 0 ? 1.0 : maxBusy / meanBusy));
+    }
+
 
     private static Analyzer getAnalyzer(String analyzerName) {
         // Lógica para obtener el Analyzer correspondiente según el nombre proporcionado
@@ -189,154 +739,587 @@ public class WebIndexer {
         }
     }
 
-    private static void processUrlFile(Path path, IndexWriter indexWriter) {
+    /**
+     * Interpreta -storeBody: {@code full} almacena el cuerpo completo, {@code none} no lo almacena
+     * y un número lo trunca a esos caracteres.
+     */
+    private static int parseStoreBody(String value) {
+        switch (value) {
+            case "full":
+                return PageDocumentBuilder.STORE_FULL_BODY;
+            case "none":
+                return 0;
+            default:
+                int chars = Integer.parseInt(value);
+                if (chars < 0) {
+                    throw new IllegalArgumentException("-storeBody debe ser full, none o un número de caracteres: " + value);
+                }
+                return chars;
+        }
+    }
+
+    /**
+     * Lee un fichero .url y pone en la cola de su host cada URL admitida, como una tarea
+     * independiente. Bloquea si las colas están llenas, de forma que la lectura no se adelanta al
+     * pipeline.
+     */
+    private static void processUrlFile(Path path) {
         try {
             // Leer y procesar el archivo .url
+            urlFileTimes.put(path, new PageDocumentBuilder.UrlFileTimes(path));
             BufferedReader reader = Files.newBufferedReader(path);
             String line;
             while ((line = reader.readLine()) != null) {
                 // Filtrar las URL según el archivo de propiedades
-                if (onlyDoms != null) {
-                    boolean found = false;
-                    for (String dom : onlyDoms) {
-                        if (line.contains(dom)) {
-                            found = true;
-                            break;
-                        }
-                    }
-                    if (!found) {
-                        continue;
-                    }
+                if (!domainFilter.accepts(line)) {
+                    continue;
+                }
+                String key = UrlCanonicalizer.canonicalize(line);
+                if (!listedUrls.add(key)) {
+                    continue; // Ya listada en este u otro fichero .url
+                }
+                if (frontier != null) {
+                    frontier.addSeed(key);
+                }
+                if (journal.isCommitted(key)) {
+                    continue; // Indexada y confirmada antes de la caída
                 }
-                processUrl(line, indexWriter, path);
+                hostScheduler.submit(line, new WorkerThread(line, key, path, 0));
             }
             reader.close();
         } catch (IOException e) {
             e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
-    private static void processUrl(String url, IndexWriter indexWriter, Path urlFilePath) {
+    /**
+     * Vuelve a poner en las colas por host las URLs del fichero de fallidas, con el fichero .url del
+     * que venían. Las que fallen otra vez se anotan de nuevo.
+     */
+    private static void retryDeadLetters() throws IOException {
+        List<DeadLetterQueue.Entry> entries = deadLetters.drain();
+        System.out.println("Reintentando " + entries.size() + " URLs fallidas");
         try {
-                // Mostrar información de inicio de hilo si se especifica
-                if (printThreadInfo) {
-                    System.out.println("Hilo " + Thread.currentThread().getName() + " comienzo url " + url);
+            for (DeadLetterQueue.Entry entry : entries) {
+                if (!domainFilter.accepts(entry.url)) {
+                    continue;
                 }
+                String key = UrlCanonicalizer.canonicalize(entry.url);
+                if (!listedUrls.add(key) || journal.isCommitted(key)) {
+                    continue;
+                }
+                hostScheduler.submit(entry.url, new WorkerThread(entry.url, key, entry.urlFile, 0));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Pone en las colas por host las URLs de la frontera a medida que se descubren. Termina cuando
+     * la frontera y las colas están vacías y no queda ninguna página en vuelo.
+     */
+    private static void crawlFrontier() throws IOException {
+        try {
+            while (true) {
+                CrawlFrontier.Entry entry = frontier.poll(100, TimeUnit.MILLISECONDS);
+                if (entry == null) {
+                    if (frontier.isEmpty() && hostScheduler.isEmpty() && inFlight.isIdle()) {
+                        return;
+                    }
+                    continue;
+                }
+                listedUrls.add(entry.key);
+                hostScheduler.submit(entry.url, new WorkerThread(entry.url, entry.key, entry.urlFile, entry.depth));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
-                HttpClient httpClient = HttpClient.newHttpClient();
-                HttpRequest request = HttpRequest.newBuilder()
-                        .uri(URI.create(url))
-                        .timeout(Duration.ofSeconds(10)) // Establecer timeout de conexión
-                        .build();
-                HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
-
-                // Verificar si la respuesta es un código de redirección 3xx
-                if (response.statusCode() >= 300 && response.statusCode() < 400) {
-                    // Obtener la nueva URL de redirección
-                    String redirectUrl = response.headers().firstValue("Location").orElse(null);
-                    if (redirectUrl != null) {
-                        // Procesar la nueva URL de redirección
-                        processUrl(redirectUrl, indexWriter, urlFilePath);
-                        return; // Salir del método para evitar la indexación de la URL original
+    /**
+     * Lee del índice actual qué páginas hay indexadas y dónde está su copia local: el .loc junto al
+     * .loc.notags del campo path, o el registro del archivo de páginas.
+     */
+    private static List<StoredPage> loadStoredPages(Path indexPath) throws IOException {
+        List<StoredPage> pages = new ArrayList<>();
+        Set<String> fields = Set.of("url", "path", "urlFile", "truncated");
+        try (IndexReader reader = IndexShards.openReader(indexPath)) {
+            for (LeafReaderContext leaf : reader.leaves()) {
+                Bits liveDocs = leaf.reader().getLiveDocs();
+                StoredFields storedFields = leaf.reader().storedFields();
+                for (int i = 0; i < leaf.reader().maxDoc(); i++) {
+                    if (liveDocs != null && !liveDocs.get(i)) {
+                        continue;
+                    }
+                    Document doc = storedFields.document(i, fields);
+                    if (doc.get("url") != null && doc.get("path") != null && doc.get("urlFile") != null) {
+                        pages.add(new StoredPage(doc.get("url"), doc.get("path"), Path.of(doc.get("urlFile")),
+                                Boolean.parseBoolean(doc.get("truncated"))));
                     }
-                } else if (response.statusCode() == 200) { // Si la respuesta es 200 OK
-                    String fileName = url.replaceAll("^https?://", "").replaceAll("/", "_").replaceAll("\\W+", "");
-                    String locfilePath = docsPath + "/" + fileName + ".loc.";
-                    String locnotagsfilePath = docsPath + "/" + fileName + ".loc.notags";
+                }
+            }
+        }
+        return pages;
+    }
 
+    /**
+     * Envía al pool una tarea por página ya descargada. Igual que al descargar, no hay más de
+     * -maxInFlight páginas pendientes a la vez.
+     */
+    private static void reindexStoredPages(List<StoredPage> pages) {
+        try {
+            for (StoredPage page : pages) {
+                inFlight.acquire();
+                indexExecutor.execute(() -> {
+                    try {
+                        reindexPage(page);
+                    } catch (IOException | RuntimeException e) {
+                        reindexFailures.increment();
+                        System.out.println("Error al reindexar " + page.key + " (" + page.path + "): " + e);
+                    } finally {
+                        inFlight.release();
+                    }
+                });
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
-                    Path rutaLoc = Paths.get(locfilePath);
-                    Files.write(rutaLoc, response.body().getBytes());
+    /**
+     * Vuelve a extraer el texto de una página desde su copia local y la indexa, sin red. Con
+     * ficheros .loc se regenera también el .loc.notags; los registros del archivo no se tocan.
+     */
+    private static void reindexPage(StoredPage page) throws IOException {
+        long start = System.nanoTime();
+        String path = page.path;
+        boolean archived = archive != null && path.contains(PageArchive.DIR_NAME) && path.lastIndexOf('#') > 0;
 
-                    // Parsear la página web
-                    org.jsoup.nodes.Document doc = Jsoup.parse(response.body());
-                    String title = doc.title();
-                    String body = doc.body().text();
+        long stageStart = System.nanoTime();
+        org.jsoup.nodes.Document doc;
+        long locSize;
+        if (archived) {
+            PageArchive.Record record = archive.get(PageArchive.idOf(path));
+            doc = Jsoup.parse(new ByteArrayInputStream(record.html), record.charset, record.url);
+            locSize = record.html.length;
+        } else {
+            // El .loc está junto a su .loc.notags; sin el charset de la respuesta, jsoup lo detecta
+            Path rutaLoc = Path.of(path.substring(0, path.length() - "notags".length()));
+            doc = Jsoup.parse(rutaLoc.toFile(), null, page.key);
+            locSize = Files.size(rutaLoc);
+        }
+        String title = doc.title();
+        String body = doc.body().text();
+        metrics.record(CrawlMetrics.Stage.PARSE, stageStart);
 
-                    // Crear el nombre de archivo local
+        String contentHash = DuplicateDetector.contentHash(title, body);
+        long simHash = DuplicateDetector.simHash(title + " " + body);
+        if (duplicateDetector != null) {
+            String original = duplicateDetector.findOrRegister(page.key, contentHash, simHash, locSize);
+            if (original != null) {
+                System.out.println("duplicate " + page.key + " of " + original);
+                return;
+            }
+        }
 
-                    // Escribir el contenido en el archivo .loc.notags
-                    try (PrintWriter writer = new PrintWriter(locnotagsfilePath)) {
-                        writer.println(title);
-                        writer.println(body);
-                    }
+        long notagsSize;
+        stageStart = System.nanoTime();
+        if (archived) {
+            notagsSize = notagsText(title, body).length;
+        } else {
+            notagsSize = writeNotags(path, title, body);
+        }
+        metrics.record(CrawlMetrics.Stage.LOC_WRITE, stageStart);
 
-                    // Obtener información del archivo .loc
-                    BasicFileAttributes attrs = Files.readAttributes(urlFilePath, BasicFileAttributes.class);
+        indexDocument(indexShards.writerFor(page.key), page.key, path, title, body, page.urlFile, contentHash,
+                simHash, locSize, notagsSize, page.truncated, start);
+    }
 
-                    // Calcular el tamaño del archivo .loc
-                    long locSize = Files.size(rutaLoc);
+    /** Añade a la frontera los enlaces de la página, si no se ha alcanzado la profundidad máxima. */
+    private static void extractLinks(WorkerThread task, org.jsoup.nodes.Document doc) throws IOException {
+        if (frontier == null || task.depth >= frontier.getMaxDepth()) {
+            return;
+        }
+        for (org.jsoup.nodes.Element link : doc.select("a[href]")) {
+            String href = link.absUrl("href");
+            if (!href.startsWith("http://") && !href.startsWith("https://")) {
+                continue;
+            }
+            if (domainFilter.accepts(href)) {
+                frontier.offer(href, UrlCanonicalizer.canonicalize(href), task.depth + 1, task.urlFile);
+            }
+        }
+    }
 
-                    // Calcular el tamaño del archivo .loc.notags
-                    long notagsSize = Files.size(Path.of(locnotagsfilePath));
+    /**
+     * Descarga la URL con el cliente compartido y, si la respuesta es 200, pasa la página al pool de
+     * indexación. Las redirecciones 3xx se siguen encadenando una nueva descarga, pero el documento
+     * se sigue indexando bajo la clave de la tarea, la URL canónica que aparece en el fichero .url.
+     */
+    private static CompletableFuture<Void> fetchUrl(WorkerThread task, String url) {
+        Set<String> chain = new HashSet<>();
+        chain.add(UrlCanonicalizer.canonicalize(url));
+        return fetchUrl(task, url, chain);
+    }
 
-                    // Obtener información de tiempo
-                    Date creationTime = new Date(attrs.creationTime().toMillis());
-                    Date lastAccessTime = new Date(attrs.lastAccessTime().toMillis());
-                    Date lastModifiedTime = new Date(attrs.lastModifiedTime().toMillis());
+    /**
+     * Descarga un salto de la cadena de redirecciones. {@code chain} tiene las URLs canónicas ya
+     * visitadas en ella, para detectar ciclos y limitar su longitud.
+     */
+    private static CompletableFuture<Void> fetchUrl(WorkerThread task, String url, Set<String> chain) {
+        // Mostrar información de inicio de hilo si se especifica
+        if (printThreadInfo) {
+            System.out.println("Hilo " + Thread.currentThread().getName() + " comienzo url " + url);
+        }
 
-                    // Convertir las fechas al formato de Lucene
-                    String creationTimeLucene = DateTools.dateToString(creationTime, DateTools.Resolution.SECOND);
-                    String lastAccessTimeLucene = DateTools.dateToString(lastAccessTime, DateTools.Resolution.SECOND);
-                    String lastModifiedTimeLucene = DateTools.dateToString(lastModifiedTime, DateTools.Resolution.SECOND);
+        URI uri = URI.create(url);
+        HttpRequest.Builder requestBuilder = HttpRequest.newBuilder()
+                .uri(uri)
+                .timeout(Duration.ofSeconds(10)); // Establecer timeout de conexión
+        if (conditionalFetch) {
+            fetchMetadata.addConditionalHeaders(requestBuilder, url);
+        }
+        HttpRequest request = requestBuilder.build();
 
-                    //Opción -titleTermVector
-                    FieldType titleFieldType = new FieldType(TextField.TYPE_STORED);
-                    if (titleTermVectors) {
-                        titleFieldType.setStoreTermVectors(true);
-                        titleFieldType.setStoreTermVectorPositions(true);
-                        titleFieldType.setStoreTermVectorOffsets(true);
-                    }
+        // Crear el nombre de archivo local. El cuerpo se vuelca directamente al .loc mientras se descarga,
+        // salvo con -archive, que lo recibe en memoria para guardarlo en el archivo de páginas
+        String fileName = url.replaceAll("^https?://", "").replaceAll("/", "_").replaceAll("\\W+", "");
+        Path rutaLoc = Paths.get(docsPath + "/" + fileName + ".loc.");
 
-                    //Opción -bodyTermVector
-                    FieldType bodyFieldType = new FieldType(TextField.TYPE_STORED);
-                    if (bodyTermVectors) {
-                        bodyFieldType.setStoreTermVectors(true);
-                        bodyFieldType.setStoreTermVectorPositions(true);
-                        bodyFieldType.setStoreTermVectorOffsets(true);
+        // El límite de concurrencia aprende del tiempo hasta las cabeceras, que no depende del tamaño
+        // de la página, y de los errores y respuestas de sobrecarga
+        HttpResponse.BodyHandler<LocFileSubscriber.LocFile> locHandler =
+                LocFileSubscriber.handler(archive != null ? null : rutaLoc, maxBodyBytes);
+        long fetchStart = System.nanoTime();
+        return sendWithRetry(request, locHandler, HostScheduler.hostOf(url), 0)
+                .thenCompose(response -> {
+                    metrics.record(CrawlMetrics.Stage.FETCH, fetchStart);
+                    FetchMetadataStore.Entry previous = fetchMetadata.get(url);
+                    // La página no ha cambiado desde la última descarga: ni se parsea ni se reindexa
+                    if (response.statusCode() == 304 && previous != null) {
+                        fetchMetadata.put(url, previous.touch());
+                        if (printThreadInfo) {
+                            System.out.println("Hilo " + Thread.currentThread().getName() + " sin cambios url " + url);
+                        }
+                        // En modo crawl los enlaces de la copia local se siguen recorriendo
+                        return followUnchangedLinks(task, () -> {
+                            if (archive == null) {
+                                return Files.exists(rutaLoc) ? Jsoup.parse(rutaLoc.toFile(), null, url) : null;
+                            }
+                            PageArchive.Record record = archive.find(url);
+                            return record != null
+                                    ? Jsoup.parse(new ByteArrayInputStream(record.html), record.charset, url) : null;
+                        });
                     }
-
-                    // Crear documento Lucene para el archivo .loc.notags
-                    Document luceneDoc = new Document();
-                    luceneDoc.add(new StringField("path", locnotagsfilePath, Field.Store.YES));
-                    luceneDoc.add(new Field("title", title, titleFieldType));
-                    luceneDoc.add(new Field("body", body, bodyFieldType));
-                    //luceneDoc.add(new StoredField("title", title)); // Campo adicional para ver en la pestaña de documentos de Luke
-                    //luceneDoc.add(new StoredField("body", body)); // Campo adicional para ver en la pestaña de documentos de Luke
-                    luceneDoc.add(new StringField("hostname", InetAddress.getLocalHost().getHostName(), Field.Store.YES));
-                    luceneDoc.add(new StringField("thread", Thread.currentThread().getName(), Field.Store.YES));
-                    luceneDoc.add(new LongPoint("locKb", locSize / 1024));
-                    luceneDoc.add(new StoredField("locKb", locSize / 1024)); // Campo adicional para ver en la pestaña de documentos de Luke
-                    luceneDoc.add(new LongPoint("notagsKb", notagsSize / 1024));
-                    luceneDoc.add(new StoredField("notagsKb", notagsSize / 1024)); // Campo adicional para ver en la pestaña de documentos de Luke
-                    luceneDoc.add(new StoredField("creationTime", creationTime.toString()));
-                    luceneDoc.add(new StoredField("lastAccessTime", lastAccessTime.toString()));
-                    luceneDoc.add(new StoredField("lastModifiedTime", lastModifiedTime.toString()));
-                    luceneDoc.add(new StoredField("creationTimeLucene", creationTimeLucene));
-                    luceneDoc.add(new StoredField("lastAccessTimeLucene", lastAccessTimeLucene));
-                    luceneDoc.add(new StoredField("lastModifiedTimeLucene", lastModifiedTimeLucene));
-
-                    if (indexWriter.getConfig().getOpenMode() == IndexWriterConfig.OpenMode.CREATE) {
-                        // New index, so we just add the document (no old document can be there):
-                        System.out.println("adding " + urlFilePath);
-                        indexWriter.addDocument(luceneDoc);
-                    } else {
-                        // Existing index (an old copy of this document may have been indexed) so
-                        // we use updateDocument instead to replace the old one matching the exact
-                        // path, if present:
-                        System.out.println("updating " + urlFilePath);
-                        indexWriter.updateDocument(new Term("path", urlFilePath.toString()), luceneDoc);
+                    // Verificar si la respuesta es un código de redirección 3xx
+                    if (response.statusCode() >= 300 && response.statusCode() < 400) {
+                        // Obtener la nueva URL de redirección
+                        String redirectUrl = response.headers().firstValue("Location").orElse(null);
+                        if (redirectUrl != null) {
+                            // Procesar la nueva URL de redirección, salvo que la cadena sea demasiado
+                            // larga o vuelva a una URL ya visitada
+                            String next = uri.resolve(redirectUrl).toString();
+                            if (chain.size() > maxRedirects) {
+                                return CompletableFuture.failedFuture(new IOException(
+                                        "más de " + maxRedirects + " redirecciones, la última a " + next));
+                            }
+                            if (!chain.add(UrlCanonicalizer.canonicalize(next))) {
+                                return CompletableFuture.failedFuture(new IOException("redirección circular a " + next));
+                            }
+                            metrics.redirect();
+                            return fetchUrl(task, next, chain);
+                        }
+                    } else if (response.statusCode() == 200) { // Si la respuesta es 200 OK
+                        LocFileSubscriber.LocFile locFile = response.body();
+                        if (locFile.isSkipped()) {
+                            metrics.skipped();
+                            System.out.println("Omitida la URL " + url + ": no es HTML (" + locFile.skippedType + ")");
+                            return CompletableFuture.completedFuture(null);
+                        }
+                        metrics.bytesFetched(locFile.size);
+                        if (locFile.truncated) {
+                            metrics.truncated();
+                            System.out.println("Truncada la URL " + url + " a " + locFile.size + " bytes");
+                        }
+                        String charset = contentTypeCharset(response.headers().firstValue("Content-Type").orElse(null));
+                        // El servidor no soporta peticiones condicionales pero el contenido es el mismo: no
+                        // se reindexa, pero sus enlaces se siguen recorriendo como con un 304
+                        if (conditionalFetch && previous != null && locFile.contentHash.equals(previous.contentHash)) {
+                            fetchMetadata.put(url, FetchMetadataStore.Entry.of(response.headers(), locFile.contentHash));
+                            return followUnchangedLinks(task, () -> locFile.bytes != null
+                                    ? Jsoup.parse(new ByteArrayInputStream(locFile.bytes), charset, url)
+                                    : Jsoup.parse(rutaLoc.toFile(), charset, url));
+                        }
+                        return CompletableFuture.runAsync(() -> {
+                            try {
+                                processUrl(task, url, rutaLoc, locFile.bytes, locFile.size, locFile.truncated, charset);
+                            } catch (IOException e) {
+                                throw new UncheckedIOException(e);
+                            }
+                            // Solo se recuerda la descarga una vez indexada, para reintentarla si falla
+                            fetchMetadata.put(url, FetchMetadataStore.Entry.of(response.headers(), locFile.contentHash));
+                        }, indexExecutor);
+                    } else { //Si no se puede acceder a la URL
+                        System.out.println("Error al procesar la URL: " + url + " - Código de estado: " + response.statusCode());
                     }
-                } else { //Si no se puede acceder a la URL
-                    System.out.println("Error al procesar la URL: " + url + " - Código de estado: " + response.statusCode());
+                    return CompletableFuture.completedFuture(null);
+                });
+    }
+
+    /** Página ya descargada que se vuelve a parsear solo para sacar sus enlaces. */
+    private interface UnchangedPage {
+        /** Documento parseado, o null si la copia ya no está. */
+        org.jsoup.nodes.Document parse() throws IOException;
+    }
+
+    /**
+     * En modo crawl, recorre en el pool de indexación los enlaces de una página que no ha cambiado y
+     * por eso no se reindexa. Si no, el crawl se pararía en ella y la poda final borraría las páginas
+     * que solo se alcanzan a través de ella.
+     */
+    private static CompletableFuture<Void> followUnchangedLinks(WorkerThread task, UnchangedPage page) {
+        if (frontier == null || task.depth >= frontier.getMaxDepth()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return CompletableFuture.runAsync(() -> {
+            try {
+                org.jsoup.nodes.Document doc = page.parse();
+                if (doc != null) {
+                    extractLinks(task, doc);
                 }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, indexExecutor);
+    }
+
+    /** Códigos con los que el servidor indica que está saturado o fallando. */
+    private static boolean isOverloaded(int statusCode) {
+        return statusCode == 429 || statusCode >= 500;
+    }
+
+    /** Códigos que merece la pena reintentar: sobrecarga, errores del servidor y 408. */
+    private static boolean isTransient(int statusCode) {
+        return statusCode == 408 || isOverloaded(statusCode);
+    }
+
+    /**
+     * Envía la petición y repite los fallos transitorios (errores de conexión, timeouts, 408, 429 y
+     * 5xx) hasta -maxRetries veces, esperando entre intentos un tiempo aleatorio de hasta {@link
+     * #RETRY_BASE_MILLIS} * 2^intento (o lo que pida Retry-After, si es más). Si el cortacircuitos
+     * del host está abierto falla al instante. Agotados los intentos, el futuro falla con el motivo.
+     */
+    private static CompletableFuture<HttpResponse<LocFileSubscriber.LocFile>> sendWithRetry(
+            HttpRequest request, HttpResponse.BodyHandler<LocFileSubscriber.LocFile> locHandler, String host,
+            int attempt) {
+        if (!circuitBreaker.allow(host)) {
+            return CompletableFuture.failedFuture(new IOException("circuito abierto para " + host));
+        }
+        // El límite de concurrencia aprende del tiempo hasta las cabeceras, que no depende del tamaño
+        // de la página, y de los errores y respuestas de sobrecarga
+        long sendStart = System.nanoTime();
+        return httpClient.sendAsync(request, responseInfo -> {
+                    inFlight.onSample(System.nanoTime() - sendStart, isOverloaded(responseInfo.statusCode()));
+                    return locHandler.apply(responseInfo);
+                })
+                .handle((response, e) -> {
+                    if (response != null) {
+                        metrics.status(response.statusCode()); // Cada intento, también los que se repiten
+                    }
+                    if (e == null && !isTransient(response.statusCode())) {
+                        circuitBreaker.onSuccess(host);
+                        return CompletableFuture.completedFuture(response);
+                    }
+                    if (e != null) { // Timeout o error de conexión: no llegaron cabeceras
+                        inFlight.onSample(System.nanoTime() - sendStart, true);
+                    }
+                    circuitBreaker.onFailure(host);
+                    String reason = e != null ? String.valueOf(unwrap(e)) : "HTTP " + response.statusCode();
+                    if (attempt >= maxRetries) {
+                        return CompletableFuture.<HttpResponse<LocFileSubscriber.LocFile>>failedFuture(new IOException(
+                                reason + (maxRetries > 0 ? " tras " + (attempt + 1) + " intentos" : "")));
+                    }
+                    long delay = retryDelayMillis(attempt, response);
+                    metrics.retry();
+                    if (printThreadInfo) {
+                        System.out.println("Reintento " + (attempt + 1) + " de " + request.uri() + " en " + delay
+                                + " ms: " + reason);
+                    }
+                    return CompletableFuture.supplyAsync(() -> null,
+                                    CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS))
+                            .thenCompose(ignored -> sendWithRetry(request, locHandler, host, attempt + 1));
+                })
+                .thenCompose(future -> future);
+    }
+
+    /** Espera antes de un reintento: backoff exponencial con jitter completo, respetando Retry-After. */
+    private static long retryDelayMillis(int attempt, HttpResponse<?> response) {
+        long backoff = Math.min(RETRY_MAX_MILLIS, RETRY_BASE_MILLIS << Math.min(attempt, 20));
+        long delay = ThreadLocalRandom.current().nextLong(backoff + 1);
+        if (response != null) {
+            // Solo la forma en segundos; una fecha HTTP se trata como si no estuviera
+            String retryAfter = response.headers().firstValue("Retry-After").orElse("");
+            try {
+                delay = Math.max(delay, Math.min(RETRY_MAX_MILLIS, Long.parseLong(retryAfter.trim()) * 1000));
+            } catch (NumberFormatException e) {
+                // Sin Retry-After válido
+            }
+        }
+        return delay;
+    }
+
+    /** Causa real de un fallo envuelto por CompletableFuture. */
+    private static Throwable unwrap(Throwable e) {
+        while ((e instanceof CompletionException || e instanceof ExecutionException
+                || e instanceof UncheckedIOException) && e.getCause() != null) {
+            e = e.getCause();
+        }
+        return e;
+    }
+
+    /**
+     * Extrae el parámetro charset de una cabecera Content-Type, o null si no lo trae (en ese caso
+     * jsoup lo detecta a partir del BOM o de la etiqueta meta de la página).
+     */
+    static String contentTypeCharset(String contentType) {
+        if (contentType == null) {
+            return null;
+        }
+        for (String param : contentType.split(";")) {
+            param = param.trim();
+            if (param.regionMatches(true, 0, "charset=", 0, 8)) {
+                String charset = param.substring(8).replace("\"", "").trim();
+                return Charset.isSupported(charset) ? charset : null;
+            }
+        }
+        return null;
+    }
 
-                // Mostrar información de fin de hilo si se especifica
-                if (printThreadInfo) {
-                    System.out.println("Hilo " + Thread.currentThread().getName() + " fin url " + url);
+    /**
+     * Parsea e indexa una página ya volcada en su fichero .loc. El HTML se lee en streaming desde
+     * el propio fichero y el tamaño de ambos ficheros se obtiene de los bytes escritos.
+     */
+    private static void processUrl(WorkerThread task, String url, Path rutaLoc, byte[] html, long locSize,
+                                   boolean truncated, String charset) throws IOException {
+        String key = task.key;
+        IndexWriter indexWriter = indexShards.writerFor(key);
+        Path urlFilePath = task.urlFile;
+        long start = System.nanoTime();
+        String locnotagsfilePath = rutaLoc.toString() + "notags";
+
+        // Parsear la página web desde el fichero .loc (o desde memoria con -archive)
+        long stageStart = System.nanoTime();
+        org.jsoup.nodes.Document doc = html != null
+                ? Jsoup.parse(new ByteArrayInputStream(html), charset, url)
+                : Jsoup.parse(rutaLoc.toFile(), charset, url);
+        String title = doc.title();
+        String body = doc.body().text();
+        extractLinks(task, doc);
+        metrics.record(CrawlMetrics.Stage.PARSE, stageStart);
+
+        // Huella del texto extraído: hash exacto y SimHash para los casi duplicados
+        String contentHash = DuplicateDetector.contentHash(title, body);
+        long simHash = DuplicateDetector.simHash(title + " " + body);
+        if (duplicateDetector != null) {
+            String original = duplicateDetector.findOrRegister(key, contentHash, simHash, locSize);
+            if (original != null) {
+                // Duplicado de una página ya indexada: se descarta junto con su .loc (y su versión
+                // anterior en el índice, si la había)
+                System.out.println("duplicate " + key + " of " + original);
+                Files.deleteIfExists(rutaLoc);
+                if (indexWriter.getConfig().getOpenMode() != IndexWriterConfig.OpenMode.CREATE) {
+                    indexWriter.deleteDocuments(new Term("url", key));
                 }
-        } catch (IOException | InterruptedException e) { // Manejar excepciones de E/S y de red
-            e.printStackTrace();
+                return;
+            }
         }
+
+        // Escribir el contenido en el archivo .loc.notags, contando los bytes escritos, o guardar la
+        // página completa en el archivo de páginas
+        long notagsSize;
+        stageStart = System.nanoTime();
+        if (archive != null) {
+            byte[] text = notagsText(title, body);
+            locnotagsfilePath = archive.location(archive.append(url, charset, html, text));
+            notagsSize = text.length;
+        } else {
+            notagsSize = writeNotags(locnotagsfilePath, title, body);
+        }
+        metrics.record(CrawlMetrics.Stage.LOC_WRITE, stageStart);
+
+        indexDocument(indexWriter, key, locnotagsfilePath, title, body, urlFilePath, contentHash, simHash,
+                locSize, notagsSize, truncated, start);
+
+        // Mostrar información de fin de hilo si se especifica
+        if (printThreadInfo) {
+            System.out.println("Hilo " + Thread.currentThread().getName() + " fin url " + url);
+        }
+    }
+
+    /** Texto de la página tal como se guarda en el .loc.notags o en el archivo de páginas. */
+    private static byte[] notagsText(String title, String body) {
+        return (title + System.lineSeparator() + body + System.lineSeparator()).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /** Escribe el título y el texto en el fichero .loc.notags y devuelve los bytes escritos. */
+    private static long writeNotags(String path, String title, String body) throws IOException {
+        try (FileChannel channel = FileChannel.open(Path.of(path), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+             Writer writer = new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8))) {
+            writer.write(title);
+            writer.write(System.lineSeparator());
+            writer.write(body);
+            writer.write(System.lineSeparator());
+            writer.flush();
+            return channel.position();
+        }
+    }
+
+    /**
+     * Rellena la plantilla de documento del hilo y la indexa, añadiéndola en un índice nuevo o
+     * sustituyendo la versión anterior de la URL.
+     */
+    private static void indexDocument(IndexWriter indexWriter, String key, String path, String title, String body,
+                                      Path urlFilePath, String contentHash, long simHash, long locSize,
+                                      long notagsSize, boolean truncated, long start) throws IOException {
+        // Rellenar la plantilla de documento del hilo para el archivo .loc.notags
+        long stageStart = System.nanoTime();
+        Document luceneDoc = documentBuilders.get().build(key, path, title, body, urlFilePath.toString(),
+                contentHash, simHash, locSize, notagsSize, truncated, urlFileTimes(urlFilePath));
+        metrics.record(CrawlMetrics.Stage.BUILD, stageStart);
+
+        stageStart = System.nanoTime();
+
+        if (indexWriter.getConfig().getOpenMode() == IndexWriterConfig.OpenMode.CREATE) {
+            // New index, so we just add the document (no old document can be there):
+            System.out.println("adding " + key);
+            indexWriter.addDocument(luceneDoc);
+        } else {
+            // Existing index (an old copy of this document may have been indexed) so
+            // we use updateDocument instead to replace the old one matching the exact
+            // canonical url, if present:
+            System.out.println("updating " + key);
+            indexWriter.updateDocument(new Term("url", key), luceneDoc);
+        }
+        metrics.record(CrawlMetrics.Stage.INDEX, stageStart);
+        metrics.documentIndexed();
+
+        WorkerLoad load = workerLoads.computeIfAbsent(Thread.currentThread().getName(), k -> new WorkerLoad());
+        load.pages.increment();
+        load.busyNanos.add(System.nanoTime() - start);
+    }
+
+    /** Fechas del fichero .url, leídas la primera vez que se necesitan. */
+    private static PageDocumentBuilder.UrlFileTimes urlFileTimes(Path urlFile) {
+        return urlFileTimes.computeIfAbsent(urlFile, path -> {
+            try {
+                return new PageDocumentBuilder.UrlFileTimes(path);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
     }
 }
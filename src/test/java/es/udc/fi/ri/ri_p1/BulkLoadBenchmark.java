@@ -0,0 +1,148 @@
+package es.udc.fi.ri.ri_p1;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.LongPoint;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.IOUtils;
+
+/**
+ * Documents/sec of a full rebuild at 1, 4, 8 and 16 threads, comparing the single shared {@link
+ * IndexWriter} with default settings (what WebIndexer and IndexFiles do without {@code -bulk})
+ * against {@link BulkLoader}: one writer per thread plus the final {@code addIndexes}. The bulk
+ * time includes combining the parts.
+ *
+ * <p>Run with {@code java -cp target/classes:target/test-classes:<deps> es.udc.fi.ri.ri_p1.BulkLoadBenchmark [docs]}.
+ */
+public class BulkLoadBenchmark {
+
+    private static final int[] THREADS = {1, 4, 8, 16};
+
+    public static void main(String[] args) throws Exception {
+        int docs = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        String[] bodies = bodies(1_000);
+        Path root = Files.createTempDirectory("bulkbench");
+        try {
+            // Warm up the JIT with both paths before measuring
+            singleWriter(root.resolve("warmup-single"), bodies, docs / 10, 4);
+            bulk(root.resolve("warmup-bulk"), bodies, docs / 10, 4, false);
+
+            System.out.println(String.format("%,d documents", docs));
+            System.out.println("threads  single writer (docs/s)  bulk (docs/s)  bulk + forceMerge (docs/s)");
+            for (int threads : THREADS) {
+                double single = singleWriter(root.resolve("single-" + threads), bodies, docs, threads);
+                double bulk = bulk(root.resolve("bulk-" + threads), bodies, docs, threads, false);
+                double merged = bulk(root.resolve("merged-" + threads), bodies, docs, threads, true);
+                System.out.println(String.format("%7d  %,22.0f  %,13.0f  %,26.0f", threads, single, bulk, merged));
+            }
+        } finally {
+            IOUtils.rm(root);
+        }
+    }
+
+    /** The current path: every thread adds to one writer with the default configuration. */
+    private static double singleWriter(Path indexPath, String[] bodies, int docs, int threads) throws Exception {
+        long start = System.nanoTime();
+        try (FSDirectory dir = FSDirectory.open(indexPath);
+             IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(new StandardAnalyzer()))) {
+            runThreads(threads, docs, bodies, () -> writer);
+        }
+        return check(indexPath, docs, start);
+    }
+
+    /** The -bulk path: one writer per thread, then addIndexes into the final index. */
+    private static double bulk(Path indexPath, String[] bodies, int docs, int threads, boolean forceMerge)
+            throws Exception {
+        long start = System.nanoTime();
+        StandardAnalyzer analyzer = new StandardAnalyzer();
+        try (FSDirectory dir = FSDirectory.open(indexPath);
+             IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(analyzer));
+             BulkLoader loader = new BulkLoader(BulkLoader.createTempRoot(indexPath), analyzer,
+                     writer.getConfig().getCodec(), BulkLoader.DEFAULT_RAM_BUFFER_MB)) {
+            runThreads(threads, docs, bodies, loader::writer);
+            loader.finish(writer, forceMerge);
+        }
+        return check(indexPath, docs, start);
+    }
+
+    private interface WriterSource {
+        IndexWriter get() throws Exception;
+    }
+
+    /** Splits the documents between the threads through a shared counter, like the pool does. */
+    private static void runThreads(int threads, int docs, String[] bodies, WriterSource writers) throws Exception {
+        AtomicInteger next = new AtomicInteger();
+        List<Thread> workers = new ArrayList<>();
+        List<Exception> errors = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(() -> {
+                try {
+                    IndexWriter writer = writers.get();
+                    int i;
+                    while ((i = next.getAndIncrement()) < docs) {
+                        writer.addDocument(document(i, bodies[i % bodies.length]));
+                    }
+                } catch (Exception e) {
+                    synchronized (errors) {
+                        errors.add(e);
+                    }
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        if (!errors.isEmpty()) {
+            throw errors.get(0);
+        }
+    }
+
+    /** A document shaped like the ones IndexFiles builds. */
+    private static Document document(int i, String body) {
+        Document doc = new Document();
+        doc.add(new StringField("path", "docs/file-" + i + ".txt", Field.Store.YES));
+        doc.add(new LongPoint("modified", i));
+        doc.add(new TextField("contents", body, Field.Store.NO));
+        return doc;
+    }
+
+    /** Returns documents/sec after checking that every document made it into the index. */
+    private static double check(Path indexPath, int docs, long startNanos) throws Exception {
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        try (FSDirectory dir = FSDirectory.open(indexPath); DirectoryReader reader = DirectoryReader.open(dir)) {
+            if (reader.numDocs() != docs) {
+                throw new IllegalStateException(reader.numDocs() + " documents indexed, expected " + docs);
+            }
+        }
+        return docs / seconds;
+    }
+
+    /** Random texts of about 2 KB over a Zipf-like vocabulary. */
+    private static String[] bodies(int n) {
+        Random random = new Random(42);
+        String[] bodies = new String[n];
+        for (int i = 0; i < n; i++) {
+            StringBuilder text = new StringBuilder();
+            while (text.length() < 2048) {
+                int word = (int) Math.pow(50_000, random.nextDouble());
+                text.append("w").append(Integer.toString(word, 36)).append(' ');
+            }
+            bodies[i] = text.toString();
+        }
+        return bodies;
+    }
+}
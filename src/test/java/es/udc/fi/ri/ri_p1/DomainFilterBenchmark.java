@@ -0,0 +1,62 @@
+package es.udc.fi.ri.ri_p1;
+
+import java.util.Random;
+
+/**
+ * Microbenchmark of {@link DomainFilter#accepts}: per-URL cost with allow-lists of growing size,
+ * compared with the old linear {@code url.contains(dom)} loop.
+ *
+ * <p>Run with {@code java -cp target/classes:target/test-classes es.udc.fi.ri.ri_p1.DomainFilterBenchmark}.
+ */
+public class DomainFilterBenchmark {
+
+    private static final int URLS = 100_000;
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) {
+        Random random = new Random(42);
+        String[] urls = new String[URLS];
+        for (int i = 0; i < URLS; i++) {
+            urls[i] = "https://www.site" + random.nextInt(200_000) + ".example" + (i % 7) + ".es/wiki/page" + i;
+        }
+
+        System.out.println("domains\ttrie ns/url\tlinear ns/url");
+        for (int size : new int[] {10, 100, 1_000, 10_000, 50_000}) {
+            StringBuilder list = new StringBuilder();
+            String[] doms = new String[size];
+            for (int i = 0; i < size; i++) {
+                doms[i] = "site" + random.nextInt(200_000) + ".example" + (i % 7) + ".es";
+                list.append(doms[i]).append(' ');
+            }
+            DomainFilter filter = DomainFilter.of(list.toString(), null);
+
+            long trieNanos = Long.MAX_VALUE;
+            long linearNanos = Long.MAX_VALUE;
+            int sink = 0;
+            for (int round = 0; round < ROUNDS; round++) {
+                long start = System.nanoTime();
+                for (String url : urls) {
+                    if (filter.accepts(url)) {
+                        sink++;
+                    }
+                }
+                trieNanos = Math.min(trieNanos, System.nanoTime() - start);
+
+                // The linear scan is far slower, so it is only timed on a sample of the URLs
+                int sample = Math.max(100, URLS / size);
+                start = System.nanoTime();
+                for (int i = 0; i < sample; i++) {
+                    for (String dom : doms) {
+                        if (urls[i].contains(dom)) {
+                            sink++;
+                            break;
+                        }
+                    }
+                }
+                linearNanos = Math.min(linearNanos, (System.nanoTime() - start) * URLS / sample);
+            }
+            System.out.println(String.format("%d\t%.1f\t%.1f\t(%d)", size,
+                    (double) trieNanos / URLS, (double) linearNanos / URLS, sink));
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package es.udc.fi.ri.ri_p1;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+/**
+ * Exact and near-duplicate detection: short pages only match exactly, long pages that differ in a
+ * word or two still match.
+ */
+public class DuplicateDetectorTest {
+
+    private static String find(DuplicateDetector detector, String key, String title, String body) {
+        return detector.findOrRegister(key, DuplicateDetector.contentHash(title, body),
+                DuplicateDetector.simHash(title + " " + body), body.length());
+    }
+
+    private static String longText(String changed) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            text.append("word").append(i).append(' ');
+        }
+        return text.append(changed).toString();
+    }
+
+    @Test
+    public void differentShortPagesAreNotNearDuplicates() {
+        DuplicateDetector detector = new DuplicateDetector();
+        assertEquals(DuplicateDetector.NO_SIMHASH, DuplicateDetector.simHash("Kiwi Store"));
+        // Without words every signature used to be 0, so these were all "near duplicates"
+        assertNull(find(detector, "http://example.org/gallery", "", ""));
+        assertNull(find(detector, "http://example.org/divider", "", "* * *"));
+        assertNull(find(detector, "http://example.org/dash", "\u2014", ""));
+        assertNull(find(detector, "http://example.org/login", "Kiwi Store", "Log in"));
+        assertNull(find(detector, "http://example.org/contact", "Kiwi Store", "Contact"));
+        assertEquals(0, detector.getDuplicateDocs());
+    }
+
+    @Test
+    public void identicalShortPagesAreExactDuplicates() {
+        DuplicateDetector detector = new DuplicateDetector();
+        assertNull(find(detector, "http://example.org/a", "Login", ""));
+        assertEquals("http://example.org/a", find(detector, "http://example.org/b", "Login", ""));
+    }
+
+    @Test
+    public void longPagesDifferingInAWordAreNearDuplicates() {
+        DuplicateDetector detector = new DuplicateDetector();
+        assertNull(find(detector, "http://example.org/a", "Page", longText("kiwi")));
+        assertEquals("http://example.org/a", find(detector, "http://example.org/b", "Page", longText("moa")));
+        assertEquals(1, detector.getDuplicateDocs());
+    }
+}
@@ -0,0 +1,95 @@
+package es.udc.fi.ri.ri_p1;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Conditional re-crawl against a local stub server that honours If-None-Match.
+ */
+public class FetchMetadataStoreTest {
+
+    private static final byte[] PAGE =
+            "<html><head><title>Kiwi</title></head><body>Apteryx</body></html>".getBytes(StandardCharsets.UTF_8);
+
+    private HttpServer server;
+    private Path dir;
+    private final AtomicInteger fullResponses = new AtomicInteger();
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("fetch-metadata");
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/kiwi", exchange -> {
+            if ("\"v1\"".equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                exchange.sendResponseHeaders(304, -1);
+            } else {
+                fullResponses.incrementAndGet();
+                exchange.getResponseHeaders().add("ETag", "\"v1\"");
+                exchange.getResponseHeaders().add("Last-Modified", "Thu, 04 Apr 2024 10:00:00 GMT");
+                exchange.sendResponseHeaders(200, PAGE.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(PAGE);
+                }
+            }
+            exchange.close();
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.stop(0);
+        for (Path p : Files.list(dir).toArray(Path[]::new)) {
+            Files.delete(p);
+        }
+        Files.delete(dir);
+    }
+
+    @Test
+    public void secondFetchIsNotModifiedAfterReload() throws Exception {
+        String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/kiwi";
+        Path storeFile = dir.resolve(FetchMetadataStore.FILE_NAME);
+        Path loc = dir.resolve("kiwi.loc.");
+        HttpClient client = HttpClient.newHttpClient();
+
+        FetchMetadataStore store = FetchMetadataStore.load(storeFile);
+        HttpResponse<LocFileSubscriber.LocFile> first = client.send(
+                store.addConditionalHeaders(HttpRequest.newBuilder(URI.create(url)), url).build(),
+                LocFileSubscriber.handler(loc));
+        assertEquals(200, first.statusCode());
+        assertEquals(PAGE.length, first.body().size);
+        assertEquals(LocFileSubscriber.toHex(MessageDigest.getInstance("SHA-256").digest(PAGE)),
+                first.body().contentHash);
+        store.put(url, FetchMetadataStore.Entry.of(first.headers(), first.body().contentHash));
+        store.save();
+
+        FetchMetadataStore reloaded = FetchMetadataStore.load(storeFile);
+        assertNotNull(reloaded.get(url));
+        assertEquals("\"v1\"", reloaded.get(url).etag);
+        assertEquals(first.body().contentHash, reloaded.get(url).contentHash);
+
+        HttpResponse<LocFileSubscriber.LocFile> second = client.send(
+                reloaded.addConditionalHeaders(HttpRequest.newBuilder(URI.create(url)), url).build(),
+                LocFileSubscriber.handler(loc));
+        assertEquals(304, second.statusCode());
+        assertEquals(1, fullResponses.get());
+        assertEquals(PAGE.length, Files.size(loc));
+    }
+}
@@ -0,0 +1,125 @@
+package es.udc.fi.ri.ri_p1;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Politeness of the HostScheduler: the token bucket spaces the requests to a host, the connection
+ * cap holds back a host until one of its pages is done, and idle hosts are forgotten. The executor
+ * only records which URL it was given and when; the test plays the part of the finished pages.
+ */
+public class HostSchedulerTest {
+
+    private final BlockingQueue<String> dispatched = new LinkedBlockingQueue<>();
+    private final Map<String, Long> dispatchedAt = new ConcurrentHashMap<>();
+    private final ConcurrencyLimiter limiter = ConcurrencyLimiter.fixed(1000);
+    private HostScheduler scheduler;
+
+    @After
+    public void tearDown() {
+        scheduler.close();
+    }
+
+    private void newScheduler(double ratePerSecond, int burst, int maxActivePerHost) {
+        scheduler = new HostScheduler(ratePerSecond, burst, maxActivePerHost, 100, limiter, Runnable::run);
+    }
+
+    private void submit(String url) throws InterruptedException {
+        scheduler.submit(url, () -> {
+            dispatchedAt.put(url, System.nanoTime());
+            dispatched.add(url);
+        });
+    }
+
+    private String next() throws InterruptedException {
+        String url = dispatched.poll(5, TimeUnit.SECONDS);
+        assertTrue("nothing dispatched", url != null);
+        return url;
+    }
+
+    private void done(String url) {
+        scheduler.done(url);
+        limiter.release();
+    }
+
+    private long millisBetween(String first, String second) {
+        return TimeUnit.NANOSECONDS.toMillis(dispatchedAt.get(second) - dispatchedAt.get(first));
+    }
+
+    @Test
+    public void tokenBucketSpacesRequestsToAHost() throws Exception {
+        newScheduler(20, 2, 100);
+        for (int i = 0; i < 6; i++) {
+            submit("http://a.example.org/" + i);
+        }
+        submit("http://b.example.org/0");
+        for (int i = 0; i < 7; i++) {
+            next();
+        }
+        // The burst goes out at once, then one request every 50 ms
+        for (int i = 2; i < 6; i++) {
+            assertTrue(millisBetween("http://a.example.org/" + (i - 1), "http://a.example.org/" + i) >= 40);
+        }
+        assertTrue(millisBetween("http://a.example.org/0", "http://a.example.org/5") >= 180);
+        // Another host does not wait behind the first one's bucket
+        assertTrue(dispatchedAt.get("http://b.example.org/0") < dispatchedAt.get("http://a.example.org/2"));
+    }
+
+    @Test
+    public void connectionCapHoldsBackAHostUntilAPageIsDone() throws Exception {
+        newScheduler(0, 1, 2);
+        for (int i = 0; i < 4; i++) {
+            submit("http://a.example.org/" + i);
+        }
+        submit("http://b.example.org/0");
+        // Hosts take turns, so only the set of the first three is fixed
+        Set<String> first = new TreeSet<>(List.of(next(), next(), next()));
+        assertEquals(new TreeSet<>(List.of("http://a.example.org/0", "http://a.example.org/1",
+                "http://b.example.org/0")), first);
+        assertNull(dispatched.poll(200, TimeUnit.MILLISECONDS));
+
+        done("http://a.example.org/0");
+        assertEquals("http://a.example.org/2", next());
+        assertNull(dispatched.poll(200, TimeUnit.MILLISECONDS));
+        done("http://b.example.org/0");
+        assertNull(dispatched.poll(200, TimeUnit.MILLISECONDS));
+        done("http://a.example.org/1");
+        assertEquals("http://a.example.org/3", next());
+
+        // Without a rate limit an idle host is forgotten as soon as its last page is done
+        assertEquals(1, scheduler.trackedHosts());
+        done("http://a.example.org/2");
+        done("http://a.example.org/3");
+        assertEquals(0, scheduler.trackedHosts());
+    }
+
+    @Test
+    public void idleHostsAreForgottenOnceTheirBucketIsFull() throws Exception {
+        newScheduler(10, 1, 1);
+        submit("http://a.example.org/0");
+        done(next());
+        // Still within the 100 ms refill: forgetting it now would hand it a fresh token
+        assertEquals(1, scheduler.trackedHosts());
+        submit("http://a.example.org/1");
+        next();
+        assertTrue(millisBetween("http://a.example.org/0", "http://a.example.org/1") >= 80);
+        done("http://a.example.org/1");
+
+        Thread.sleep(150);
+        submit("http://b.example.org/0");
+        done(next());
+        assertEquals(1, scheduler.trackedHosts());
+    }
+}
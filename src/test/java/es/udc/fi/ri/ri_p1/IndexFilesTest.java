@@ -0,0 +1,183 @@
+package es.udc.fi.ri.ri_p1;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.TreeSet;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.LongPoint;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.MultiTerms;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.index.StoredFields;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * IndexFiles -update over an index written by the original demo, whose documents have no doc
+ * values: the run must not fail, and afterwards every file is indexed once with the doc values
+ * that later -update runs read. Files and line-doc records also share an index either way round,
+ * and indexing with several threads gives the same index as the serial walk.
+ */
+public class IndexFilesTest {
+
+    private Path dir;
+    private Path docs;
+    private Path index;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("index-files");
+        docs = Files.createDirectories(dir.resolve("docs"));
+        index = dir.resolve("index");
+        for (int i = 0; i < 5; i++) {
+            Files.writeString(docs.resolve("file" + i + ".txt"), "kiwi " + i);
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        IOUtils.rm(dir);
+    }
+
+    /** Writes the documents the way IndexFiles did before -update kept doc values. */
+    private void writeOldIndex() throws IOException {
+        try (FSDirectory directory = FSDirectory.open(index);
+             IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new StandardAnalyzer()));
+             DirectoryStream<Path> files = Files.newDirectoryStream(docs)) {
+            for (Path file : files) {
+                Document doc = new Document();
+                doc.add(new StringField("path", file.toString(), Field.Store.YES));
+                doc.add(new LongPoint("modified", Files.getLastModifiedTime(file).toMillis()));
+                doc.add(new TextField("contents", Files.readString(file), Field.Store.NO));
+                writer.addDocument(doc);
+            }
+        }
+    }
+
+    private Set<String> storedPaths(IndexReader reader) throws IOException {
+        Set<String> paths = new TreeSet<>();
+        for (LeafReaderContext leaf : reader.leaves()) {
+            StoredFields storedFields = leaf.reader().storedFields();
+            for (int doc = 0; doc < leaf.reader().maxDoc(); doc++) {
+                if (leaf.reader().getLiveDocs() == null || leaf.reader().getLiveDocs().get(doc)) {
+                    paths.add(storedFields.document(doc).get("path"));
+                }
+            }
+        }
+        return paths;
+    }
+
+    private static int docValuesCount(IndexReader reader) throws IOException {
+        int count = 0;
+        for (LeafReaderContext leaf : reader.leaves()) {
+            SortedDocValues paths = DocValues.getSorted(leaf.reader(), IndexFiles.PATH_DV);
+            for (int doc = paths.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = paths.nextDoc()) {
+                if (leaf.reader().getLiveDocs() == null || leaf.reader().getLiveDocs().get(doc)) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private static Set<String> pathTerms(IndexReader reader) throws IOException {
+        Set<String> paths = new TreeSet<>();
+        TermsEnum terms = MultiTerms.getTerms(reader, "path").iterator();
+        for (BytesRef term = terms.next(); term != null; term = terms.next()) {
+            paths.add(term.utf8ToString());
+        }
+        return paths;
+    }
+
+    private static Set<String> docValuesPaths(IndexReader reader) throws IOException {
+        Set<String> paths = new TreeSet<>();
+        for (LeafReaderContext leaf : reader.leaves()) {
+            SortedDocValues values = DocValues.getSorted(leaf.reader(), IndexFiles.PATH_DV);
+            for (int doc = values.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = values.nextDoc()) {
+                paths.add(values.lookupOrd(values.ordValue()).utf8ToString());
+            }
+        }
+        return paths;
+    }
+
+    @Test
+    public void parallelIndexingMatchesSerial() throws Exception {
+        for (int i = 0; i < 4; i++) {
+            Path subdir = Files.createDirectories(docs.resolve("dir" + i).resolve("nested" + i));
+            for (int j = 0; j < 10; j++) {
+                Files.writeString(subdir.resolve("file" + j + ".txt"), "weka " + i + " " + j);
+                Files.writeString(subdir.getParent().resolve("top" + j + ".txt"), "takahe " + j);
+            }
+        }
+        Path parallelIndex = dir.resolve("parallel-index");
+        IndexFiles.main(new String[] {"-index", index.toString(), "-docs", docs.toString(), "-threads", "1"});
+        IndexFiles.main(new String[] {"-index", parallelIndex.toString(), "-docs", docs.toString(),
+                "-threads", "4"});
+
+        try (IndexReader serial = IndexShards.openReader(index);
+             IndexReader parallel = IndexShards.openReader(parallelIndex)) {
+            assertEquals(85, serial.numDocs());
+            assertEquals(serial.numDocs(), parallel.numDocs());
+            assertEquals(pathTerms(serial), pathTerms(parallel));
+            assertEquals(pathTerms(serial), docValuesPaths(serial));
+            assertEquals(docValuesPaths(serial), docValuesPaths(parallel));
+        }
+    }
+
+    @Test
+    public void filesAndLineDocRecordsShareAnIndex() throws Exception {
+        Path records = dir.resolve("records.jsonl");
+        Files.writeString(records, "{\"url\": \"http://example.org/a\", \"body\": \"kiwi\"}\n"
+                + "{\"url\": \"http://example.org/b\", \"body\": \"moa\"}\n"
+                + "{\"title\": \"no path\", \"body\": \"weka\"}\n");
+        String[] lineDocs = {"-index", index.toString(), "-lineDocs", records.toString()};
+        String[] files = {"-index", index.toString(), "-docs", docs.toString(), "-update"};
+
+        IndexFiles.main(lineDocs);
+        IndexFiles.main(files);
+        String[] lineDocsUpdate = Arrays.copyOf(lineDocs, lineDocs.length + 1);
+        lineDocsUpdate[lineDocs.length] = "-update";
+        IndexFiles.main(lineDocsUpdate);
+        // Records are not files under -docs, so this update must not prune them
+        IndexFiles.main(files);
+
+        try (IndexReader reader = IndexShards.openReader(index)) {
+            assertEquals(8, reader.numDocs());
+            assertEquals(8, docValuesCount(reader));
+        }
+    }
+
+    @Test
+    public void updateReindexesDocumentsWithoutDocValues() throws Exception {
+        writeOldIndex();
+        Files.writeString(docs.resolve("new.txt"), "moa");
+
+        IndexFiles.main(new String[] {"-index", index.toString(), "-docs", docs.toString(), "-update"});
+
+        try (IndexReader reader = IndexShards.openReader(index)) {
+            assertEquals(6, reader.numDocs());
+            assertEquals(6, storedPaths(reader).size());
+            assertEquals(6, docValuesCount(reader));
+        }
+    }
+}
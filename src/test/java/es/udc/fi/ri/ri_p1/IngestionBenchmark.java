@@ -0,0 +1,134 @@
+package es.udc.fi.ri.ri_p1;
+
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.lang.management.ManagementFactory;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.util.IOUtils;
+
+/**
+ * Cost of feeding each file to both the contents field and the embedding in IndexFiles with
+ * {@code -knn_dict}: the old path opens and decodes the file twice through an InputStreamReader,
+ * the new one reads it once into the per-thread {@link PooledFileReader} buffers and hands the
+ * same text to both readers. Each consumer either just drains the characters (ingestion cost
+ * alone) or tokenizes them with StandardAnalyzer, as the contents field and DemoEmbeddings do.
+ *
+ * <p>Run with {@code java -cp target/classes:target/test-classes:<deps> es.udc.fi.ri.ri_p1.IngestionBenchmark [files] [MB per file]}.
+ */
+public class IngestionBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int files = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        int megabytes = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        Path root = Files.createTempDirectory("ingestbench");
+        try {
+            List<Path> paths = writeFiles(root, files, megabytes << 20);
+            long totalBytes = 0;
+            for (Path path : paths) {
+                totalBytes += Files.size(path);
+            }
+            Analyzer analyzer = new StandardAnalyzer();
+            // Shared by every round, like the per-thread reader in IndexFiles: once its buffers have
+            // grown to the largest file it allocates nothing else
+            PooledFileReader reader = new PooledFileReader();
+            System.out.println(String.format("%d files of %d MB", files, megabytes));
+            for (boolean analyze : new boolean[] {false, true}) {
+                for (int round = 0; round < 2; round++) { // The first round warms up the JIT
+                    long[] twice = measure(() -> {
+                        for (Path path : paths) {
+                            try (InputStream contents = Files.newInputStream(path);
+                                 InputStream embedding = Files.newInputStream(path)) {
+                                consume(analyzer, new BufferedReader(new InputStreamReader(contents, StandardCharsets.UTF_8)), analyze);
+                                consume(analyzer, new BufferedReader(new InputStreamReader(embedding, StandardCharsets.UTF_8)), analyze);
+                            }
+                        }
+                    });
+                    long readBefore = reader.bytesRead();
+                    long[] once = measure(() -> {
+                        for (Path path : paths) {
+                            CharBuffer text = reader.read(path);
+                            consume(analyzer, PooledFileReader.reader(text), analyze);
+                            consume(analyzer, PooledFileReader.reader(text), analyze);
+                        }
+                    });
+                    if (round == 1) {
+                        System.out.println(analyze ? "read + tokenize, twice per file:" : "read only, twice per file:");
+                        print("  two reads:  ", twice, 2 * totalBytes, totalBytes, files);
+                        print("  single read:", once, reader.bytesRead() - readBefore, totalBytes, files);
+                    }
+                }
+            }
+            System.out.println(String.format("single read buffers: %d allocations in %d files",
+                    reader.bufferAllocations(), reader.filesRead()));
+        } finally {
+            IOUtils.rm(root);
+        }
+    }
+
+    private static void print(String label, long[] measured, long bytesRead, long totalBytes, int files) {
+        System.out.println(String.format("%s %,6d ms (%.0f MB/s of files), %,5d MB read, %,9d bytes allocated/file",
+                label, measured[1] / 1_000_000, totalBytes / 1048576.0 / (measured[1] / 1e9), bytesRead >> 20,
+                measured[0] / files));
+    }
+
+    /** Reads the text through, tokenizing it if asked. */
+    private static void consume(Analyzer analyzer, Reader reader, boolean analyze) throws Exception {
+        if (analyze) {
+            try (TokenStream tokens = analyzer.tokenStream("contents", reader)) {
+                tokens.reset();
+                while (tokens.incrementToken()) {
+                    // Only the tokenization cost matters
+                }
+                tokens.end();
+            }
+        } else {
+            char[] buffer = new char[8192];
+            while (reader.read(buffer) >= 0) {
+                // Only the decoding cost matters
+            }
+        }
+    }
+
+    /** Text files of Zipf-like words, with some non-ASCII characters so decoding is not trivial. */
+    private static List<Path> writeFiles(Path root, int files, int bytes) throws Exception {
+        Random random = new Random(42);
+        List<Path> paths = new ArrayList<>();
+        for (int i = 0; i < files; i++) {
+            StringBuilder text = new StringBuilder(bytes);
+            while (text.length() < bytes) {
+                int word = (int) Math.pow(50_000, random.nextDouble());
+                text.append(word % 7 == 0 ? "ñ" : "w").append(Integer.toString(word, 36)).append(' ');
+            }
+            text.setLength(bytes);
+            Path path = root.resolve("file-" + i + ".txt");
+            Files.writeString(path, text, StandardCharsets.UTF_8);
+            paths.add(path);
+        }
+        return paths;
+    }
+
+    private interface Work {
+        void run() throws Exception;
+    }
+
+    /** Returns {allocated bytes, elapsed nanos} of the current thread while running the work. */
+    private static long[] measure(Work work) throws Exception {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long id = Thread.currentThread().getId();
+        long bytes = threads.getThreadAllocatedBytes(id);
+        long start = System.nanoTime();
+        work.run();
+        return new long[] {threads.getThreadAllocatedBytes(id) - bytes, System.nanoTime() - start};
+    }
+}
@@ -0,0 +1,129 @@
+package es.udc.fi.ri.ri_p1;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+import org.apache.lucene.util.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Line-doc and JSONL input: byte ranges together read every record exactly once whatever the
+ * split, JSON values are unescaped, and gzipped files are read whole.
+ */
+public class LineDocReaderTest {
+
+    private Path dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("line-docs");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        IOUtils.rm(dir);
+    }
+
+    /** Records of very different lengths, so range boundaries fall anywhere inside lines. */
+    private static String body(int i) {
+        StringBuilder body = new StringBuilder();
+        for (int j = 0; j < (i * 37) % 150; j++) {
+            body.append("palabra").append(j % 13).append(" ñandú ");
+        }
+        return body.toString();
+    }
+
+    private static List<String> readTitles(LineDocReader reader, List<long[]> ranges) throws IOException {
+        List<String> titles = new ArrayList<>();
+        for (long[] range : ranges) {
+            reader.read(range[0], range[1], record -> titles.add(record.title));
+        }
+        return titles;
+    }
+
+    @Test
+    public void rangesReadEveryRecordOnce() throws IOException {
+        Path file = dir.resolve("corpus.txt");
+        List<String> expected = new ArrayList<>();
+        try (Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            out.write(LineDocReader.HEADER_PREFIX + "\tdocname\ttitle\tbody\n");
+            for (int i = 0; i < 500; i++) {
+                out.write("doc" + i + "\ttitle " + i + "\t" + body(i) + (i % 3 == 0 ? "\r\n" : "\n"));
+                expected.add("title " + i);
+            }
+        }
+        LineDocReader reader = new LineDocReader(file);
+        for (int parts = 1; parts <= 16; parts++) {
+            List<long[]> ranges = reader.split(parts);
+            assertTrue(ranges.size() <= parts);
+            assertEquals("split into " + parts, expected, readTitles(reader, ranges));
+        }
+
+        List<LineDocReader.Record> records = new ArrayList<>();
+        reader.readAll(records::add);
+        assertEquals("doc7", records.get(7).path);
+        assertEquals(body(7), records.get(7).body);
+        assertNull(records.get(7).date);
+    }
+
+    @Test
+    public void defaultLineDocFieldsAreTitleDateBody() throws IOException {
+        Path file = dir.resolve("plain.txt");
+        Files.writeString(file, "first\t2024-01-01\tsome text\nsecond\t2024-01-02\tmore text", StandardCharsets.UTF_8);
+        List<LineDocReader.Record> records = new ArrayList<>();
+        new LineDocReader(file).readAll(records::add);
+        assertEquals(2, records.size());
+        assertEquals("second", records.get(1).title);
+        assertEquals("2024-01-02", records.get(1).date);
+        assertEquals("more text", records.get(1).body);
+        assertNull(records.get(1).path);
+    }
+
+    @Test
+    public void jsonlValuesAreUnescapedAndOtherValuesSkipped() throws IOException {
+        Path file = dir.resolve("pages.jsonl");
+        Files.writeString(file,
+                "{\"url\": \"http://example.org/a\", \"title\": \"Tab\\there \\\"quoted\\\" \\u00f1\","
+                        + " \"depth\": 2, \"links\": [\"x\", {\"y\": \"}\"}], \"body\": \"line\\nbreak\"}\n"
+                        + "not json\n"
+                        + "{\"path\": \"b\", \"contents\": \"text\"}\n",
+                StandardCharsets.UTF_8);
+        List<LineDocReader.Record> records = new ArrayList<>();
+        new LineDocReader(file).readAll(records::add);
+        assertEquals(2, records.size());
+        assertEquals("http://example.org/a", records.get(0).path);
+        assertEquals("Tab\there \"quoted\" ñ", records.get(0).title);
+        assertEquals("line\nbreak", records.get(0).body);
+        assertEquals("b", records.get(1).path);
+        assertEquals("text", records.get(1).body);
+    }
+
+    @Test
+    public void gzipIsReadWhole() throws IOException {
+        Path file = dir.resolve("pages.jsonl.gz");
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(file))) {
+            for (int i = 0; i < 300; i++) {
+                out.write(("{\"title\": \"title " + i + "\", \"body\": \"" + body(i) + "\"}\n")
+                        .getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        LineDocReader reader = new LineDocReader(file);
+        assertTrue(reader.isCompressed());
+        assertEquals(1, reader.split(8).size());
+        List<String> titles = readTitles(reader, reader.split(8));
+        assertEquals(300, titles.size());
+        assertEquals("title 299", titles.get(299));
+    }
+}
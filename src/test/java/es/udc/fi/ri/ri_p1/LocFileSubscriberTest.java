@@ -0,0 +1,160 @@
+package es.udc.fi.ri.ri_p1;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.lucene.util.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Size limit and content-type sniffing against a local server: an endless page is cut at the
+ * limit while streaming, and non-HTML responses are dropped without being downloaded.
+ */
+public class LocFileSubscriberTest {
+
+    private static final int LIMIT = 64 * 1024;
+    // Upper bound for the endless page, so a broken limit fails the test instead of hanging it
+    private static final long SERVER_CAP = 1L << 30;
+
+    private HttpServer server;
+    private ExecutorService serverThreads;
+    private Path dir;
+    private final AtomicLong hugeBytesSent = new AtomicLong();
+    private final CountDownLatch hugeDone = new CountDownLatch(1);
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("loc-subscriber");
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        // Chunked HTML that keeps coming until the client hangs up
+        server.createContext("/huge", exchange -> {
+            exchange.getResponseHeaders().add("Content-Type", "text/html; charset=UTF-8");
+            exchange.sendResponseHeaders(200, 0);
+            byte[] chunk = html(8192);
+            try (OutputStream out = exchange.getResponseBody()) {
+                while (hugeBytesSent.get() < SERVER_CAP) {
+                    out.write(chunk);
+                    hugeBytesSent.addAndGet(chunk.length);
+                }
+            } catch (IOException e) {
+                // The client cancelled the download
+            } finally {
+                hugeDone.countDown();
+                exchange.close();
+            }
+        });
+        server.createContext("/small", exchange -> send(exchange, "text/html", html(1000)));
+        server.createContext("/image", exchange -> send(exchange, "image/png", new byte[LIMIT * 4]));
+        server.createContext("/untyped-pdf", exchange -> {
+            byte[] pdf = new byte[LIMIT * 4];
+            System.arraycopy("%PDF-1.7\n".getBytes(StandardCharsets.US_ASCII), 0, pdf, 0, 9);
+            send(exchange, "application/octet-stream", pdf);
+        });
+        serverThreads = Executors.newCachedThreadPool();
+        server.setExecutor(serverThreads);
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.stop(0);
+        serverThreads.shutdownNow();
+        IOUtils.rm(dir);
+    }
+
+    private static byte[] html(int size) {
+        byte[] page = new byte[size];
+        Arrays.fill(page, (byte) 'a');
+        byte[] head = "<html><body><p>".getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(head, 0, page, 0, head.length);
+        return page;
+    }
+
+    private static void send(HttpExchange exchange, String contentType, byte[] body) throws IOException {
+        exchange.getResponseHeaders().add("Content-Type", contentType);
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        } catch (IOException e) {
+            // The client may hang up once it has decided to skip the body
+        }
+        exchange.close();
+    }
+
+    private HttpResponse<LocFileSubscriber.LocFile> fetch(String path, Path loc) throws Exception {
+        URI uri = URI.create("http://127.0.0.1:" + server.getAddress().getPort() + path);
+        return HttpClient.newHttpClient().send(HttpRequest.newBuilder(uri).build(),
+                LocFileSubscriber.handler(loc, LIMIT));
+    }
+
+    @Test
+    public void endlessPageIsTruncatedWhileStreaming() throws Exception {
+        Path loc = dir.resolve("huge.loc.");
+        LocFileSubscriber.LocFile locFile = fetch("/huge", loc).body();
+
+        assertTrue(locFile.truncated);
+        assertEquals(LIMIT, locFile.size);
+        assertEquals(LIMIT, Files.size(loc));
+        assertEquals(LocFileSubscriber.toHex(MessageDigest.getInstance("SHA-256").digest(Files.readAllBytes(loc))),
+                locFile.contentHash);
+
+        // The connection was dropped long before the server ran out of data
+        assertTrue(hugeDone.await(30, TimeUnit.SECONDS));
+        assertTrue(hugeBytesSent.get() < SERVER_CAP);
+    }
+
+    @Test
+    public void truncatesInMemoryToo() throws Exception {
+        LocFileSubscriber.LocFile locFile = fetch("/huge", null).body();
+        assertTrue(locFile.truncated);
+        assertEquals(LIMIT, locFile.bytes.length);
+    }
+
+    @Test
+    public void pageUnderTheLimitIsComplete() throws Exception {
+        Path loc = dir.resolve("small.loc.");
+        LocFileSubscriber.LocFile locFile = fetch("/small", loc).body();
+        assertFalse(locFile.truncated);
+        assertFalse(locFile.isSkipped());
+        assertTrue(Arrays.equals(html(1000), Files.readAllBytes(loc)));
+    }
+
+    @Test
+    public void nonHtmlIsSkippedByContentType() throws Exception {
+        Path loc = dir.resolve("image.loc.");
+        LocFileSubscriber.LocFile locFile = fetch("/image", loc).body();
+        assertTrue(locFile.isSkipped());
+        assertEquals("image/png", locFile.skippedType);
+        assertFalse(Files.exists(loc));
+    }
+
+    @Test
+    public void binaryIsSkippedBySniffingGenericType() throws Exception {
+        Path loc = dir.resolve("pdf.loc.");
+        LocFileSubscriber.LocFile locFile = fetch("/untyped-pdf", loc).body();
+        assertTrue(locFile.isSkipped());
+        assertFalse(Files.exists(loc));
+    }
+}
@@ -0,0 +1,82 @@
+package es.udc.fi.ri.ri_p1;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.lucene.util.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Round trip through the page archive: records are read back by id and by URL across segment
+ * rolls and after reopening the archive.
+ */
+public class PageArchiveTest {
+
+    private Path dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("page-archive");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        IOUtils.rm(dir);
+    }
+
+    private static byte[] html(int i) {
+        StringBuilder page = new StringBuilder("<html><head><title>Page " + i + "</title></head><body>");
+        for (int j = 0; j < 200; j++) {
+            page.append("<p>palabra").append((i * 31 + j) % 97).append(" ñandú</p>");
+        }
+        return page.append("</body></html>").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void readsBackByIdAndUrlAcrossSegments() throws IOException {
+        List<Long> ids = new ArrayList<>();
+        // 4 KB segments force several rolls
+        try (PageArchive archive = PageArchive.open(dir, 4096)) {
+            for (int i = 0; i < 50; i++) {
+                ids.add(archive.append("http://example.org/" + i, "UTF-8", html(i),
+                        ("Page " + i).getBytes(StandardCharsets.UTF_8)));
+            }
+            // Readable while the segment is still being written
+            PageArchive.Record record = archive.get(ids.get(49));
+            assertEquals("http://example.org/49", record.url);
+            assertTrue(Arrays.equals(html(49), record.html));
+        }
+        assertTrue(Files.list(dir).count() > 4);
+
+        try (PageArchive archive = PageArchive.open(dir, 4096)) {
+            assertEquals(50, archive.size());
+            for (int i = 0; i < 50; i++) {
+                PageArchive.Record record = archive.get(ids.get(i));
+                assertEquals("http://example.org/" + i, record.url);
+                assertEquals("UTF-8", record.charset);
+                assertEquals("Page " + i, record.text);
+                assertTrue(Arrays.equals(html(i), record.html));
+                assertEquals((long) ids.get(i), PageArchive.idOf(archive.location(ids.get(i))));
+            }
+
+            // A new version of a URL replaces the old one for lookups by URL
+            long newId = archive.append("http://example.org/7", null, html(700), new byte[0]);
+            PageArchive.Record latest = archive.find("http://example.org/7");
+            assertNotNull(latest);
+            assertEquals(newId, latest.id);
+            assertNull(latest.charset);
+            assertNull(archive.find("http://example.org/missing"));
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package es.udc.fi.ri.ri_p1;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Date;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.DateTools;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.LongPoint;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.ByteBuffersDirectory;
+
+/**
+ * Allocation profile of the WebIndexer indexing stage: bytes allocated and time per page when the
+ * document is built from scratch for every page (the old processUrl code) versus filling the
+ * per-thread {@link PageDocumentBuilder} template, both with and without {@code addDocument}.
+ *
+ * <p>Run with {@code java -cp target/classes:target/test-classes:<deps> es.udc.fi.ri.ri_p1.PageDocumentBenchmark}.
+ */
+public class PageDocumentBenchmark {
+
+    private static final int PAGES = 20_000;
+
+    public static void main(String[] args) throws Exception {
+        Path urlFile = Files.createTempFile("bench", ".url");
+        String title = "Búsqueda y recuperación de información";
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 300; i++) {
+            text.append("palabra").append(i % 97).append(' ');
+        }
+        String body = text.toString();
+
+        FieldType titleType = PageDocumentBuilder.textFieldType(false);
+        FieldType bodyType = PageDocumentBuilder.textFieldType(false);
+        PageDocumentBuilder builder = new PageDocumentBuilder(titleType, bodyType,
+                PageDocumentBuilder.STORE_FULL_BODY, InetAddress.getLocalHost().getHostName(), Thread.currentThread().getName());
+        PageDocumentBuilder.UrlFileTimes times = new PageDocumentBuilder.UrlFileTimes(urlFile);
+
+        for (boolean index : new boolean[] {false, true}) {
+            for (int round = 0; round < 2; round++) { // The first round warms up the JIT
+                try (IndexWriter writer = new IndexWriter(new ByteBuffersDirectory(),
+                        new IndexWriterConfig(new StandardAnalyzer()))) {
+                    long[] before = measure(() -> {
+                        for (int i = 0; i < PAGES; i++) {
+                            Document doc = oldDocument("https://es.wikipedia.org/wiki/" + i, title, body, urlFile);
+                            if (index) {
+                                writer.addDocument(doc);
+                            }
+                        }
+                    });
+                    long[] after = measure(() -> {
+                        for (int i = 0; i < PAGES; i++) {
+                            Document doc = builder.build("https://es.wikipedia.org/wiki/" + i, "docs/page.loc.notags",
+                                    title, body, urlFile.toString(), "hash", 0L, 40_000, 2_000, false, times);
+                            if (index) {
+                                writer.addDocument(doc);
+                            }
+                        }
+                    });
+                    if (round == 1) {
+                        System.out.println(index ? "build + addDocument:" : "build only:");
+                        System.out.println(String.format("  before: %,d bytes/page, %,d ns/page", before[0] / PAGES, before[1] / PAGES));
+                        System.out.println(String.format("  after:  %,d bytes/page, %,d ns/page", after[0] / PAGES, after[1] / PAGES));
+                    }
+                }
+            }
+        }
+        Files.delete(urlFile);
+    }
+
+    /** The document as processUrl built it before the per-thread template. */
+    private static Document oldDocument(String key, String title, String body, Path urlFile) throws Exception {
+        BasicFileAttributes attrs = Files.readAttributes(urlFile, BasicFileAttributes.class);
+        Date creationTime = new Date(attrs.creationTime().toMillis());
+        Date lastAccessTime = new Date(attrs.lastAccessTime().toMillis());
+        Date lastModifiedTime = new Date(attrs.lastModifiedTime().toMillis());
+        FieldType titleFieldType = new FieldType(TextField.TYPE_STORED);
+        FieldType bodyFieldType = new FieldType(TextField.TYPE_STORED);
+        Document doc = new Document();
+        doc.add(new StringField("url", key, Field.Store.YES));
+        doc.add(new StringField("path", "docs/page.loc.notags", Field.Store.YES));
+        doc.add(new Field("title", title, titleFieldType));
+        doc.add(new Field("body", body, bodyFieldType));
+        doc.add(new StringField("hostname", InetAddress.getLocalHost().getHostName(), Field.Store.YES));
+        doc.add(new StringField("thread", Thread.currentThread().getName(), Field.Store.YES));
+        doc.add(new StoredField("urlFile", urlFile.toString()));
+        doc.add(new StringField("contentHash", "hash", Field.Store.YES));
+        doc.add(new StoredField("simhash", 0L));
+        doc.add(new LongPoint("locKb", 40_000 / 1024));
+        doc.add(new StoredField("locKb", 40_000 / 1024));
+        doc.add(new LongPoint("notagsKb", 2_000 / 1024));
+        doc.add(new StoredField("notagsKb", 2_000 / 1024));
+        doc.add(new StoredField("creationTime", creationTime.toString()));
+        doc.add(new StoredField("lastAccessTime", lastAccessTime.toString()));
+        doc.add(new StoredField("lastModifiedTime", lastModifiedTime.toString()));
+        doc.add(new StoredField("creationTimeLucene", DateTools.dateToString(creationTime, DateTools.Resolution.SECOND)));
+        doc.add(new StoredField("lastAccessTimeLucene", DateTools.dateToString(lastAccessTime, DateTools.Resolution.SECOND)));
+        doc.add(new StoredField("lastModifiedTimeLucene", DateTools.dateToString(lastModifiedTime, DateTools.Resolution.SECOND)));
+        return doc;
+    }
+
+    private interface Work {
+        void run() throws Exception;
+    }
+
+    /** Returns {allocated bytes, elapsed nanos} of the current thread while running the work. */
+    private static long[] measure(Work work) throws Exception {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long id = Thread.currentThread().getId();
+        long bytes = threads.getThreadAllocatedBytes(id);
+        long start = System.nanoTime();
+        work.run();
+        return new long[] {threads.getThreadAllocatedBytes(id) - bytes, System.nanoTime() - start};
+    }
+}
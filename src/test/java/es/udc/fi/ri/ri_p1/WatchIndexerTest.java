@@ -0,0 +1,137 @@
+package es.udc.fi.ri.ri_p1;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.util.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * IndexFiles -watch over a temporary -docs tree: every file created, changed or deleted, and every
+ * directory removed, shows up in the NRT reader of the watcher, with exactly one document per path.
+ */
+public class WatchIndexerTest {
+
+    private static final long TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    private Path dir;
+    private Path docs;
+    private IndexShards shards;
+    private IndexFiles indexFiles;
+    private WatchIndexer watcher;
+    private Thread watchThread;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("watch-indexer");
+        docs = Files.createDirectories(dir.resolve("docs"));
+        Files.writeString(docs.resolve("kiwi.txt"), "kiwi");
+        Files.writeString(Files.createDirectories(docs.resolve("birds")).resolve("moa.txt"), "moa");
+        Files.writeString(docs.resolve("birds").resolve("weka.txt"), "weka");
+        Files.writeString(Files.createDirectories(docs.resolve("trees")).resolve("kauri.txt"), "kauri");
+
+        // Two shards, so that deleting a directory has to reach both of them
+        shards = IndexShards.open(dir.resolve("index"), 2, () -> new IndexWriterConfig(new StandardAnalyzer()));
+        indexFiles = new IndexFiles(null);
+        watcher = new WatchIndexer(indexFiles, shards, docs, 50, 20, TimeUnit.MINUTES.toMillis(1));
+        indexFiles.indexDocs(shards, docs);
+        watchThread = new Thread(() -> {
+            try {
+                watcher.run();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }, "watch");
+        watchThread.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        watcher.stop();
+        watchThread.join(TIMEOUT_MILLIS);
+        watcher.close();
+        indexFiles.close();
+        shards.close();
+        IOUtils.rm(dir);
+    }
+
+    /** Documents whose path is the given file, and of those, the ones that contain the word. */
+    private int[] count(Path file, String word) throws IOException {
+        try (IndexReader reader = watcher.acquireReader()) {
+            IndexSearcher searcher = new IndexSearcher(reader);
+            TermQuery path = new TermQuery(new Term("path", file.toString()));
+            BooleanQuery withWord = new BooleanQuery.Builder()
+                    .add(path, BooleanClause.Occur.FILTER)
+                    .add(new TermQuery(new Term("contents", word)), BooleanClause.Occur.FILTER)
+                    .build();
+            return new int[] {searcher.count(path), searcher.count(withWord)};
+        }
+    }
+
+    /** Waits until the file has the given number of documents, and that many contain the word. */
+    private int[] await(Path file, String word, int docs, int withWord) throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        int[] counts = count(file, word);
+        while ((counts[0] != docs || counts[1] != withWord) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+            counts = count(file, word);
+        }
+        return counts;
+    }
+
+    private void assertIndexedOnce(Path file, String word) throws Exception {
+        int[] counts = await(file, word, 1, 1);
+        assertEquals(file + " documents", 1, counts[0]);
+        assertEquals(file + " documents with '" + word + "'", 1, counts[1]);
+    }
+
+    private void assertRemoved(Path file) throws Exception {
+        assertEquals(file + " documents", 0, await(file, "", 0, 0)[0]);
+    }
+
+    @Test
+    public void appliesEveryChangeToTheNrtReader() throws Exception {
+        Path kiwi = docs.resolve("kiwi.txt");
+        Path moa = docs.resolve("birds").resolve("moa.txt");
+        Path weka = docs.resolve("birds").resolve("weka.txt");
+        Path kauri = docs.resolve("trees").resolve("kauri.txt");
+        assertIndexedOnce(kiwi, "kiwi");
+        assertIndexedOnce(kauri, "kauri");
+
+        Path takahe = docs.resolve("takahe.txt");
+        Files.writeString(takahe, "takahe");
+        assertIndexedOnce(takahe, "takahe");
+
+        // Replaced, not added again
+        Files.writeString(kiwi, "apteryx");
+        assertIndexedOnce(kiwi, "apteryx");
+        assertEquals(0, count(kiwi, "kiwi")[1]);
+
+        Files.delete(takahe);
+        assertRemoved(takahe);
+
+        Files.delete(moa);
+        Files.delete(weka);
+        Files.delete(docs.resolve("birds"));
+        assertRemoved(moa);
+        assertRemoved(weka);
+
+        // Moved out of the tree: no event for the file itself, only the directory delete removes it
+        Files.move(docs.resolve("trees"), dir.resolve("trees"));
+        assertRemoved(kauri);
+        assertIndexedOnce(kiwi, "apteryx");
+    }
+}
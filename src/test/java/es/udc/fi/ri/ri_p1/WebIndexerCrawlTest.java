@@ -0,0 +1,122 @@
+package es.udc.fi.ri.ri_p1;
+
+import static org.junit.Assert.assertEquals;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiTerms;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Crawls a local stub server with WebIndexer in a separate JVM, since WebIndexer keeps its state in
+ * static fields and reads its configuration and .url files relative to the working directory.
+ */
+public class WebIndexerCrawlTest {
+
+    private HttpServer server;
+    private Path dir;
+    private final AtomicInteger childFetches = new AtomicInteger();
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("web-indexer");
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        // Ignores If-None-Match and If-Modified-Since: always 200 with the same body
+        server.createContext("/seed", exchange -> {
+            respond(exchange, "<html><head><title>Seed</title></head><body>"
+                    + "<a href=\"/child\">Apteryx</a></body></html>");
+        });
+        server.createContext("/child", exchange -> {
+            childFetches.incrementAndGet();
+            respond(exchange, "<html><head><title>Child</title></head><body>Kiwi</body></html>");
+        });
+        server.start();
+
+        Path resources = Files.createDirectories(dir.resolve("src/main/resources"));
+        Files.writeString(resources.resolve("config.properties"), "onlyDoms=\ndenyDoms=\n");
+        Path urls = Files.createDirectories(dir.resolve("src/test/resources/urls"));
+        Files.writeString(urls.resolve("seeds.url"), url("/seed") + "\n");
+    }
+
+    private static void respond(com.sun.net.httpserver.HttpExchange exchange, String html) throws IOException {
+        byte[] page = html.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "text/html; charset=utf-8");
+        exchange.getResponseHeaders().add("ETag", "\"v1\"");
+        exchange.sendResponseHeaders(200, page.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(page);
+        }
+        exchange.close();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.stop(0);
+        IOUtils.rm(dir);
+    }
+
+    private String url(String path) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+    }
+
+    private void crawl(String... options) throws Exception {
+        List<String> command = new ArrayList<>(List.of(
+                Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"), WebIndexer.class.getName(),
+                "-index", "index", "-docs", "docs", "-maxDepth", "1", "-hostRate", "0"));
+        command.addAll(List.of(options));
+        File log = dir.resolve("crawl.log").toFile();
+        Process process = new ProcessBuilder(command).directory(dir.toFile())
+                .redirectErrorStream(true).redirectOutput(log).start();
+        if (!process.waitFor(2, TimeUnit.MINUTES)) {
+            process.destroyForcibly();
+            throw new AssertionError("WebIndexer did not finish");
+        }
+        assertEquals(Files.readString(log.toPath()), 0, process.exitValue());
+    }
+
+    private Set<String> indexedUrls() throws IOException {
+        Set<String> urls = new TreeSet<>();
+        try (IndexReader reader = IndexShards.openReader(dir.resolve("index"))) {
+            Terms terms = MultiTerms.getTerms(reader, "url");
+            TermsEnum termsEnum = terms.iterator();
+            for (BytesRef term = termsEnum.next(); term != null; term = termsEnum.next()) {
+                urls.add(term.utf8ToString());
+            }
+        }
+        return urls;
+    }
+
+    @Test
+    public void unchangedPagesServedWith200StillLeadToTheirLinks() throws Exception {
+        Set<String> expected = new TreeSet<>(List.of(UrlCanonicalizer.canonicalize(url("/seed")),
+                UrlCanonicalizer.canonicalize(url("/child"))));
+        crawl("-create");
+        assertEquals(expected, indexedUrls());
+
+        // The seed comes back identical, so it is not reindexed, but the crawl must go on through it
+        crawl();
+        assertEquals(2, childFetches.get());
+        assertEquals(expected, indexedUrls());
+    }
+}